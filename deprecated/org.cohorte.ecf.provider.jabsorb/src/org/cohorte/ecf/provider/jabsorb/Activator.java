@@ -18,6 +18,7 @@ package org.cohorte.ecf.provider.jabsorb;
 import java.net.URI;
 import java.util.Map;
 
+import org.cohorte.ecf.provider.jabsorb.client.AsyncCallExecutor;
 import org.cohorte.ecf.provider.jabsorb.client.JabsorbClientContainer;
 import org.cohorte.ecf.provider.jabsorb.host.JabsorbHostContainer;
 import org.cohorte.ecf.provider.jabsorb.host.JabsorbHttpSession;
@@ -166,6 +167,9 @@ public class Activator implements BundleActivator {
 	@Override
 	public void stop(final BundleContext bundleContext) {
 
+		// Cancel the pending asynchronous calls
+		AsyncCallExecutor.shutdown();
+
 		if (logServiceTracker != null) {
 			logServiceTracker.close();
 			logServiceTracker = null;
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.ecf.provider.jabsorb.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded executor of the asynchronous remote calls, shared by all the Jabsorb
+ * client services. A call which doesn't end before its timeout is cancelled.
+ *
+ * The number of threads and the maximum number of pending calls can be set
+ * with the {@link #PROP_THREADS} and {@link #PROP_QUEUE_SIZE} system
+ * properties.
+ *
+ * @author Thomas Calmant
+ */
+public final class AsyncCallExecutor {
+
+    /**
+     * An asynchronous call, cancelled when its timeout expires
+     */
+    private static final class AsyncCall extends FutureTask<Object> {
+
+        /** The scheduled cancellation */
+        private volatile ScheduledFuture<?> pTimeout;
+
+        /**
+         * Sets up the call
+         *
+         * @param aCall
+         *            The remote call
+         */
+        private AsyncCall(final Callable<Object> aCall) {
+
+            super(aCall);
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.util.concurrent.FutureTask#done()
+         */
+        @Override
+        protected void done() {
+
+            final ScheduledFuture<?> timeout = pTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /** Default maximum number of pending calls */
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+
+    /** Default number of calling threads */
+    private static final int DEFAULT_THREADS = 8;
+
+    /** Time after which an idle thread stops, in seconds */
+    private static final long KEEP_ALIVE = 60;
+
+    /** System property: maximum number of pending calls */
+    public static final String PROP_QUEUE_SIZE = "cohorte.ecf.jabsorb.async.queue";
+
+    /** System property: number of calling threads */
+    public static final String PROP_THREADS = "cohorte.ecf.jabsorb.async.threads";
+
+    /** The shared executor, created on first use */
+    private static AsyncCallExecutor sInstance;
+
+    /** The calling threads */
+    private final ThreadPoolExecutor pExecutor;
+
+    /** The timeouts scheduler */
+    private final ScheduledExecutorService pTimer;
+
+    /**
+     * Sets up the executor
+     *
+     * @param aThreads
+     *            Number of calling threads
+     * @param aQueueSize
+     *            Maximum number of pending calls
+     */
+    private AsyncCallExecutor(final int aThreads, final int aQueueSize) {
+
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadFactory factory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+
+                final Thread thread = new Thread(aRunnable,
+                        "jabsorb-async-call-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        pExecutor = new ThreadPoolExecutor(aThreads, aThreads, KEEP_ALIVE,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(aQueueSize),
+                factory);
+        pExecutor.allowCoreThreadTimeOut(true);
+        pTimer = new ScheduledThreadPoolExecutor(1, factory);
+    }
+
+    /**
+     * Returns the shared executor, creating it if necessary
+     *
+     * @return The shared executor
+     */
+    static synchronized AsyncCallExecutor get() {
+
+        if (sInstance == null) {
+            sInstance = new AsyncCallExecutor(Math.max(1,
+                    Integer.getInteger(PROP_THREADS, DEFAULT_THREADS)),
+                    Math.max(1, Integer.getInteger(PROP_QUEUE_SIZE,
+                            DEFAULT_QUEUE_SIZE)));
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Stops the shared executor, cancelling the pending calls
+     */
+    public static synchronized void shutdown() {
+
+        if (sInstance != null) {
+            sInstance.pExecutor.shutdownNow();
+            sInstance.pTimer.shutdownNow();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Submits a remote call
+     *
+     * @param aCall
+     *            The remote call
+     * @param aTimeout
+     *            Maximum duration of the call, in milliseconds (no timeout if
+     *            not strictly positive)
+     * @return The future result of the call, cancelled if the timeout expires
+     * @throws RejectedExecutionException
+     *             Too many pending calls
+     */
+    Future<Object> submit(final Callable<Object> aCall, final long aTimeout)
+            throws RejectedExecutionException {
+
+        final AsyncCall call = new AsyncCall(aCall);
+        pExecutor.execute(call);
+
+        if (aTimeout > 0 && !call.isDone()) {
+            call.pTimeout = pTimer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    // Release the caller and interrupt the calling thread
+                    // (the connection itself stops on its own timeouts)
+                    call.cancel(true);
+                }
+            }, aTimeout, TimeUnit.MILLISECONDS);
+
+            if (call.isDone()) {
+                // Ended while scheduling the timeout
+                call.pTimeout.cancel(false);
+            }
+        }
+
+        return call;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.ecf.provider.jabsorb.client;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.cohorte.ecf.provider.jabsorb.Activator;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.equinox.concurrent.future.IFuture;
+import org.eclipse.equinox.concurrent.future.TimeoutException;
+
+/**
+ * Equinox {@link IFuture} view of an asynchronous call submitted to the
+ * {@link AsyncCallExecutor}. As with the Equinox futures, the error raised by
+ * the call is given by {@link #getStatus()}: {@link #get()} then returns null.
+ *
+ * @author Thomas Calmant
+ */
+final class AsyncCallFuture implements IFuture<Object> {
+
+    /** The call, on the asynchronous calls executor */
+    private final Future<Object> pFuture;
+
+    /**
+     * Sets up the adapter
+     *
+     * @param aFuture
+     *            The call submitted to the executor
+     */
+    AsyncCallFuture(final Future<Object> aFuture) {
+
+        pFuture = aFuture;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#cancel()
+     */
+    @Override
+    public boolean cancel() {
+
+        return pFuture.cancel(true);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#get()
+     */
+    @Override
+    public Object get() throws InterruptedException,
+            OperationCanceledException {
+
+        try {
+            return pFuture.get();
+
+        } catch (final CancellationException ex) {
+            throw new OperationCanceledException("Call cancelled");
+
+        } catch (final ExecutionException ex) {
+            // Error given by the status
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#get(long)
+     */
+    @Override
+    public Object get(final long aWaitTimeInMillis)
+            throws InterruptedException, TimeoutException,
+            OperationCanceledException {
+
+        try {
+            return pFuture.get(aWaitTimeInMillis, TimeUnit.MILLISECONDS);
+
+        } catch (final java.util.concurrent.TimeoutException ex) {
+            throw new TimeoutException(aWaitTimeInMillis);
+
+        } catch (final CancellationException ex) {
+            throw new OperationCanceledException("Call cancelled");
+
+        } catch (final ExecutionException ex) {
+            // Error given by the status
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#getStatus()
+     */
+    @Override
+    public IStatus getStatus() {
+
+        if (!pFuture.isDone()) {
+            // No status yet
+            return null;
+        }
+
+        try {
+            pFuture.get();
+            return Status.OK_STATUS;
+
+        } catch (final CancellationException ex) {
+            return Status.CANCEL_STATUS;
+
+        } catch (final ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            return new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+                    "Error calling remote method: " + cause, cause);
+
+        } catch (final InterruptedException ex) {
+            // Can't happen: the call is done
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#hasValue()
+     */
+    @Override
+    public boolean hasValue() {
+
+        final IStatus status = getStatus();
+        return status != null && status.isOK();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.eclipse.equinox.concurrent.future.IFuture#isDone()
+     */
+    @Override
+    public boolean isDone() {
+
+        return pFuture.isDone();
+    }
+}
@@ -20,13 +20,20 @@ import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.cohorte.ecf.provider.jabsorb.Utilities;
+import org.cohorte.ecf.provider.jabsorb.host.JabsorbHttpSession;
 import org.eclipse.ecf.core.util.ECFException;
 import org.eclipse.ecf.remoteservice.Constants;
 import org.eclipse.ecf.remoteservice.client.AbstractClientContainer;
 import org.eclipse.ecf.remoteservice.client.AbstractRSAClientService;
 import org.eclipse.ecf.remoteservice.client.RemoteServiceClientRegistration;
+import org.eclipse.equinox.concurrent.future.IFuture;
 import org.jabsorb.ng.client.Client;
 import org.jabsorb.ng.client.ISession;
 import org.jabsorb.ng.client.TransportRegistry;
@@ -45,6 +52,12 @@ public class JabsorbClientService extends AbstractRSAClientService {
     /** Service interfaces */
     private final List<Class<?>> pInterfaces = new LinkedList<Class<?>>();
 
+    /**
+     * Public methods of the service interfaces: "name/arity" and
+     * "class.name/arity" -&gt; first matching method
+     */
+    private final Map<String, Method> pMethods = new ConcurrentHashMap<String, Method>();
+
     /** The service proxy */
     private final Object pProxy;
 
@@ -98,6 +111,26 @@ public class JabsorbClientService extends AbstractRSAClientService {
                     + Arrays.toString(registration.getClazzes()));
         }
 
+        // Prepare the methods table, the first match of a name being kept
+        pMethods.clear();
+        for (final Class<?> clazz : pInterfaces) {
+            for (final Method method : clazz.getMethods()) {
+                if (Modifier.isPublic(method.getModifiers())) {
+                    final int nbArgs = method.getParameterTypes().length;
+                    final String name = method.getName();
+                    if (!pMethods.containsKey(methodKey(name, nbArgs))) {
+                        pMethods.put(methodKey(name, nbArgs), method);
+                    }
+
+                    final String qualifiedKey = methodKey(clazz.getName() + '.'
+                            + name, nbArgs);
+                    if (!pMethods.containsKey(qualifiedKey)) {
+                        pMethods.put(qualifiedKey, method);
+                    }
+                }
+            }
+        }
+
         // Create the proxy
         String serviceKey = String.valueOf(registration.getProperty(Constants.SERVICE_ID));
         
@@ -118,6 +151,7 @@ public class JabsorbClientService extends AbstractRSAClientService {
 
         // Clean up the list of classes
         pInterfaces.clear();
+        pMethods.clear();
 
         super.dispose();
     }
@@ -132,52 +166,22 @@ public class JabsorbClientService extends AbstractRSAClientService {
      */
     private Method getMethod(final String aFullMethodName, final int aNbArgs) {
 
-        // Extracted method name
-        String methodName;
-
-        // List of classes where to find the method
-        final List<Class<?>> classes = new LinkedList<Class<?>>();
-
-        // Separate class and method names
-        final int methodIndex = aFullMethodName.lastIndexOf('.');
-        if (methodIndex == -1) {
-            // Not found, got the method name only
-            methodName = aFullMethodName;
-
-            // Look into all classes
-            classes.addAll(pInterfaces);
-
-        } else {
-            // Separate names
-            final String className = aFullMethodName.substring(0, methodIndex);
-            methodName = aFullMethodName.substring(methodIndex + 1);
-
-            // Find the valid class
-            for (final Class<?> clazz : pInterfaces) {
-                if (clazz.getName().equals(className)) {
-                    // Look into only one class
-                    classes.add(clazz);
-                    break;
-                }
-            }
-        }
+        return pMethods.get(methodKey(aFullMethodName, aNbArgs));
+    }
 
-        // Look for the method object
-        for (final Class<?> clazz : pInterfaces) {
-            final Method[] methods = clazz.getMethods();
-            for (final Method method : methods) {
-                // Test method name and number of arguments
-                if (Modifier.isPublic(method.getModifiers())
-                        && method.getName().equals(methodName)
-                        && method.getParameterTypes().length == aNbArgs) {
-                    // Found a match
-                    return method;
-                }
-            }
-        }
+    /**
+     * Computes the key of a method in the methods table
+     * 
+     * @param aMethodName
+     *            A method name, that can be prefixed with the full class name
+     * @param aNbArgs
+     *            Number of arguments of the method
+     * @return The key of the method
+     */
+    private static String methodKey(final String aMethodName,
+            final int aNbArgs) {
 
-        // Method not found
-        return null;
+        return aMethodName + '/' + aNbArgs;
     }
 
     /**
@@ -196,10 +200,65 @@ public class JabsorbClientService extends AbstractRSAClientService {
         return new Client(session);
     }
 
+	/**
+	 * Runs the remote call on the shared asynchronous calls executor. The
+	 * call is cancelled if it doesn't end before its timeout.
+	 * 
+	 * @return A {@link Future} or an {@link IFuture} of the call result,
+	 *         according to the method return type
+	 * @throws ECFException
+	 *             Unsupported future type or too many pending calls
+	 */
 	@Override
-	protected Object invokeAsync(RSARemoteCall remoteCall) throws ECFException {
-		// TODO Auto-generated method stub
-		return null;
+	protected Object invokeAsync(final RSARemoteCall remoteCall)
+			throws ECFException {
+
+		// Java and Equinox futures are supported
+		final Class<?> returnType = remoteCall.getReflectMethod()
+				.getReturnType();
+		final boolean equinoxFuture;
+		if (returnType.isAssignableFrom(Future.class)) {
+			equinoxFuture = false;
+
+		} else if (returnType.isAssignableFrom(IFuture.class)) {
+			equinoxFuture = true;
+
+		} else {
+			throw new ECFException("Unsupported asynchronous result type: "
+					+ returnType.getName());
+		}
+
+		// The connection gets the time left when the call starts, so that it
+		// really stops when the call is cancelled
+		final long timeout = remoteCall.getTimeout();
+		final long deadline = timeout > 0 ? System.currentTimeMillis()
+				+ timeout : 0;
+
+		final Future<Object> future;
+		try {
+			future = AsyncCallExecutor.get().submit(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+
+					JabsorbHttpSession.setDeadline(deadline);
+					try {
+						return invokeSync(remoteCall);
+
+					} finally {
+						JabsorbHttpSession.setDeadline(0);
+					}
+				}
+			}, timeout);
+
+		} catch (final RejectedExecutionException ex) {
+			throw new ECFException("Too many pending asynchronous calls", ex);
+		}
+
+		if (equinoxFuture) {
+			return new AsyncCallFuture(future);
+		}
+		return future;
 	}
 
 	@Override
@@ -16,17 +16,25 @@
 package org.cohorte.ecf.provider.jabsorb.host;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.Scanner;
 
+import org.cohorte.remote.utilities.HttpCompression;
+import org.cohorte.remote.utilities.HttpConnectionPool;
+import org.cohorte.remote.utilities.ThreadByteBuffer;
 import org.jabsorb.ng.client.ClientError;
 import org.jabsorb.ng.client.HTTPSession;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * Overrides the Jabsorb implementation of its HTTP Session
@@ -35,6 +43,16 @@ import org.json.JSONObject;
  */
 public class JabsorbHttpSession extends HTTPSession {
 
+    /** Charset of the JSON-RPC messages */
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    /** Content type of the requests */
+    private static final String REQUEST_CONTENT_TYPE = JSON_CONTENT_TYPE
+            + "; charset=" + CHARSET_UTF8;
+
+    /** Deadline of the calls of the current thread (null if none) */
+    private static final ThreadLocal<Long> sDeadline = new ThreadLocal<Long>();
+
     /** The session URL */
     private final URL pUrl;
 
@@ -53,40 +71,75 @@ public class JabsorbHttpSession extends HTTPSession {
     }
 
     /**
-     * Sends a POST request to the session URL with the given content
+     * Sets the time after which the requests sent by the current thread
+     * fail: it is given to the connections as connect and read timeouts.
+     * 
+     * @param aDeadline
+     *            A date in milliseconds, 0 to remove the deadline
+     */
+    public static void setDeadline(final long aDeadline) {
+
+        if (aDeadline > 0) {
+            sDeadline.set(Long.valueOf(aDeadline));
+        } else {
+            sDeadline.remove();
+        }
+    }
+
+    /**
+     * Sends a POST request to the session URL with the given content. The
+     * JSON response is parsed while it is read from the connection.
      * 
      * @param aRequestContent
-     *            Request content
-     * @return The result page
+     *            Request content, encoded in UTF-8
+     * @return The parsed response
      * @throws ClientError
      *             Something wrong happened
      */
-    protected String getUrlPostResult(final byte[] aRequestContent) {
+    protected JSONObject getUrlPostResult(
+            final ThreadByteBuffer aRequestContent) {
 
         // Open a connection
         HttpURLConnection httpConnection = null;
-        Scanner scanner = null;
+        Reader reader = null;
         try {
-            // Open the connection and cast it
-            final URLConnection connection = pUrl.openConnection();
-            if (!(connection instanceof HttpURLConnection)) {
-                throw new ClientError("Unknown URL connection for : " + pUrl);
+            // Get a connection from the pool
+            httpConnection = HttpConnectionPool.get().open(pUrl);
+
+            // Let the socket give up when the call times out: the reads
+            // ignore the interruptions
+            final Long deadline = sDeadline.get();
+            if (deadline != null) {
+                final long remaining = deadline.longValue()
+                        - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Call to " + pUrl
+                            + " timed out");
+                }
+
+                final int timeout = (int) Math.min(remaining,
+                        Integer.MAX_VALUE);
+                httpConnection.setConnectTimeout(timeout);
+                httpConnection.setReadTimeout(timeout);
             }
 
-            httpConnection = (HttpURLConnection) connection;
-
             // Make the connection writable (POST)
             httpConnection.setRequestMethod("POST");
             httpConnection.setDoOutput(true);
 
-            // Set up the headers
-            httpConnection
-                    .addRequestProperty("Content-Type", JSON_CONTENT_TYPE);
-            httpConnection.addRequestProperty("Content-Length",
-                    Integer.toString(aRequestContent.length));
+            // Set up the headers: the length is known, no need to let the
+            // connection buffer the content
+            httpConnection.addRequestProperty("Content-Type",
+                    REQUEST_CONTENT_TYPE);
+            httpConnection.setFixedLengthStreamingMode(aRequestContent.size());
+            httpConnection.addRequestProperty(
+                    HttpCompression.HEADER_ACCEPT_ENCODING,
+                    HttpCompression.ACCEPT_ENCODING);
 
             // Set POST data
-            httpConnection.getOutputStream().write(aRequestContent);
+            final OutputStream output = httpConnection.getOutputStream();
+            aRequestContent.writeTo(output);
+            output.close();
 
             // Wait for an answer
             final int responseCode = httpConnection.getResponseCode();
@@ -95,27 +148,38 @@ public class JabsorbHttpSession extends HTTPSession {
                         + " for URL " + pUrl);
             }
 
-            // Use a scanner to read the response content See here for more
-            // information:
-            // http://weblogs.java.net/blog/pat/archive/2004/10/stupid_scanner_1.html
-            scanner = new Scanner(connection.getInputStream());
-            scanner.useDelimiter("\\A");
-            return scanner.next();
+            // Parse the (decompressed) response content from the stream,
+            // without an intermediate string
+            reader = new InputStreamReader(
+                    HttpCompression.getInputStream(httpConnection),
+                    CHARSET_UTF8);
+            return new JSONObject(new JSONTokener(reader));
 
         } catch (final IOException e) {
+            // The connection can't be reused
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
+
             // Convert error class
             throw new ClientError(e);
 
+        } catch (final JSONException e) {
+            // Invalid response
+            throw new ClientError(e);
+
         } finally {
-            // In any case, free the connection
-            if (httpConnection != null) {
-                httpConnection.disconnect();
+            // Close the reader...
+            if (reader != null) {
+                try {
+                    reader.close();
+
+                } catch (final IOException e) {
+                    // Ignore: the connection will be drained anyway
+                }
             }
 
-            // ... and close the scanner
-            if (scanner != null) {
-                scanner.close();
-            }
+            // ... and give back the connection, keeping it alive
+            HttpConnectionPool.get().release(httpConnection);
         }
     }
 
@@ -128,14 +192,26 @@ public class JabsorbHttpSession extends HTTPSession {
     @Override
     public JSONObject sendAndReceive(final JSONObject aMessage) {
 
+        // Serialize the request in the buffer of the thread
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
         try {
-            // Get the result and parse it
-            final String result = getUrlPostResult(aMessage.toString()
-                    .getBytes());
-            return new JSONObject(result);
+            final Writer writer = new OutputStreamWriter(buffer, CHARSET_UTF8);
+            aMessage.write(writer);
+            writer.flush();
+
+            // Send the request and parse the result
+            return getUrlPostResult(buffer);
+
+        } catch (final IOException e) {
+            // Unsupported encoding
+            throw new ClientError(e);
 
         } catch (final JSONException e) {
+            // Error writing the request
             throw new ClientError(e);
+
+        } finally {
+            buffer.release();
         }
     }
 }
@@ -21,6 +21,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -179,14 +180,13 @@ public class MulticastDiscovery implements IExportEndpointListener,
             final String path = aEndpointPacket.getAccessPath();
             final int port = aEndpointPacket.getAccessPort();
 
-            for (final String uid : aEndpointPacket.getUIDs()) {
-                // Grab each endpoint
-                final ImportEndpoint endpoint = pDispatcherServlet
-                        .grabEndpoint(aSenderAddress, port, path, uid);
-                if (endpoint != null) {
-                    pRegistry.add(endpoint);
-                }
-            }
+            // Grab all the endpoints at once
+            final Collection<ImportEndpoint> endpoints = pDispatcherServlet
+                    .grabEndpoints(aSenderAddress, port, path,
+                            aEndpointPacket.getUIDs());
+
+            // Register them all at once
+            pRegistry.addAll(endpoints);
 
         } else if (IPacketConstants.EVENT_REMOVE.equals(event)) {
             // Endpoint removed
@@ -0,0 +1,242 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.dispatcher.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cohorte.remote.ExportEndpoint;
+import org.cohorte.remote.IExportsDispatcher;
+import org.cohorte.remote.utilities.HttpCompression;
+import org.json.JSONObject;
+
+/**
+ * Keeps the JSON form of the exported endpoints, encoded in UTF-8, until they
+ * are modified
+ * 
+ * @author Thomas Calmant
+ */
+class EndpointsCache {
+
+    /**
+     * A serialized content and its entity tag, with its compressed forms
+     */
+    static final class Entry {
+
+        /** UTF-8 JSON content */
+        private final byte[] pContent;
+
+        /** Content coding -&gt; Compressed content */
+        private final ConcurrentMap<String, byte[]> pEncoded = new ConcurrentHashMap<String, byte[]>();
+
+        /** HTTP entity tag of the content */
+        private final String pTag;
+
+        /** Version of the content */
+        private final long pVersion;
+
+        /**
+         * Sets up the entry
+         * 
+         * @param aVersion
+         *            Version of the content
+         * @param aTag
+         *            HTTP entity tag of the content
+         * @param aContent
+         *            UTF-8 JSON content
+         */
+        private Entry(final long aVersion, final String aTag,
+                final byte[] aContent) {
+
+            pVersion = aVersion;
+            pTag = aTag;
+            pContent = aContent;
+        }
+
+        /**
+         * @return the UTF-8 JSON content (must not be modified)
+         */
+        byte[] getContent() {
+
+            return pContent;
+        }
+
+        /**
+         * Returns the content compressed with the given coding, compressing
+         * it on first call
+         * 
+         * @param aEncoding
+         *            A content coding, or null for the raw content
+         * @return The (compressed) content (must not be modified)
+         * @throws IOException
+         *             Error compressing the content
+         */
+        byte[] getContent(final String aEncoding) throws IOException {
+
+            if (aEncoding == null) {
+                return pContent;
+            }
+
+            byte[] encoded = pEncoded.get(aEncoding);
+            if (encoded == null) {
+                encoded = HttpCompression.encode(pContent, pContent.length,
+                        aEncoding);
+                pEncoded.put(aEncoding, encoded);
+            }
+            return encoded;
+        }
+
+        /**
+         * @return the HTTP entity tag of the content, with its quotes
+         */
+        String getTag() {
+
+            return pTag;
+        }
+
+        /**
+         * Returns the HTTP entity tag of the content compressed with the
+         * given coding: each representation needs its own tag
+         * 
+         * @param aEncoding
+         *            A content coding, or null for the raw content
+         * @return The entity tag of the (compressed) content, with its quotes
+         */
+        String getTag(final String aEncoding) {
+
+            if (aEncoding == null) {
+                return pTag;
+            }
+
+            return pTag.substring(0, pTag.length() - 1) + "-" + aEncoding
+                    + "\"";
+        }
+    }
+
+    /** Charset of the JSON content */
+    static final String CHARSET_UTF8 = "UTF-8";
+
+    /**
+     * Identifies this cache instance in the tags of the endpoints list, as the
+     * generation restarts from 0 with the framework
+     */
+    private final String pEpoch = Long.toString(System.currentTimeMillis(),
+            Character.MAX_RADIX);
+
+    /** Endpoint UID -&gt; Serialized endpoint */
+    private final ConcurrentMap<String, Entry> pEndpoints = new ConcurrentHashMap<String, Entry>();
+
+    /** Generation of the endpoints set, incremented on each modification */
+    private final AtomicLong pGeneration = new AtomicLong();
+
+    /** Serialized list of endpoints, versioned by generation */
+    private volatile Entry pList;
+
+    /**
+     * Returns the JSON form of the given endpoint
+     * 
+     * @param aEndpoint
+     *            An exported endpoint
+     * @return The UTF-8 JSON description of the endpoint, tagged with the
+     *         endpoint UID and version
+     */
+    Entry getEndpoint(final ExportEndpoint aEndpoint) {
+
+        final String uid = aEndpoint.getUid();
+        final long version = aEndpoint.getVersion();
+        final Entry entry = pEndpoints.get(uid);
+        if (entry != null && entry.pVersion == version) {
+            return entry;
+        }
+
+        final Entry newEntry = new Entry(version, "\"" + uid + "-" + version
+                + "\"", toBytes(new JSONObject(aEndpoint.toMap()).toString()));
+        pEndpoints.put(uid, newEntry);
+        return newEntry;
+    }
+
+    /**
+     * Returns the JSON array of all the endpoints of the given dispatcher
+     * 
+     * @param aDispatcher
+     *            The exported endpoints dispatcher
+     * @return The UTF-8 JSON array of endpoints, tagged with the generation
+     *         of the endpoints set
+     */
+    Entry getEndpoints(final IExportsDispatcher aDispatcher) {
+
+        // Read the generation before the endpoints
+        final long generation = pGeneration.get();
+        final Entry list = pList;
+        if (list != null && list.pVersion == generation) {
+            return list;
+        }
+
+        // Concatenate the serialized endpoints
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write('[');
+        boolean first = true;
+        for (final ExportEndpoint endpoint : aDispatcher.getEndpoints()) {
+            if (!first) {
+                output.write(',');
+            }
+            first = false;
+
+            final byte[] content = getEndpoint(endpoint).pContent;
+            output.write(content, 0, content.length);
+        }
+        output.write(']');
+
+        final Entry newList = new Entry(generation, "\"" + pEpoch + "-"
+                + generation + "\"", output.toByteArray());
+        pList = newList;
+        return newList;
+    }
+
+    /**
+     * Forgets the JSON form of an endpoint and of the endpoints list
+     * 
+     * @param aUid
+     *            UID of the modified endpoint
+     */
+    void invalidate(final String aUid) {
+
+        pEndpoints.remove(aUid);
+        pGeneration.incrementAndGet();
+    }
+
+    /**
+     * Encodes the given string in UTF-8
+     * 
+     * @param aString
+     *            A string
+     * @return The UTF-8 bytes of the string
+     */
+    static byte[] toBytes(final String aString) {
+
+        try {
+            return aString.getBytes(CHARSET_UTF8);
+
+        } catch (final UnsupportedEncodingException ex) {
+            // Should never happen
+            throw new IllegalStateException("UTF-8 is not supported", ex);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.dispatcher.servlet;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded log of the modifications of the exported endpoints, used by peers
+ * to catch up without fetching all the endpoints
+ * 
+ * @author Thomas Calmant
+ */
+class EndpointsChangeLog {
+
+    /**
+     * A modification of an endpoint
+     */
+    static final class Change {
+
+        /** Kind of modification */
+        private final String pEvent;
+
+        /** Sequence number of the modification */
+        private final long pSequence;
+
+        /** UID of the endpoint */
+        private final String pUid;
+
+        /**
+         * Sets up the bean
+         * 
+         * @param aSequence
+         *            Sequence number of the modification
+         * @param aEvent
+         *            Kind of modification
+         * @param aUid
+         *            UID of the endpoint
+         */
+        private Change(final long aSequence, final String aEvent,
+                final String aUid) {
+
+            pSequence = aSequence;
+            pEvent = aEvent;
+            pUid = aUid;
+        }
+
+        /**
+         * @return the kind of modification
+         */
+        String getEvent() {
+
+            return pEvent;
+        }
+
+        /**
+         * @return the sequence number of the modification
+         */
+        long getSequence() {
+
+            return pSequence;
+        }
+
+        /**
+         * @return the UID of the endpoint
+         */
+        String getUid() {
+
+            return pUid;
+        }
+    }
+
+    /** Endpoint added */
+    static final String EVENT_ADD = "add";
+
+    /** Endpoint removed */
+    static final String EVENT_REMOVE = "remove";
+
+    /** Endpoint updated */
+    static final String EVENT_UPDATE = "update";
+
+    /** Maximum number of kept modifications */
+    private int pCapacity = 1024;
+
+    /** Kept modifications, oldest first */
+    private final Deque<Change> pChanges = new ArrayDeque<Change>();
+
+    /**
+     * Identifies this log instance, as the sequence restarts from 0 with the
+     * framework
+     */
+    private final String pEpoch = Long.toString(System.currentTimeMillis(),
+            Character.MAX_RADIX);
+
+    /** Sequence number of the last modification */
+    private long pSequence;
+
+    /** Sequence number of the last forgotten modification */
+    private long pTruncated;
+
+    /**
+     * Returns the modifications made after the given sequence number, with
+     * only the last modification of each endpoint
+     * 
+     * @param aSequence
+     *            Last sequence number known by the peer
+     * @return The modifications, in sequence order, or null if some of them
+     *         have been forgotten or if the sequence number is unknown
+     */
+    synchronized Collection<Change> getChangesSince(final long aSequence) {
+
+        if (aSequence < pTruncated || aSequence > pSequence) {
+            // Full resynchronization needed
+            return null;
+        }
+
+        final Map<String, Change> changes = new LinkedHashMap<String, Change>();
+        for (final Change change : pChanges) {
+            if (change.pSequence <= aSequence) {
+                continue;
+            }
+
+            Change merged = change;
+            final Change previous = changes.remove(change.pUid);
+            if (previous != null && EVENT_ADD.equals(previous.pEvent)
+                    && EVENT_UPDATE.equals(change.pEvent)) {
+                // Still unknown to the peer
+                merged = new Change(change.pSequence, EVENT_ADD, change.pUid);
+            }
+
+            // Keep the changes in order of their last modification
+            changes.put(change.pUid, merged);
+        }
+
+        return changes.values();
+    }
+
+    /**
+     * @return the identifier of this log instance
+     */
+    String getEpoch() {
+
+        return pEpoch;
+    }
+
+    /**
+     * @return the sequence number of the last modification
+     */
+    synchronized long getSequence() {
+
+        return pSequence;
+    }
+
+    /**
+     * Stores a modification, forgetting the oldest one if the log is full
+     * 
+     * @param aEvent
+     *            Kind of modification
+     * @param aUid
+     *            UID of the endpoint
+     */
+    synchronized void record(final String aEvent, final String aUid) {
+
+        pChanges.addLast(new Change(++pSequence, aEvent, aUid));
+        trim();
+    }
+
+    /**
+     * Sets the maximum number of kept modifications
+     * 
+     * @param aCapacity
+     *            Maximum number of kept modifications
+     */
+    synchronized void setCapacity(final int aCapacity) {
+
+        pCapacity = Math.max(1, aCapacity);
+        trim();
+    }
+
+    /**
+     * Forgets the oldest modifications until the log fits its capacity
+     */
+    private void trim() {
+
+        while (pChanges.size() > pCapacity) {
+            pTruncated = pChanges.removeFirst().pSequence;
+        }
+    }
+}
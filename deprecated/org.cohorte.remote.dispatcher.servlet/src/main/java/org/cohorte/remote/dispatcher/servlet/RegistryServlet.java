@@ -15,10 +15,11 @@
  */
 package org.cohorte.remote.dispatcher.servlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.Collection;
 import java.util.LinkedList;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -28,7 +29,9 @@ import javax.servlet.http.HttpServletResponse;
 import org.cohorte.remote.ExportEndpoint;
 import org.cohorte.remote.IExportsDispatcher;
 import org.cohorte.remote.IImportsRegistry;
+import org.cohorte.remote.ImportEndpoint;
 import org.cohorte.remote.dispatcher.beans.PelixEndpointDescription;
+import org.cohorte.remote.utilities.HttpCompression;
 import org.cohorte.remote.utilities.RSUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -41,12 +44,42 @@ import org.json.JSONObject;
  */
 class RegistryServlet extends HttpServlet {
 
+    /** Entity tag response header */
+    static final String HEADER_ETAG = "ETag";
+
+    /** Endpoints change log epoch response header */
+    static final String HEADER_ENDPOINTS_EPOCH = "X-Endpoints-Epoch";
+
+    /** Endpoints change log sequence response header */
+    static final String HEADER_ENDPOINTS_VERSION = "X-Endpoints-Version";
+
+    /** Conditional request header */
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    /** Change log epoch query parameter */
+    static final String PARAM_EPOCH = "epoch";
+
+    /** Change log sequence query parameter */
+    static final String PARAM_SINCE = "since";
+
     /** JSON MIME-type */
     private static final String JSON_TYPE = "application/json";
 
+    /** Path of the endpoints batch request */
+    static final String PATH_BATCH = "/batch";
+
     /** Serial version UID */
     private static final long serialVersionUID = 1L;
 
+    /** Serialized endpoints */
+    private final EndpointsCache pCache;
+
+    /** Modifications of the exported endpoints */
+    private final EndpointsChangeLog pChanges;
+
+    /** Minimum size of a compressed response, negative to disable compression */
+    private final int pCompressionThreshold;
+
     /** The exported services repository */
     private final IExportsDispatcher pDispatcher;
 
@@ -60,12 +93,23 @@ class RegistryServlet extends HttpServlet {
      *            Registry of imported endpoints
      * @param aDispatcher
      *            The export endpoints dispatcher
+     * @param aCache
+     *            The serialized endpoints cache
+     * @param aChanges
+     *            The exported endpoints change log
+     * @param aCompressionThreshold
+     *            Minimum size of a response body to be compressed, in bytes
+     *            (negative to disable compression)
      */
     public RegistryServlet(final IImportsRegistry aRegistry,
-            final IExportsDispatcher aDispatcher) {
+            final IExportsDispatcher aDispatcher, final EndpointsCache aCache,
+            final EndpointsChangeLog aChanges, final int aCompressionThreshold) {
 
         pRegistry = aRegistry;
         pDispatcher = aDispatcher;
+        pCache = aCache;
+        pChanges = aChanges;
+        pCompressionThreshold = aCompressionThreshold;
     }
 
     /*
@@ -101,12 +145,19 @@ class RegistryServlet extends HttpServlet {
 
             } else {
                 // Send the response
-                sendEndpointDict(aResp, parts[1]);
+                sendEndpointDict(aReq, aResp, parts[1]);
             }
 
         } else if (parts[0].equals("endpoints")) {
-            // /endpoints
-            sendEndpoints(aResp);
+            final String since = aReq.getParameter(PARAM_SINCE);
+            if (since != null) {
+                // /endpoints?since=<version>[&epoch=<epoch>]
+                sendChanges(aReq, aResp, since);
+
+            } else {
+                // /endpoints
+                sendEndpoints(aReq, aResp);
+            }
 
         } else {
             // Unknown path
@@ -130,7 +181,14 @@ class RegistryServlet extends HttpServlet {
         // Get the body of the request
         final byte[] rawContent = RSUtils.inputStreamToBytes(req
                 .getInputStream());
-        final String strContent = new String(rawContent);
+        final String strContent = new String(rawContent,
+                EndpointsCache.CHARSET_UTF8);
+
+        if (PATH_BATCH.equals(req.getPathInfo())) {
+            // /batch: description of a set of endpoints
+            sendEndpointsBatch(req, resp, strContent);
+            return;
+        }
 
         try {
             // Parse it
@@ -138,6 +196,7 @@ class RegistryServlet extends HttpServlet {
 
             // Prepare the list of end points
             final String senderAddr = req.getRemoteAddr();
+            final Collection<ImportEndpoint> endpoints = new LinkedList<ImportEndpoint>();
             for (int i = 0; i < jsonEndpoints.length(); i++) {
                 final JSONObject jsonEndpoint = jsonEndpoints.getJSONObject(i);
 
@@ -146,10 +205,12 @@ class RegistryServlet extends HttpServlet {
                         jsonEndpoint);
                 parsed.setServerAddress(senderAddr);
 
-                // Register it
-                pRegistry.add(parsed.toImportEndpoint());
+                endpoints.add(parsed.toImportEndpoint());
             }
 
+            // Register them
+            pRegistry.addAll(endpoints);
+
             // Success
             resp.setStatus(HttpServletResponse.SC_OK);
             resp.setHeader("Content-Type", "text/plain");
@@ -163,9 +224,148 @@ class RegistryServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Checks if the entity tag given in the If-None-Match header of the
+     * request matches the given one
+     * 
+     * @param aReq
+     *            Servlet request
+     * @param aTag
+     *            Current entity tag of the resource
+     * @return True if the client already has the current content
+     */
+    private boolean isNotModified(final HttpServletRequest aReq,
+            final String aTag) {
+
+        final String header = aReq.getHeader(HEADER_IF_NONE_MATCH);
+        if (header == null) {
+            return false;
+        }
+
+        for (final String tag : header.split(",")) {
+            final String trimmed = tag.trim();
+            if (trimmed.equals("*") || trimmed.equals(aTag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Selects the coding of a JSON response, according to its size and to
+     * the codings accepted by the client
+     * 
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response, which gets the "Vary" header if needed
+     * @param aLength
+     *            Size of the UTF-8 JSON content
+     * @return The content coding to use, or null to send the raw content
+     */
+    private String negotiate(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final int aLength) {
+
+        if (pCompressionThreshold < 0) {
+            // Compression disabled
+            return null;
+        }
+
+        // The body depends on the accepted encodings
+        aResp.setHeader(HttpCompression.HEADER_VARY,
+                HttpCompression.HEADER_ACCEPT_ENCODING);
+        if (aLength < pCompressionThreshold) {
+            return null;
+        }
+
+        return HttpCompression.negotiate(aReq
+                .getHeader(HttpCompression.HEADER_ACCEPT_ENCODING));
+    }
+
+    /**
+     * Sends the modifications of the endpoints made after the given sequence
+     * number, with only the last modification of each endpoint. If the
+     * modifications are unknown, the "full" entry of the result is true and
+     * the peer must get the whole content of the repository.
+     * 
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @param aSince
+     *            Last sequence number known by the peer
+     * @throws IOException
+     *             Error writing to the client
+     */
+    private void sendChanges(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final String aSince)
+            throws IOException {
+
+        final long since;
+        try {
+            since = Long.parseLong(aSince);
+
+        } catch (final NumberFormatException ex) {
+            aResp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid sequence number: " + aSince);
+            return;
+        }
+
+        // Read the sequence first: later changes can be sent twice, not lost
+        final String epoch = pChanges.getEpoch();
+        final long version = pChanges.getSequence();
+        final String peerEpoch = aReq.getParameter(PARAM_EPOCH);
+        Collection<EndpointsChangeLog.Change> changes = null;
+        if (peerEpoch == null || peerEpoch.equals(epoch)) {
+            changes = pChanges.getChangesSince(since);
+        }
+
+        try {
+            final JSONObject result = new JSONObject();
+            result.put("epoch", epoch);
+            result.put("version", version);
+            result.put("full", changes == null);
+
+            if (changes != null) {
+                final JSONArray jsonChanges = new JSONArray();
+                for (final EndpointsChangeLog.Change change : changes) {
+                    final JSONObject jsonChange = new JSONObject();
+                    jsonChange.put("seq", change.getSequence());
+                    jsonChange.put("uid", change.getUid());
+
+                    String event = change.getEvent();
+                    if (!EndpointsChangeLog.EVENT_REMOVE.equals(event)) {
+                        final ExportEndpoint endpoint = pDispatcher
+                                .getEndpoint(change.getUid());
+                        if (endpoint != null) {
+                            jsonChange.put("endpoint",
+                                    new JSONObject(endpoint.toMap()));
+                        } else {
+                            // Removed since then
+                            event = EndpointsChangeLog.EVENT_REMOVE;
+                        }
+                    }
+
+                    jsonChange.put("event", event);
+                    jsonChanges.put(jsonChange);
+                }
+                result.put("changes", jsonChanges);
+            }
+
+            writeJson(aReq, aResp, EndpointsCache.toBytes(result.toString()));
+
+        } catch (final JSONException ex) {
+            aResp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    "Error preparing the changes: " + ex);
+        }
+    }
+
     /**
      * Sends the representation of the end point matching the given ID
      * 
+     * @param aReq
+     *            Servlet request
      * @param aResp
      *            Servlet response
      * @param aEndpointUID
@@ -173,8 +373,9 @@ class RegistryServlet extends HttpServlet {
      * @throws IOException
      *             Error writing to the client
      */
-    private void sendEndpointDict(final HttpServletResponse aResp,
-            final String aEndpointUID) throws IOException {
+    private void sendEndpointDict(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final String aEndpointUID)
+            throws IOException {
 
         // Get the requested endpoint
         final ExportEndpoint endpoint = pDispatcher.getEndpoint(aEndpointUID);
@@ -185,61 +386,168 @@ class RegistryServlet extends HttpServlet {
             return;
         }
 
-        // Convert it to JSON
-        final JSONObject jsonContent = new JSONObject(endpoint.toMap());
-
-        // Send
-        sendJson(aResp, jsonContent.toString());
+        // Send its cached JSON form
+        sendJson(aReq, aResp, pCache.getEndpoint(endpoint));
     }
 
     /**
      * Sends the whole content of the repository
      * 
+     * @param aReq
+     *            Servlet request
      * @param aResp
      *            Servlet response
      * @throws IOException
      *             Error writing to the client
      */
-    private void sendEndpoints(final HttpServletResponse aResp)
+    private void sendEndpoints(final HttpServletRequest aReq,
+            final HttpServletResponse aResp) throws IOException {
+
+        // Tell the peer where to start its next synchronization
+        aResp.setHeader(HEADER_ENDPOINTS_EPOCH, pChanges.getEpoch());
+        aResp.setHeader(HEADER_ENDPOINTS_VERSION,
+                Long.toString(pChanges.getSequence()));
+
+        // Send the cached JSON form of our endpoints
+        sendJson(aReq, aResp, pCache.getEndpoints(pDispatcher));
+    }
+
+    /**
+     * Sends the representation of the end points matching the given IDs, as a
+     * JSON array. Unknown endpoints are ignored.
+     * 
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @param aContent
+     *            The request body: a JSON array of endpoints UIDs
+     * @throws IOException
+     *             Error writing to the client
+     */
+    private void sendEndpointsBatch(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final String aContent)
             throws IOException {
 
-        // Get our endpoints
-        final ExportEndpoint[] endpoints = pDispatcher.getEndpoints();
+        final JSONArray uids;
+        try {
+            uids = new JSONArray(aContent);
 
-        // Convert them to maps
-        final List<Object> endpointsMaps = new LinkedList<Object>();
-        for (final ExportEndpoint endpoint : endpoints) {
-            endpointsMaps.add(endpoint.toMap());
+        } catch (final JSONException ex) {
+            aResp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid list of endpoints UIDs: " + ex);
+            return;
         }
 
-        // Convert to JSON
-        final JSONArray jsonContent = new JSONArray(endpointsMaps);
+        // Concatenate the cached JSON form of the endpoints
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        output.write('[');
+        boolean first = true;
+        for (int i = 0; i < uids.length(); i++) {
+            final ExportEndpoint endpoint = pDispatcher.getEndpoint(uids
+                    .optString(i));
+            if (endpoint == null) {
+                // Unknown endpoint
+                continue;
+            }
 
-        // Send
-        sendJson(aResp, jsonContent.toString());
+            if (!first) {
+                output.write(',');
+            }
+            first = false;
+            output.write(pCache.getEndpoint(endpoint).getContent());
+        }
+        output.write(']');
+
+        writeJson(aReq, aResp, output.toByteArray());
     }
 
     /**
-     * Writes a JSON response
+     * Writes a JSON response, or a "304 Not Modified" one if the client
+     * already has the content. The compressed forms of the content are kept in
+     * the entry, each with its own entity tag.
      * 
+     * @param aReq
+     *            Servlet request
      * @param aResp
      *            Servlet response
-     * @param aJsonString
-     *            JSON string
+     * @param aEntry
+     *            Tagged UTF-8 JSON content
      * @throws IOException
      *             Error writing to the client
      */
-    private void sendJson(final HttpServletResponse aResp,
-            final String aJsonString) throws IOException {
+    private void sendJson(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final EndpointsCache.Entry aEntry)
+            throws IOException {
+
+        final String encoding = negotiate(aReq, aResp,
+                aEntry.getContent().length);
+        final String tag = aEntry.getTag(encoding);
+        aResp.setHeader(HEADER_ETAG, tag);
+        if (isNotModified(aReq, tag)) {
+            // Nothing to send
+            aResp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        writeContent(aResp, aEntry.getContent(encoding), encoding);
+    }
+
+    /**
+     * Writes a "200 OK" JSON response
+     * 
+     * @param aResp
+     *            Servlet response
+     * @param aContent
+     *            UTF-8 JSON content, compressed with the given coding
+     * @param aEncoding
+     *            The content coding, or null for a raw content
+     * @throws IOException
+     *             Error writing to the client
+     */
+    private void writeContent(final HttpServletResponse aResp,
+            final byte[] aContent, final String aEncoding) throws IOException {
 
         // Setup headers
         aResp.setStatus(HttpServletResponse.SC_OK);
         aResp.setContentType(JSON_TYPE);
-        aResp.setContentLength(aJsonString.length());
+        aResp.setCharacterEncoding(EndpointsCache.CHARSET_UTF8);
+        if (aEncoding != null) {
+            aResp.setHeader(HttpCompression.HEADER_CONTENT_ENCODING,
+                    aEncoding);
+        }
+        aResp.setContentLength(aContent.length);
 
         // Write the content
-        final PrintWriter writer = aResp.getWriter();
-        writer.print(aJsonString);
-        writer.flush();
+        final OutputStream output = aResp.getOutputStream();
+        output.write(aContent);
+        output.flush();
+    }
+
+    /**
+     * Writes a JSON response, compressed if it is large enough and if the
+     * client accepts it
+     * 
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @param aContent
+     *            UTF-8 JSON content
+     * @throws IOException
+     *             Error writing to the client
+     */
+    private void writeJson(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final byte[] aContent)
+            throws IOException {
+
+        final String encoding = negotiate(aReq, aResp, aContent.length);
+        if (encoding == null) {
+            writeContent(aResp, aContent, null);
+
+        } else {
+            writeContent(aResp, HttpCompression.encode(aContent,
+                    aContent.length, encoding), encoding);
+        }
     }
 }
@@ -21,9 +21,13 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -38,10 +42,13 @@ import org.apache.felix.ipojo.annotations.ServiceController;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.cohorte.remote.ExportEndpoint;
 import org.cohorte.remote.IDispatcherServlet;
+import org.cohorte.remote.IExportEndpointListener;
 import org.cohorte.remote.IExportsDispatcher;
 import org.cohorte.remote.IImportsRegistry;
 import org.cohorte.remote.ImportEndpoint;
 import org.cohorte.remote.dispatcher.beans.PelixEndpointDescription;
+import org.cohorte.remote.utilities.HttpCompression;
+import org.cohorte.remote.utilities.HttpConnectionPool;
 import org.cohorte.remote.utilities.RSUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -55,9 +62,63 @@ import org.osgi.service.log.LogService;
  * @author Thomas Calmant
  */
 @Component(name = "cohorte-remote-dispatcher-servlet-factory")
-@Provides(specifications = IDispatcherServlet.class)
+@Provides(specifications = { IDispatcherServlet.class,
+        IExportEndpointListener.class })
 @Instantiate(name = "cohorte-remote-dispatcher-servlet")
-public class ServletWrapper implements IDispatcherServlet {
+public class ServletWrapper implements IDispatcherServlet,
+        IExportEndpointListener {
+
+    /**
+     * A peer dispatcher servlet responded to a request with an error status
+     */
+    private static final class StatusException extends IOException {
+
+        /** Serialization version UID */
+        private static final long serialVersionUID = 1L;
+
+        /** The HTTP status of the response */
+        private final int pStatus;
+
+        /**
+         * Sets up the exception
+         * 
+         * @param aUrl
+         *            The requested URL
+         * @param aStatus
+         *            The HTTP status of the response
+         */
+        private StatusException(final URL aUrl, final int aStatus) {
+
+            super(aUrl + " responded with code " + aStatus);
+            pStatus = aStatus;
+        }
+    }
+
+    /**
+     * A response of a peer dispatcher servlet and its entity tag
+     */
+    private static final class TaggedResponse {
+
+        /** Response content */
+        private final String pContent;
+
+        /** Entity tag of the content */
+        private final String pTag;
+
+        /**
+         * Sets up the bean
+         * 
+         * @param aTag
+         *            Entity tag of the content
+         * @param aContent
+         *            Response content
+         */
+        private TaggedResponse(final String aTag, final String aContent) {
+
+            pTag = aTag;
+            pContent = aContent;
+        }
+    }
 
     /** HTTP service port property */
     private static final String HTTP_SERVICE_PORT = "org.osgi.service.http.port";
@@ -65,6 +126,23 @@ public class ServletWrapper implements IDispatcherServlet {
     /** HTTPService dependency ID */
     private static final String IPOJO_ID_HTTP = "http.service";
 
+    /** Maximum number of peer responses kept for conditional requests */
+    private static final int RESPONSES_CACHE_SIZE = 256;
+
+    /** Serialized endpoints, invalidated by the dispatcher events */
+    private final EndpointsCache pCache = new EndpointsCache();
+
+    /** Modifications of the exported endpoints */
+    private final EndpointsChangeLog pChanges = new EndpointsChangeLog();
+
+    /** Minimum size of a compressed response, negative to disable it */
+    @Property(name = "compression.threshold", value = "1024")
+    private int pCompressionThreshold;
+
+    /** Maximum number of modifications kept for peers synchronization */
+    @Property(name = "changes.size", value = "1024")
+    private int pChangesSize;
+
     /** Exported endpoints dispatcher */
     @Requires
     private IExportsDispatcher pDispatcher;
@@ -80,12 +158,30 @@ public class ServletWrapper implements IDispatcherServlet {
     @Requires
     private LogService pLogger;
 
+    /** Peers (address:port) which don't support batch requests */
+    private final ConcurrentMap<String, Boolean> pNoBatchPeers = new ConcurrentHashMap<String, Boolean>();
+
     /** Imported services registry */
     @Requires
     private IImportsRegistry pRegistry;
 
-    /** The service controller */
-    @ServiceController
+    /** URL -&gt; Last tagged response of a peer (LRU) */
+    private final Map<String, TaggedResponse> pResponses = new LinkedHashMap<String, TaggedResponse>(
+            16, 0.75f, true) {
+
+        /** Serial version UID */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<String, TaggedResponse> aEldest) {
+
+            return size() > RESPONSES_CACHE_SIZE;
+        }
+    };
+
+    /** The service controller (the endpoints listener is always provided) */
+    @ServiceController(specification = IDispatcherServlet.class)
     private boolean pServiceController;
 
     /** The servlet object */
@@ -125,6 +221,51 @@ public class ServletWrapper implements IDispatcherServlet {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointRemoved(org.cohorte
+     * .remote.ExportEndpoint)
+     */
+    @Override
+    public void endpointRemoved(final ExportEndpoint aEndpoint) {
+
+        pCache.invalidate(aEndpoint.getUid());
+        pChanges.record(EndpointsChangeLog.EVENT_REMOVE, aEndpoint.getUid());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointsAdded(org.cohorte
+     * .remote.ExportEndpoint[])
+     */
+    @Override
+    public void endpointsAdded(final ExportEndpoint[] aEndpoints) {
+
+        for (final ExportEndpoint endpoint : aEndpoints) {
+            pCache.invalidate(endpoint.getUid());
+            pChanges.record(EndpointsChangeLog.EVENT_ADD, endpoint.getUid());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointUpdated(org.cohorte
+     * .remote.ExportEndpoint, java.util.Map)
+     */
+    @Override
+    public void endpointUpdated(final ExportEndpoint aEndpoint,
+            final Map<String, Object> aOldProperties) {
+
+        pCache.invalidate(aEndpoint.getUid());
+        pChanges.record(EndpointsChangeLog.EVENT_UPDATE, aEndpoint.getUid());
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -148,7 +289,9 @@ public class ServletWrapper implements IDispatcherServlet {
     }
 
     /**
-     * Returns the response of a HTTP server, or throws an exception
+     * Returns the response of a HTTP server, or throws an exception. The last
+     * tagged response of each URL is kept: the request is conditional and the
+     * kept response is returned if the content didn't change.
      * 
      * @param aAddress
      *            Server address
@@ -173,14 +316,34 @@ public class ServletWrapper implements IDispatcherServlet {
             return null;
         }
 
+        // Look for a previous response
+        final String key = url.toString();
+        final TaggedResponse previous;
+        synchronized (pResponses) {
+            previous = pResponses.get(key);
+        }
+
         // Open the connection
         HttpURLConnection httpConnection = null;
         try {
-            httpConnection = (HttpURLConnection) url.openConnection();
+            httpConnection = HttpConnectionPool.get().open(url);
+            httpConnection.setRequestProperty(
+                    HttpCompression.HEADER_ACCEPT_ENCODING,
+                    HttpCompression.ACCEPT_ENCODING);
+            if (previous != null) {
+                httpConnection.setRequestProperty(
+                        RegistryServlet.HEADER_IF_NONE_MATCH, previous.pTag);
+            }
             httpConnection.connect();
 
             // Flush the request
             final int responseCode = httpConnection.getResponseCode();
+            if (responseCode == HttpServletResponse.SC_NOT_MODIFIED
+                    && previous != null) {
+                // Content didn't change
+                return previous.pContent;
+            }
+
             if (responseCode != HttpServletResponse.SC_OK) {
                 // Incorrect answer
                 pLogger.log(LogService.LOG_WARNING, "Error: " + url
@@ -189,21 +352,36 @@ public class ServletWrapper implements IDispatcherServlet {
             }
 
             // Get the response content
-            final byte[] rawResult = RSUtils.inputStreamToBytes(httpConnection
-                    .getInputStream());
+            final byte[] rawResult = RSUtils.inputStreamToBytes(HttpCompression
+                    .getInputStream(httpConnection));
 
             // Construct corresponding string
-            return new String(rawResult);
+            final String content = new String(rawResult,
+                    EndpointsCache.CHARSET_UTF8);
+
+            // Keep it for the next requests
+            final String tag = httpConnection
+                    .getHeaderField(RegistryServlet.HEADER_ETAG);
+            synchronized (pResponses) {
+                if (tag != null) {
+                    pResponses.put(key, new TaggedResponse(tag, content));
+                } else {
+                    pResponses.remove(key);
+                }
+            }
+
+            return content;
 
         } catch (final IOException ex) {
             // Connection error
             pLogger.log(LogService.LOG_ERROR,
                     "Error requesting information from " + url.toString(), ex);
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
 
         } finally {
-            if (httpConnection != null) {
-                httpConnection.disconnect();
-            }
+            // Keep the connection alive
+            HttpConnectionPool.get().release(httpConnection);
         }
 
         return null;
@@ -251,6 +429,84 @@ public class ServletWrapper implements IDispatcherServlet {
         return null;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.cohorte.remote.IDispatcherServlet#grabEndpoints(java.net.InetAddress,
+     * int, java.lang.String, java.lang.String[])
+     */
+    @Override
+    public Collection<ImportEndpoint> grabEndpoints(final InetAddress aAddress,
+            final int aPort, final String aPath, final String[] aEndpointsUIDs) {
+
+        final Collection<ImportEndpoint> endpoints = new LinkedList<ImportEndpoint>();
+        final String peer = aAddress.getHostAddress() + ":" + aPort;
+        if (aEndpointsUIDs.length > 1 && !pNoBatchPeers.containsKey(peer)) {
+            // Ask all the endpoints at once
+            String rawResponse = null;
+            try {
+                rawResponse = postData(aAddress, aPort, aPath
+                        + RegistryServlet.PATH_BATCH,
+                        EndpointsCache.toBytes(new JSONArray(Arrays
+                                .asList(aEndpointsUIDs)).toString()));
+
+            } catch (final StatusException ex) {
+                if (ex.pStatus == HttpURLConnection.HTTP_NOT_FOUND
+                        || ex.pStatus == HttpURLConnection.HTTP_BAD_METHOD) {
+                    // Batch request not supported by the peer
+                    pNoBatchPeers.put(peer, Boolean.TRUE);
+
+                } else {
+                    // Server error: try one endpoint at a time this time only
+                    pLogger.log(LogService.LOG_WARNING,
+                            "Error requesting endpoints batch from " + peer
+                                    + ": " + ex);
+                }
+
+            } catch (final IOException ex) {
+                // Connection error
+                pLogger.log(LogService.LOG_ERROR,
+                        "Error requesting endpoints from " + peer, ex);
+                return endpoints;
+            }
+
+            if (rawResponse != null) {
+                try {
+                    final JSONArray rawEndpoints = new JSONArray(rawResponse);
+                    for (int i = 0; i < rawEndpoints.length(); i++) {
+                        // Convert the result
+                        final PelixEndpointDescription endpoint = new PelixEndpointDescription(
+                                rawEndpoints.getJSONObject(i));
+                        endpoint.setServerAddress(aAddress.getHostAddress());
+                        endpoints.add(endpoint.toImportEndpoint());
+                    }
+
+                    return endpoints;
+
+                } catch (final JSONException ex) {
+                    // Invalid response: try one endpoint at a time
+                    pLogger.log(LogService.LOG_WARNING,
+                            "Invalid response from the server " + peer
+                                    + " for end points batch\n" + rawResponse,
+                            ex);
+                    endpoints.clear();
+                }
+            }
+        }
+
+        // One request per endpoint
+        for (final String uid : aEndpointsUIDs) {
+            final ImportEndpoint endpoint = grabEndpoint(aAddress, aPort,
+                    aPath, uid);
+            if (endpoint != null) {
+                endpoints.add(endpoint);
+            }
+        }
+
+        return endpoints;
+    }
+
     /**
      * Component invalidated
      */
@@ -265,6 +521,84 @@ public class ServletWrapper implements IDispatcherServlet {
         pLogger.log(LogService.LOG_INFO, "Dispatcher servlet gone");
     }
 
+    /**
+     * Sends a JSON POST request to a HTTP server
+     * 
+     * @param aAddress
+     *            Server address
+     * @param aPort
+     *            Server port
+     * @param aPath
+     *            Request URI
+     * @param aData
+     *            UTF-8 JSON request body
+     * @return The response of the server
+     * @throws StatusException
+     *             The server didn't answer with a "200 OK"
+     * @throws IOException
+     *             Error forging the URL or communicating with the server
+     */
+    private String postData(final InetAddress aAddress, final int aPort,
+            final String aPath, final byte[] aData) throws IOException {
+
+        final URL url = new URL("http", aAddress.getHostAddress(), aPort,
+                aPath);
+
+        HttpURLConnection httpConnection = null;
+        try {
+            httpConnection = HttpConnectionPool.get().open(url);
+
+            // POST message
+            httpConnection.setRequestMethod("POST");
+            httpConnection.setUseCaches(false);
+            httpConnection.setDoInput(true);
+            httpConnection.setDoOutput(true);
+
+            // Headers
+            httpConnection.setRequestProperty("Content-Type",
+                    "application/json; charset=" + EndpointsCache.CHARSET_UTF8);
+            httpConnection.setRequestProperty(
+                    HttpCompression.HEADER_ACCEPT_ENCODING,
+                    HttpCompression.ACCEPT_ENCODING);
+
+            // After fields, before content
+            httpConnection.connect();
+
+            final OutputStream outStream = httpConnection.getOutputStream();
+            try {
+                outStream.write(aData);
+                outStream.flush();
+
+            } finally {
+                outStream.close();
+            }
+
+            // Flush the request
+            final int responseCode = httpConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new StatusException(url, responseCode);
+            }
+
+            return new String(RSUtils.inputStreamToBytes(HttpCompression
+                    .getInputStream(httpConnection)),
+                    EndpointsCache.CHARSET_UTF8);
+
+        } catch (final StatusException ex) {
+            // The connection is still valid
+            throw ex;
+
+        } catch (final IOException ex) {
+            // Connection error
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
+            throw ex;
+
+        } finally {
+            // Keep the connection alive
+            HttpConnectionPool.get().release(httpConnection);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -276,14 +610,8 @@ public class ServletWrapper implements IDispatcherServlet {
     public void sendDiscovered(final String aHost, final int aPort,
             final String aPath) {
 
-        // Prepare our endpoints
-        final Collection<Map<String, Object>> endpointsMaps = new LinkedList<Map<String, Object>>();
-        for (final ExportEndpoint endpoint : pDispatcher.getEndpoints()) {
-            endpointsMaps.add(endpoint.toMap());
-        }
-
-        // Convert the list to JSON
-        final String data = new JSONArray(endpointsMaps).toString();
+        // Get the JSON form of our endpoints
+        final byte[] data = pCache.getEndpoints(pDispatcher).getContent();
 
         // Prepare the path to the servlet endpoints
         final StringBuilder servletPath = new StringBuilder(aPath);
@@ -305,7 +633,7 @@ public class ServletWrapper implements IDispatcherServlet {
         // Send a POST request
         HttpURLConnection httpConnection = null;
         try {
-            httpConnection = (HttpURLConnection) url.openConnection();
+            httpConnection = HttpConnectionPool.get().open(url);
 
             // POST message
             httpConnection.setRequestMethod("POST");
@@ -315,7 +643,7 @@ public class ServletWrapper implements IDispatcherServlet {
 
             // Headers
             httpConnection.setRequestProperty("Content-Type",
-                    "application/json");
+                    "application/json; charset=" + EndpointsCache.CHARSET_UTF8);
 
             // After fields, before content
             httpConnection.connect();
@@ -324,7 +652,7 @@ public class ServletWrapper implements IDispatcherServlet {
             final OutputStream outStream = httpConnection.getOutputStream();
 
             try {
-                outStream.write(data.getBytes());
+                outStream.write(data);
                 outStream.flush();
 
             } finally {
@@ -347,12 +675,12 @@ public class ServletWrapper implements IDispatcherServlet {
         } catch (final IOException ex) {
             pLogger.log(LogService.LOG_ERROR,
                     "Error sending the 'discovered' packet: " + ex, ex);
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
 
         } finally {
-            // Clean up
-            if (httpConnection != null) {
-                httpConnection.disconnect();
-            }
+            // Keep the connection alive
+            HttpConnectionPool.get().release(httpConnection);
         }
     }
 
@@ -366,7 +694,9 @@ public class ServletWrapper implements IDispatcherServlet {
         pServiceController = false;
 
         // Set up the servlet
-        pServlet = new RegistryServlet(pRegistry, pDispatcher);
+        pChanges.setCapacity(pChangesSize);
+        pServlet = new RegistryServlet(pRegistry, pDispatcher, pCache,
+                pChanges, pCompressionThreshold);
         try {
             pHttpService.registerServlet(pServletPath, pServlet, null, null);
 
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Base invocation handler of the proxies of the services imported with the
+ * binary transports: encodes the calls and decodes the responses
+ *
+ * @author Thomas Calmant
+ */
+abstract class AbstractBinaryProxy implements InvocationHandler {
+
+    /** The codec of the calls */
+    protected final BinaryCodec pCodec;
+
+    /** Method -&gt; Signature sent in the calls */
+    private final ConcurrentMap<Method, String> pSignatures = new ConcurrentHashMap<Method, String>();
+
+    /**
+     * Sets up the handler
+     *
+     * @param aCodec
+     *            The codec of the calls
+     */
+    protected AbstractBinaryProxy(final BinaryCodec aCodec) {
+
+        pCodec = aCodec;
+    }
+
+    /**
+     * Checks if the given method declares the given exception
+     *
+     * @param aMethod
+     *            A method
+     * @param aException
+     *            An exception class
+     * @return True if the exception can be thrown by the method
+     */
+    private static boolean isDeclared(final Method aMethod,
+            final Class<?> aException) {
+
+        if (RuntimeException.class.isAssignableFrom(aException)
+                || Error.class.isAssignableFrom(aException)) {
+            // Unchecked
+            return true;
+        }
+
+        for (final Class<?> declared : aMethod.getExceptionTypes()) {
+            if (declared.isAssignableFrom(aException)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the signature identifying the given method in the calls
+     *
+     * @param aMethod
+     *            A method
+     * @return The signature of the method
+     */
+    private String getSignature(final Method aMethod) {
+
+        String signature = pSignatures.get(aMethod);
+        if (signature == null) {
+            signature = BinaryEndpoint.getSignature(aMethod);
+            pSignatures.put(aMethod, signature);
+        }
+        return signature;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     * java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(final Object aProxy, final Method aMethod,
+            final Object[] aArgs) throws Throwable {
+
+        // Handle the methods of Object locally
+        if (aMethod.getDeclaringClass() == Object.class) {
+            final String name = aMethod.getName();
+            if (name.equals("equals")) {
+                return Boolean.valueOf(aProxy == aArgs[0]);
+
+            } else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(aProxy));
+
+            } else {
+                return toString();
+            }
+        }
+
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
+        try {
+            // Write the request
+            final DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(buffer));
+            request.writeByte(IBinaryRpcConstants.VERSION);
+            BinaryCodec.writeString(request, getSignature(aMethod));
+            if (aArgs == null) {
+                request.writeInt(0);
+
+            } else {
+                request.writeInt(aArgs.length);
+                for (final Object arg : aArgs) {
+                    pCodec.writeValue(request, arg);
+                }
+            }
+            request.flush();
+
+            return send(aMethod, buffer);
+
+        } catch (final IOException ex) {
+            if (isDeclared(aMethod, ex.getClass())) {
+                throw ex;
+            }
+            throw new UndeclaredThrowableException(ex, "Error calling "
+                    + aMethod.getName() + " on " + this);
+
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Reads the response to a call
+     *
+     * @param aMethod
+     *            The called method
+     * @param aInput
+     *            The response input
+     * @return The result of the method
+     * @throws Throwable
+     *             The exception thrown by the remote method or a decoding
+     *             error
+     */
+    protected Object readResponse(final Method aMethod, final BinaryInput aInput)
+            throws Throwable {
+
+        if (aInput.readByte() == IBinaryRpcConstants.STATUS_OK) {
+            return pCodec.readValue(aInput);
+        }
+
+        throw toException(aMethod, BinaryCodec.readString(aInput),
+                BinaryCodec.readString(aInput));
+    }
+
+    /**
+     * Sends a request and reads its response, using
+     * {@link #readResponse(Method, BinaryInput)}
+     *
+     * @param aMethod
+     *            The called method
+     * @param aRequest
+     *            The encoded request
+     * @return The result of the method
+     * @throws Throwable
+     *             The exception thrown by the remote method or a
+     *             communication error
+     */
+    protected abstract Object send(Method aMethod, ThreadByteBuffer aRequest)
+            throws Throwable;
+
+    /**
+     * Converts the error returned by the server to an exception
+     *
+     * @param aMethod
+     *            The called method
+     * @param aClassName
+     *            Name of the remote exception class
+     * @param aMessage
+     *            Message of the remote exception
+     * @return The exception to throw
+     */
+    private Throwable toException(final Method aMethod,
+            final String aClassName, final String aMessage) {
+
+        try {
+            // Only rebuild declared exceptions and JDK ones
+            Class<?> clazz = null;
+            for (final Class<?> declared : aMethod.getExceptionTypes()) {
+                if (declared.getName().equals(aClassName)) {
+                    clazz = declared;
+                    break;
+                }
+            }
+
+            if (clazz == null) {
+                clazz = Class.forName(aClassName, false, null);
+            }
+
+            if (Throwable.class.isAssignableFrom(clazz)
+                    && isDeclared(aMethod, clazz)) {
+                return (Throwable) clazz.getConstructor(String.class)
+                        .newInstance(aMessage);
+            }
+
+        } catch (final Exception ex) {
+            // Unknown class or no constructor with a message
+        }
+
+        return new UndeclaredThrowableException(null, "Remote exception "
+                + aClassName + ": " + aMessage);
+    }
+}
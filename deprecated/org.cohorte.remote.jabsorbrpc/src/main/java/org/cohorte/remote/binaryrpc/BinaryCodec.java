@@ -0,0 +1,998 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compact binary encoding of the arguments and results of remote calls.
+ *
+ * Each value is preceded by a one-byte type tag. Strings are written as UTF-8
+ * bytes, and arrays of primitive types are written element by element,
+ * without boxing. Other objects ("beans") are written with their class name
+ * and their non-static, non-transient fields; they must have a constructor
+ * without argument to be read. Circular references can't be written.
+ *
+ * A codec only reads the classes reachable from the methods of the
+ * interfaces it is created for: their parameter and return types, their type
+ * arguments and the field types of the beans they use. Any other class name
+ * in a message is rejected, as are the values nested deeper than
+ * {@link #MAX_DEPTH} levels.
+ *
+ * @author Thomas Calmant
+ */
+class BinaryCodec {
+
+    /** Tag: array of objects */
+    private static final byte ARRAY = 30;
+
+    /** Classes always accepted as array components */
+    private static final Class<?>[] BASE_CLASSES = { Boolean.class,
+            Byte.class, Character.class, Date.class, Double.class,
+            Float.class, Integer.class, Long.class, Number.class,
+            Object.class, Short.class, String.class };
+
+    /** Tag: bean (class name and fields) */
+    private static final byte BEAN = 35;
+
+    /** Tag: Boolean.FALSE */
+    private static final byte BOOLEAN_FALSE = 2;
+
+    /** Tag: Boolean.TRUE */
+    private static final byte BOOLEAN_TRUE = 1;
+
+    /** Tag: boolean[] */
+    private static final byte BOOLEANS = 20;
+
+    /** Tag: Byte */
+    private static final byte BYTE = 3;
+
+    /** Tag: byte[] */
+    private static final byte BYTES = 21;
+
+    /** Tag: Character */
+    private static final byte CHAR = 9;
+
+    /** Charset of the strings */
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    /** Tag: char[] */
+    private static final byte CHARS = 27;
+
+    /** Tag: Date */
+    private static final byte DATE = 36;
+
+    /** Tag: Double */
+    private static final byte DOUBLE = 8;
+
+    /** Tag: double[] */
+    private static final byte DOUBLES = 26;
+
+    /** Tag: Enum constant */
+    private static final byte ENUM = 34;
+
+    /** Tag: Float */
+    private static final byte FLOAT = 7;
+
+    /** Tag: float[] */
+    private static final byte FLOATS = 25;
+
+    /** Tag: Integer */
+    private static final byte INT = 5;
+
+    /** Tag: int[] */
+    private static final byte INTS = 23;
+
+    /** Tag: List (or any collection which isn't a set) */
+    private static final byte LIST = 31;
+
+    /** Tag: Long */
+    private static final byte LONG = 6;
+
+    /** Tag: long[] */
+    private static final byte LONGS = 24;
+
+    /** Tag: Map */
+    private static final byte MAP = 33;
+
+    /** Maximum nesting depth of the read values */
+    private static final int MAX_DEPTH = 64;
+
+    /** Tag: null */
+    private static final byte NULL = 0;
+
+    /** Arrays of primitive types, to resolve arrays of arrays */
+    private static final Class<?>[] PRIMITIVE_ARRAYS = { boolean[].class,
+            byte[].class, char[].class, double[].class, float[].class,
+            int[].class, long[].class, short[].class };
+
+    /** Tag: Set */
+    private static final byte SET = 32;
+
+    /** Tag: Short */
+    private static final byte SHORT = 4;
+
+    /** Tag: short[] */
+    private static final byte SHORTS = 22;
+
+    /** Tag: String */
+    private static final byte STRING = 10;
+
+    /** Class name -&gt; accepted Class (filled by the constructor) */
+    private final Map<String, Class<?>> pClasses = new HashMap<String, Class<?>>();
+
+    /** Class -&gt; serialized fields (released with the codec) */
+    private final ConcurrentMap<Class<?>, Field[]> pFields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    /**
+     * Sets up the codec
+     *
+     * @param aInterfaces
+     *            The interfaces whose calls are encoded by this codec
+     */
+    BinaryCodec(final Class<?>[] aInterfaces) {
+
+        for (final Class<?> clazz : BASE_CLASSES) {
+            pClasses.put(clazz.getName(), clazz);
+        }
+
+        for (final Class<?> itf : aInterfaces) {
+            for (final Method method : itf.getMethods()) {
+                for (final Type type : method.getGenericParameterTypes()) {
+                    accept(type);
+                }
+                accept(method.getGenericReturnType());
+            }
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}
+     *
+     * @param aInput
+     *            The input
+     * @return The read string (can be null)
+     * @throws IOException
+     *             Error reading the input or invalid length
+     */
+    static String readString(final BinaryInput aInput) throws IOException {
+
+        final int length = aInput.readInt();
+        if (length == -1) {
+            return null;
+
+        } else if (length < 0 || length > aInput.remaining()) {
+            throw new IOException("Invalid string length: " + length);
+        }
+
+        final byte[] bytes = new byte[length];
+        aInput.readFully(bytes);
+        return new String(bytes, CHARSET_UTF8);
+    }
+
+    /**
+     * Writes a string as its length and its UTF-8 bytes
+     *
+     * @param aOutput
+     *            The output
+     * @param aString
+     *            A string (can be null)
+     * @throws IOException
+     *             Error writing the output
+     */
+    static void writeString(final DataOutput aOutput, final String aString)
+            throws IOException {
+
+        if (aString == null) {
+            aOutput.writeInt(-1);
+            return;
+        }
+
+        final byte[] bytes = aString.getBytes(CHARSET_UTF8);
+        aOutput.writeInt(bytes.length);
+        aOutput.write(bytes);
+    }
+
+    /**
+     * Accepts the classes used by the given type: the class itself, its type
+     * arguments and array components, and the field types of the beans
+     * which are not part of the JDK
+     *
+     * @param aType
+     *            A type used in a method signature or in a bean
+     */
+    private void accept(final Type aType) {
+
+        if (aType instanceof Class<?>) {
+            final Class<?> clazz = (Class<?>) aType;
+            if (clazz.isPrimitive()
+                    || pClasses.put(clazz.getName(), clazz) != null) {
+                // Nothing to read or already accepted
+                return;
+            }
+
+            if (clazz.isArray()) {
+                accept(clazz.getComponentType());
+
+            } else if (!clazz.isEnum() && clazz.getClassLoader() != null) {
+                for (final Field field : getFields(clazz)) {
+                    accept(field.getGenericType());
+                }
+            }
+
+        } else if (aType instanceof ParameterizedType) {
+            final ParameterizedType parameterized = (ParameterizedType) aType;
+            accept(parameterized.getRawType());
+            for (final Type argument : parameterized
+                    .getActualTypeArguments()) {
+                accept(argument);
+            }
+
+        } else if (aType instanceof GenericArrayType) {
+            accept(((GenericArrayType) aType).getGenericComponentType());
+
+        } else if (aType instanceof WildcardType) {
+            final WildcardType wildcard = (WildcardType) aType;
+            for (final Type bound : wildcard.getUpperBounds()) {
+                accept(bound);
+            }
+            for (final Type bound : wildcard.getLowerBounds()) {
+                accept(bound);
+            }
+
+        } else if (aType instanceof TypeVariable<?>) {
+            for (final Type bound : ((TypeVariable<?>) aType).getBounds()) {
+                accept(bound);
+            }
+        }
+    }
+
+    /**
+     * Returns the serialized fields of the given class: its non-static,
+     * non-transient fields and those of its parent classes which aren't
+     * shadowed by a field with the same name
+     *
+     * @param aClass
+     *            A bean class
+     * @return The fields to serialize
+     */
+    private Field[] getFields(final Class<?> aClass) {
+
+        Field[] fields = pFields.get(aClass);
+        if (fields == null) {
+            // Field name -> Field of the most specific class
+            final Map<String, Field> found = new LinkedHashMap<String, Field>();
+            for (Class<?> clazz = aClass; clazz != null
+                    && clazz != Object.class; clazz = clazz.getSuperclass()) {
+                for (final Field field : clazz.getDeclaredFields()) {
+                    final int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers)
+                            && !Modifier.isTransient(modifiers)
+                            && !found.containsKey(field.getName())) {
+                        field.setAccessible(true);
+                        found.put(field.getName(), field);
+                    }
+                }
+            }
+
+            fields = found.values().toArray(new Field[found.size()]);
+            pFields.put(aClass, fields);
+        }
+
+        return fields;
+    }
+
+    /**
+     * Reads the fields of a bean
+     *
+     * @param aInput
+     *            The input
+     * @param aDepth
+     *            Nesting depth of the bean
+     * @return The bean
+     * @throws IOException
+     *             Error reading the input or creating the bean
+     */
+    private Object readBean(final BinaryInput aInput, final int aDepth)
+            throws IOException {
+
+        final Class<?> clazz = resolve(readString(aInput));
+        if (clazz.isInterface() || clazz.isArray() || clazz.isEnum()
+                || Modifier.isAbstract(clazz.getModifiers())
+                || clazz.getClassLoader() == null) {
+            // Only concrete beans outside the JDK
+            throw new IOException("Not a bean class: " + clazz.getName());
+        }
+
+        final Object bean;
+        try {
+            final Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            bean = constructor.newInstance();
+
+        } catch (final Exception ex) {
+            throw new IOException("Can't instantiate " + clazz.getName()
+                    + ": " + ex);
+        }
+
+        // Index the fields by name (they are unique)
+        final Map<String, Field> fields = new HashMap<String, Field>();
+        for (final Field field : getFields(clazz)) {
+            fields.put(field.getName(), field);
+        }
+
+        // A field is at least its name length and a value tag
+        final int nbFields = aInput.readLength(5);
+        for (int i = 0; i < nbFields; i++) {
+            final String name = readString(aInput);
+            final Field field = fields.get(name);
+            if (field == null) {
+                // Unknown field: skip its value
+                readValue(aInput, aDepth + 1);
+                continue;
+            }
+
+            try {
+                readField(aInput, bean, field, aDepth + 1);
+
+            } catch (final IllegalAccessException ex) {
+                throw new IOException("Can't set " + clazz.getName() + "."
+                        + name + ": " + ex);
+            }
+        }
+
+        return bean;
+    }
+
+    /**
+     * Returns the constant of an enumeration
+     *
+     * @param aClass
+     *            The enumeration class
+     * @param aName
+     *            The name of the constant
+     * @return The constant
+     * @throws IOException
+     *             Not an enumeration or unknown constant
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Object readEnum(final Class<?> aClass, final String aName)
+            throws IOException {
+
+        if (!aClass.isEnum()) {
+            throw new IOException("Not an enumeration: " + aClass.getName());
+        }
+
+        try {
+            return Enum.valueOf((Class) aClass, aName);
+
+        } catch (final IllegalArgumentException ex) {
+            throw new IOException("Unknown constant " + aClass.getName() + "."
+                    + aName);
+        }
+    }
+
+    /**
+     * Reads the value of a field, directly if it has a primitive type
+     *
+     * @param aInput
+     *            The input
+     * @param aBean
+     *            The bean
+     * @param aField
+     *            The field to set
+     * @param aDepth
+     *            Nesting depth of the field value
+     * @throws IOException
+     *             Error reading the input
+     * @throws IllegalAccessException
+     *             Error setting the field
+     */
+    private void readField(final BinaryInput aInput, final Object aBean,
+            final Field aField, final int aDepth) throws IOException,
+            IllegalAccessException {
+
+        final Class<?> type = aField.getType();
+        if (!type.isPrimitive()) {
+            aField.set(aBean, readValue(aInput, aDepth));
+            return;
+        }
+
+        final byte tag = aInput.readByte();
+        switch (tag) {
+        case BOOLEAN_TRUE:
+        case BOOLEAN_FALSE:
+            aField.setBoolean(aBean, tag == BOOLEAN_TRUE);
+            break;
+        case BYTE:
+            aField.setByte(aBean, aInput.readByte());
+            break;
+        case CHAR:
+            aField.setChar(aBean, aInput.readChar());
+            break;
+        case SHORT:
+            aField.setShort(aBean, aInput.readShort());
+            break;
+        case INT:
+            aField.setInt(aBean, aInput.readInt());
+            break;
+        case LONG:
+            aField.setLong(aBean, aInput.readLong());
+            break;
+        case FLOAT:
+            aField.setFloat(aBean, aInput.readFloat());
+            break;
+        case DOUBLE:
+            aField.setDouble(aBean, aInput.readDouble());
+            break;
+        default:
+            throw new IOException("Invalid tag " + tag + " for field "
+                    + aField);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue(DataOutput, Object)}
+     *
+     * @param aInput
+     *            The input
+     * @return The read value
+     * @throws IOException
+     *             Error reading the input, unknown class or invalid value
+     */
+    Object readValue(final BinaryInput aInput) throws IOException {
+
+        try {
+            return readValue(aInput, 0);
+
+        } catch (final RuntimeException ex) {
+            // Value of the wrong type (array element, bean field...)
+            throw new IOException("Invalid value: " + ex);
+        }
+    }
+
+    /**
+     * Reads a value, nested in others
+     *
+     * @param aInput
+     *            The input
+     * @param aDepth
+     *            Nesting depth of the value
+     * @return The read value
+     * @throws IOException
+     *             Error reading the input, unknown class or value too deep
+     */
+    private Object readValue(final BinaryInput aInput, final int aDepth)
+            throws IOException {
+
+        if (aDepth > MAX_DEPTH) {
+            throw new IOException("Value nested deeper than " + MAX_DEPTH
+                    + " levels");
+        }
+
+        final byte tag = aInput.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+
+        case BOOLEAN_TRUE:
+            return Boolean.TRUE;
+
+        case BOOLEAN_FALSE:
+            return Boolean.FALSE;
+
+        case BYTE:
+            return Byte.valueOf(aInput.readByte());
+
+        case CHAR:
+            return Character.valueOf(aInput.readChar());
+
+        case SHORT:
+            return Short.valueOf(aInput.readShort());
+
+        case INT:
+            return Integer.valueOf(aInput.readInt());
+
+        case LONG:
+            return Long.valueOf(aInput.readLong());
+
+        case FLOAT:
+            return Float.valueOf(aInput.readFloat());
+
+        case DOUBLE:
+            return Double.valueOf(aInput.readDouble());
+
+        case STRING:
+            return readString(aInput);
+
+        case DATE:
+            return new Date(aInput.readLong());
+
+        case BOOLEANS: {
+            final boolean[] array = new boolean[aInput.readLength(1)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readBoolean();
+            }
+            return array;
+        }
+
+        case BYTES: {
+            final byte[] array = new byte[aInput.readLength(1)];
+            aInput.readFully(array);
+            return array;
+        }
+
+        case CHARS: {
+            final char[] array = new char[aInput.readLength(2)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readChar();
+            }
+            return array;
+        }
+
+        case SHORTS: {
+            final short[] array = new short[aInput.readLength(2)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readShort();
+            }
+            return array;
+        }
+
+        case INTS: {
+            final int[] array = new int[aInput.readLength(4)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readInt();
+            }
+            return array;
+        }
+
+        case LONGS: {
+            final long[] array = new long[aInput.readLength(8)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readLong();
+            }
+            return array;
+        }
+
+        case FLOATS: {
+            final float[] array = new float[aInput.readLength(4)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readFloat();
+            }
+            return array;
+        }
+
+        case DOUBLES: {
+            final double[] array = new double[aInput.readLength(8)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = aInput.readDouble();
+            }
+            return array;
+        }
+
+        case ARRAY: {
+            final Class<?> componentType = resolve(readString(aInput));
+            final Object[] array = (Object[]) Array.newInstance(componentType,
+                    aInput.readLength(1));
+            for (int i = 0; i < array.length; i++) {
+                array[i] = readValue(aInput, aDepth + 1);
+            }
+            return array;
+        }
+
+        case LIST: {
+            final int size = aInput.readLength(1);
+            final List<Object> list = new ArrayList<Object>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(aInput, aDepth + 1));
+            }
+            return list;
+        }
+
+        case SET: {
+            final int size = aInput.readLength(1);
+            final Set<Object> set = new LinkedHashSet<Object>();
+            for (int i = 0; i < size; i++) {
+                set.add(readValue(aInput, aDepth + 1));
+            }
+            return set;
+        }
+
+        case MAP: {
+            final int size = aInput.readLength(2);
+            final Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+            for (int i = 0; i < size; i++) {
+                final Object key = readValue(aInput, aDepth + 1);
+                map.put(key, readValue(aInput, aDepth + 1));
+            }
+            return map;
+        }
+
+        case ENUM:
+            return readEnum(resolve(readString(aInput)), readString(aInput));
+
+        case BEAN:
+            return readBean(aInput, aDepth);
+
+        default:
+            throw new IOException("Unknown type tag: " + tag);
+        }
+    }
+
+    /**
+     * Returns the accepted class with the given name
+     *
+     * @param aName
+     *            A class name, as returned by {@link Class#getName()}
+     * @return The class
+     * @throws IOException
+     *             Class not accepted by this codec
+     */
+    private Class<?> resolve(final String aName) throws IOException {
+
+        Class<?> clazz = pClasses.get(aName);
+        if (clazz == null && aName.startsWith("[")) {
+            // Array of an accepted class or of a primitive type
+            final int dimensions = aName.lastIndexOf('[') + 1;
+            final String element = aName.substring(dimensions);
+            Class<?> elementClass = null;
+            if (element.startsWith("L") && element.endsWith(";")) {
+                elementClass = pClasses.get(element.substring(1,
+                        element.length() - 1));
+
+            } else {
+                for (final Class<?> array : PRIMITIVE_ARRAYS) {
+                    if (array.getName().equals("[" + element)) {
+                        elementClass = array.getComponentType();
+                    }
+                }
+            }
+
+            if (elementClass != null) {
+                clazz = Array.newInstance(elementClass, new int[dimensions])
+                        .getClass();
+            }
+        }
+
+        if (clazz == null) {
+            throw new IOException("Class not accepted: " + aName);
+        }
+
+        return clazz;
+    }
+
+    /**
+     * Writes an array, its elements being written directly if they have a
+     * primitive type
+     *
+     * @param aOutput
+     *            The output
+     * @param aArray
+     *            An array
+     * @param aPath
+     *            The objects being written
+     * @throws IOException
+     *             Error writing the output
+     */
+    private void writeArray(final DataOutput aOutput, final Object aArray,
+            final Set<Object> aPath) throws IOException {
+
+        if (aArray instanceof byte[]) {
+            final byte[] array = (byte[]) aArray;
+            aOutput.writeByte(BYTES);
+            aOutput.writeInt(array.length);
+            aOutput.write(array);
+
+        } else if (aArray instanceof int[]) {
+            final int[] array = (int[]) aArray;
+            aOutput.writeByte(INTS);
+            aOutput.writeInt(array.length);
+            for (final int value : array) {
+                aOutput.writeInt(value);
+            }
+
+        } else if (aArray instanceof long[]) {
+            final long[] array = (long[]) aArray;
+            aOutput.writeByte(LONGS);
+            aOutput.writeInt(array.length);
+            for (final long value : array) {
+                aOutput.writeLong(value);
+            }
+
+        } else if (aArray instanceof double[]) {
+            final double[] array = (double[]) aArray;
+            aOutput.writeByte(DOUBLES);
+            aOutput.writeInt(array.length);
+            for (final double value : array) {
+                aOutput.writeDouble(value);
+            }
+
+        } else if (aArray instanceof float[]) {
+            final float[] array = (float[]) aArray;
+            aOutput.writeByte(FLOATS);
+            aOutput.writeInt(array.length);
+            for (final float value : array) {
+                aOutput.writeFloat(value);
+            }
+
+        } else if (aArray instanceof short[]) {
+            final short[] array = (short[]) aArray;
+            aOutput.writeByte(SHORTS);
+            aOutput.writeInt(array.length);
+            for (final short value : array) {
+                aOutput.writeShort(value);
+            }
+
+        } else if (aArray instanceof char[]) {
+            final char[] array = (char[]) aArray;
+            aOutput.writeByte(CHARS);
+            aOutput.writeInt(array.length);
+            for (final char value : array) {
+                aOutput.writeChar(value);
+            }
+
+        } else if (aArray instanceof boolean[]) {
+            final boolean[] array = (boolean[]) aArray;
+            aOutput.writeByte(BOOLEANS);
+            aOutput.writeInt(array.length);
+            for (final boolean value : array) {
+                aOutput.writeBoolean(value);
+            }
+
+        } else {
+            final Object[] array = (Object[]) aArray;
+            aOutput.writeByte(ARRAY);
+            writeString(aOutput, aArray.getClass().getComponentType()
+                    .getName());
+            aOutput.writeInt(array.length);
+            for (final Object value : array) {
+                writeValue(aOutput, value, aPath);
+            }
+        }
+    }
+    /**
+     * Writes the fields of a bean
+     *
+     * @param aOutput
+     *            The output
+     * @param aBean
+     *            The bean
+     * @param aPath
+     *            The objects being written
+     * @throws IOException
+     *             Error writing the output or reading the fields
+     */
+    private void writeBean(final DataOutput aOutput, final Object aBean,
+            final Set<Object> aPath) throws IOException {
+
+        final Class<?> clazz = aBean.getClass();
+        final Field[] fields = getFields(clazz);
+
+        aOutput.writeByte(BEAN);
+        writeString(aOutput, clazz.getName());
+        aOutput.writeInt(fields.length);
+        for (final Field field : fields) {
+            writeString(aOutput, field.getName());
+            try {
+                writeField(aOutput, aBean, field, aPath);
+
+            } catch (final IllegalAccessException ex) {
+                throw new IOException("Can't read " + field + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the value of a field, directly if it has a primitive type
+     *
+     * @param aOutput
+     *            The output
+     * @param aBean
+     *            The bean
+     * @param aField
+     *            The field to write
+     * @param aPath
+     *            The objects being written
+     * @throws IOException
+     *             Error writing the output
+     * @throws IllegalAccessException
+     *             Error reading the field
+     */
+    private void writeField(final DataOutput aOutput, final Object aBean,
+            final Field aField, final Set<Object> aPath) throws IOException,
+            IllegalAccessException {
+
+        final Class<?> type = aField.getType();
+        if (!type.isPrimitive()) {
+            writeValue(aOutput, aField.get(aBean), aPath);
+
+        } else if (type == Integer.TYPE) {
+            aOutput.writeByte(INT);
+            aOutput.writeInt(aField.getInt(aBean));
+
+        } else if (type == Long.TYPE) {
+            aOutput.writeByte(LONG);
+            aOutput.writeLong(aField.getLong(aBean));
+
+        } else if (type == Double.TYPE) {
+            aOutput.writeByte(DOUBLE);
+            aOutput.writeDouble(aField.getDouble(aBean));
+
+        } else if (type == Boolean.TYPE) {
+            aOutput.writeByte(aField.getBoolean(aBean) ? BOOLEAN_TRUE
+                    : BOOLEAN_FALSE);
+
+        } else if (type == Float.TYPE) {
+            aOutput.writeByte(FLOAT);
+            aOutput.writeFloat(aField.getFloat(aBean));
+
+        } else if (type == Short.TYPE) {
+            aOutput.writeByte(SHORT);
+            aOutput.writeShort(aField.getShort(aBean));
+
+        } else if (type == Byte.TYPE) {
+            aOutput.writeByte(BYTE);
+            aOutput.writeByte(aField.getByte(aBean));
+
+        } else {
+            aOutput.writeByte(CHAR);
+            aOutput.writeChar(aField.getChar(aBean));
+        }
+    }
+
+    /**
+     * Writes a value, preceded by its type tag
+     *
+     * @param aOutput
+     *            The output
+     * @param aValue
+     *            The value to write
+     * @throws IOException
+     *             Error writing the output or reading a bean
+     */
+    void writeValue(final DataOutput aOutput, final Object aValue)
+            throws IOException {
+
+        final Set<Object> path = Collections
+                .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        writeValue(aOutput, aValue, path);
+    }
+
+    /**
+     * Writes a value, preceded by its type tag, checking that it isn't
+     * already being written
+     *
+     * @param aOutput
+     *            The output
+     * @param aValue
+     *            The value to write
+     * @param aPath
+     *            The objects being written (containing the value)
+     * @throws IOException
+     *             Error writing the output, reading a bean or circular
+     *             reference
+     */
+    private void writeValue(final DataOutput aOutput, final Object aValue,
+            final Set<Object> aPath) throws IOException {
+
+        if (aValue == null) {
+            aOutput.writeByte(NULL);
+
+        } else if (aValue instanceof String) {
+            aOutput.writeByte(STRING);
+            writeString(aOutput, (String) aValue);
+
+        } else if (aValue instanceof Integer) {
+            aOutput.writeByte(INT);
+            aOutput.writeInt(((Integer) aValue).intValue());
+
+        } else if (aValue instanceof Long) {
+            aOutput.writeByte(LONG);
+            aOutput.writeLong(((Long) aValue).longValue());
+
+        } else if (aValue instanceof Double) {
+            aOutput.writeByte(DOUBLE);
+            aOutput.writeDouble(((Double) aValue).doubleValue());
+
+        } else if (aValue instanceof Boolean) {
+            aOutput.writeByte(((Boolean) aValue).booleanValue() ? BOOLEAN_TRUE
+                    : BOOLEAN_FALSE);
+
+        } else if (aValue instanceof Float) {
+            aOutput.writeByte(FLOAT);
+            aOutput.writeFloat(((Float) aValue).floatValue());
+
+        } else if (aValue instanceof Short) {
+            aOutput.writeByte(SHORT);
+            aOutput.writeShort(((Short) aValue).shortValue());
+
+        } else if (aValue instanceof Byte) {
+            aOutput.writeByte(BYTE);
+            aOutput.writeByte(((Byte) aValue).byteValue());
+
+        } else if (aValue instanceof Character) {
+            aOutput.writeByte(CHAR);
+            aOutput.writeChar(((Character) aValue).charValue());
+
+        } else if (aValue instanceof Date) {
+            aOutput.writeByte(DATE);
+            aOutput.writeLong(((Date) aValue).getTime());
+
+        } else if (aValue instanceof Enum<?>) {
+            aOutput.writeByte(ENUM);
+            writeString(aOutput, ((Enum<?>) aValue).getDeclaringClass()
+                    .getName());
+            writeString(aOutput, ((Enum<?>) aValue).name());
+
+        } else {
+            // Container: check it isn't one of its own children
+            if (!aPath.add(aValue)) {
+                throw new IOException("Circular reference to a "
+                        + aValue.getClass().getName());
+            }
+
+            if (aValue.getClass().isArray()) {
+                writeArray(aOutput, aValue, aPath);
+
+            } else if (aValue instanceof Collection<?>) {
+                final Collection<?> collection = (Collection<?>) aValue;
+                aOutput.writeByte(aValue instanceof Set<?> ? SET : LIST);
+                aOutput.writeInt(collection.size());
+                for (final Object item : collection) {
+                    writeValue(aOutput, item, aPath);
+                }
+
+            } else if (aValue instanceof Map<?, ?>) {
+                final Map<?, ?> map = (Map<?, ?>) aValue;
+                aOutput.writeByte(MAP);
+                aOutput.writeInt(map.size());
+                for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(aOutput, entry.getKey(), aPath);
+                    writeValue(aOutput, entry.getValue(), aPath);
+                }
+
+            } else {
+                writeBean(aOutput, aValue, aPath);
+            }
+
+            aPath.remove(aValue);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * A service exported with one of the binary transports: decodes the calls,
+ * invokes the service and encodes the responses
+ *
+ * @author Thomas Calmant
+ */
+class BinaryEndpoint {
+
+    /** The codec of the calls */
+    private final BinaryCodec pCodec;
+
+    /** Method signature -&gt; Method of the interfaces */
+    private final Map<String, Method> pMethods = new HashMap<String, Method>();
+
+    /** The service object */
+    private final Object pService;
+
+    /**
+     * Sets up the endpoint
+     *
+     * @param aService
+     *            The service object
+     * @param aSpecifications
+     *            The exported interfaces names
+     */
+    BinaryEndpoint(final Object aService, final String[] aSpecifications) {
+
+        pService = aService;
+
+        // Index the methods of the exported interfaces
+        final List<Class<?>> interfaces = new ArrayList<Class<?>>();
+        findInterfaces(aService.getClass(), Arrays.asList(aSpecifications),
+                interfaces, new HashSet<Class<?>>());
+        for (final Class<?> itf : interfaces) {
+            for (final Method method : itf.getMethods()) {
+                final String key = getSignature(method);
+                if (!pMethods.containsKey(key)) {
+                    pMethods.put(key, method);
+                }
+            }
+        }
+
+        pCodec = new BinaryCodec(interfaces.toArray(new Class<?>[interfaces
+                .size()]));
+    }
+
+    /**
+     * Looks for the exported interfaces among the interfaces implemented by
+     * the given class, its super-classes and their super-interfaces
+     *
+     * @param aClass
+     *            A class or an interface
+     * @param aSpecifications
+     *            The exported interfaces names
+     * @param aFound
+     *            The exported interfaces found
+     * @param aVisited
+     *            The classes and interfaces already visited
+     */
+    private static void findInterfaces(final Class<?> aClass,
+            final List<String> aSpecifications, final List<Class<?>> aFound,
+            final Set<Class<?>> aVisited) {
+
+        for (Class<?> clazz = aClass; clazz != null; clazz = clazz
+                .getSuperclass()) {
+            if (!aVisited.add(clazz)) {
+                // Already visited
+                return;
+            }
+
+            if (clazz.isInterface()
+                    && aSpecifications.contains(clazz.getName())) {
+                aFound.add(clazz);
+            }
+
+            for (final Class<?> itf : clazz.getInterfaces()) {
+                findInterfaces(itf, aSpecifications, aFound, aVisited);
+            }
+        }
+    }
+
+    /**
+     * Computes the signature identifying a method in the calls: its name and
+     * the names of its parameter types, e.g. "add(int,java.lang.String)"
+     *
+     * @param aMethod
+     *            A method
+     * @return The signature of the method
+     */
+    static String getSignature(final Method aMethod) {
+
+        final StringBuilder builder = new StringBuilder(aMethod.getName());
+        builder.append('(');
+        final Class<?>[] types = aMethod.getParameterTypes();
+        for (int i = 0; i < types.length; i++) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(types[i].getName());
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * Truncates the given buffer
+     *
+     * @param aBuffer
+     *            A buffer
+     * @param aSize
+     *            The size to keep
+     * @return The buffer
+     */
+    private static ThreadByteBuffer truncate(final ThreadByteBuffer aBuffer,
+            final int aSize) {
+
+        final byte[] content = Arrays.copyOf(aBuffer.getBuffer(), aSize);
+        aBuffer.reset();
+        aBuffer.write(content, 0, aSize);
+        return aBuffer;
+    }
+
+    /**
+     * Writes an error response
+     *
+     * @param aOutput
+     *            The response output
+     * @param aError
+     *            The error raised by the call
+     * @throws IOException
+     *             Error writing the response
+     */
+    static void writeError(final DataOutput aOutput, final Throwable aError)
+            throws IOException {
+
+        aOutput.writeByte(IBinaryRpcConstants.STATUS_ERROR);
+        BinaryCodec.writeString(aOutput, aError.getClass().getName());
+        BinaryCodec.writeString(aOutput, aError.getMessage());
+    }
+
+    /**
+     * Reads a call (method signature, arguments count and arguments), calls
+     * the service and appends the response to the given buffer
+     *
+     * @param aInput
+     *            The call input, after the protocol version
+     * @param aResponse
+     *            The buffer receiving the response
+     * @throws IOException
+     *             Invalid call
+     */
+    void call(final BinaryInput aInput, final ThreadByteBuffer aResponse)
+            throws IOException {
+
+        // Read the call
+        final String signature = BinaryCodec.readString(aInput);
+        final Object[] args = new Object[aInput.readLength(1)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = pCodec.readValue(aInput);
+        }
+
+        final int start = aResponse.size();
+        final DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(aResponse));
+
+        final Method method = pMethods.get(signature);
+        if (method == null
+                || method.getParameterTypes().length != args.length) {
+            writeError(output, new NoSuchMethodException(signature + " with "
+                    + args.length + " arguments"));
+            output.flush();
+            return;
+        }
+
+        // Call the method
+        final Object result;
+        try {
+            result = method.invoke(pService, args);
+
+        } catch (final InvocationTargetException ex) {
+            writeError(output, ex.getCause());
+            output.flush();
+            return;
+
+        } catch (final Exception ex) {
+            // Illegal arguments or access
+            writeError(output, ex);
+            output.flush();
+            return;
+        }
+
+        try {
+            output.writeByte(IBinaryRpcConstants.STATUS_OK);
+            pCodec.writeValue(output, result);
+            output.flush();
+
+        } catch (final IOException ex) {
+            // Result can't be written (unsupported type): drop what has been
+            // written of it
+            final DataOutputStream error = new DataOutputStream(
+                    new BufferedOutputStream(truncate(aResponse, start)));
+            writeError(error, ex);
+            error.flush();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * The services exported with one of the framed binary transports, whose
+ * requests start with the endpoint name
+ *
+ * @author Thomas Calmant
+ */
+class BinaryEndpoints {
+
+    /** Exported services: Endpoint name -&gt; Endpoint */
+    private final ConcurrentMap<String, BinaryEndpoint> pEndpoints = new ConcurrentHashMap<String, BinaryEndpoint>();
+
+    /**
+     * Reads a request (endpoint name, protocol version and call), calls the
+     * service and appends the response to the given buffer. Invalid requests
+     * get an error response.
+     *
+     * @param aInput
+     *            The request input
+     * @param aResponse
+     *            The buffer receiving the response
+     */
+    void call(final BinaryInput aInput, final ThreadByteBuffer aResponse) {
+
+        try {
+            try {
+                final String name = BinaryCodec.readString(aInput);
+                final byte version = aInput.readByte();
+                if (version != IBinaryRpcConstants.VERSION) {
+                    throw new IOException("Unsupported protocol version: "
+                            + version);
+                }
+
+                final BinaryEndpoint endpoint = pEndpoints.get(name);
+                if (endpoint == null) {
+                    throw new IllegalArgumentException("Unknown endpoint: "
+                            + name);
+                }
+
+                endpoint.call(aInput, aResponse);
+
+            } catch (final Exception ex) {
+                // Invalid request: nothing has been written
+                final DataOutputStream output = new DataOutputStream(
+                        aResponse);
+                BinaryEndpoint.writeError(output, ex);
+                output.flush();
+            }
+
+        } catch (final IOException ex) {
+            // Can't happen: writing in memory
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Forgets all endpoints
+     */
+    void clear() {
+
+        pEndpoints.clear();
+    }
+
+    /**
+     * Registers an exported service
+     *
+     * @param aName
+     *            Endpoint name
+     * @param aService
+     *            The service object
+     * @param aSpecifications
+     *            The exported interfaces names
+     */
+    void register(final String aName, final Object aService,
+            final String[] aSpecifications) {
+
+        pEndpoints.put(aName, new BinaryEndpoint(aService, aSpecifications));
+    }
+
+    /**
+     * Changes the name of an endpoint
+     *
+     * @param aOldName
+     *            Current endpoint name
+     * @param aNewName
+     *            New endpoint name
+     */
+    void rename(final String aOldName, final String aNewName) {
+
+        final BinaryEndpoint endpoint = pEndpoints.remove(aOldName);
+        if (endpoint != null) {
+            pEndpoints.put(aNewName, endpoint);
+        }
+    }
+
+    /**
+     * Unregisters an exported service
+     *
+     * @param aName
+     *            Endpoint name
+     */
+    void unregister(final String aName) {
+
+        pEndpoints.remove(aName);
+    }
+}
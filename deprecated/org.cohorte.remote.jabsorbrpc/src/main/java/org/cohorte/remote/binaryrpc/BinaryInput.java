@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input of a complete binary RPC message, held in memory: the lengths read in
+ * the message can be checked against the bytes left before allocating
+ * anything
+ *
+ * @author Thomas Calmant
+ */
+class BinaryInput extends DataInputStream {
+
+    /** Maximum size of a message read from a stream (64 MiB) */
+    static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Sets up the input
+     *
+     * @param aMessage
+     *            The message
+     */
+    BinaryInput(final byte[] aMessage) {
+
+        super(new ByteArrayInputStream(aMessage));
+    }
+
+    /**
+     * Reads a whole message from a stream
+     *
+     * @param aInput
+     *            The stream
+     * @param aLength
+     *            The length of the message, or -1 to read up to the end of
+     *            the stream
+     * @return The message input
+     * @throws IOException
+     *             Error reading the stream or message too large
+     */
+    static BinaryInput read(final InputStream aInput, final int aLength)
+            throws IOException {
+
+        if (aLength > MAX_SIZE) {
+            throw new IOException("Message too large: " + aLength + " bytes");
+        }
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+                aLength > 0 ? aLength : 4096);
+        final byte[] chunk = new byte[8192];
+        int read;
+        while ((read = aInput.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+            if (buffer.size() > MAX_SIZE) {
+                throw new IOException("Message too large: more than "
+                        + MAX_SIZE + " bytes");
+            }
+        }
+
+        if (aLength >= 0 && buffer.size() != aLength) {
+            throw new IOException("Truncated message: " + buffer.size()
+                    + " bytes out of " + aLength);
+        }
+
+        return new BinaryInput(buffer.toByteArray());
+    }
+
+    /**
+     * Reads a length, checking it is positive and that the message has
+     * enough bytes left for it
+     *
+     * @param aElementSize
+     *            Minimal size of an element, in bytes
+     * @return The read length
+     * @throws IOException
+     *             Invalid length
+     */
+    int readLength(final int aElementSize) throws IOException {
+
+        final int length = readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length: " + length);
+        }
+
+        if ((long) length * aElementSize > remaining()) {
+            throw new IOException("Length " + length
+                    + " larger than the message");
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the number of bytes left in the message
+     *
+     * @return The number of bytes left
+     */
+    int remaining() {
+
+        // Exact, as the message is in memory
+        return ((ByteArrayInputStream) in).available();
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.felix.ipojo.annotations.Bind;
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Property;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.remote.ExportEndpoint;
+import org.cohorte.remote.IRemoteServicesConstants;
+import org.cohorte.remote.IServiceExporter;
+import org.cohorte.remote.utilities.RSUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.log.LogService;
+
+/**
+ * Service exporter using a compact binary encoding over HTTP
+ *
+ * @author Thomas Calmant
+ */
+@Component(name = "cohorte-remote-exporter-binaryrpc-factory")
+@Provides(specifications = IServiceExporter.class)
+@Instantiate(name = "cohorte-remote-exporter-binaryrpc")
+public class BinaryRpcExporter implements IServiceExporter {
+
+    /** HTTP service port property */
+    private static final String HTTP_SERVICE_PORT = "org.osgi.service.http.port";
+
+    /** HTTPService dependency ID */
+    private static final String IPOJO_ID_HTTP = "http.service";
+
+    /** Supported export configurations */
+    @Property(name = Constants.REMOTE_CONFIGS_SUPPORTED,
+            value = "{" + IBinaryRpcConstants.EXPORT_CONFIG + "}")
+    private String[] pConfigurations;
+
+    /** The bundle context */
+    private final BundleContext pContext;
+
+    /** Exported services: Name -&gt; ExportEndpoint */
+    private final Map<String, ExportEndpoint> pEndpoints = new LinkedHashMap<String, ExportEndpoint>();
+
+    /** Framework UID */
+    private String pFrameworkUid;
+
+    /** HTTP service port */
+    private int pHttpPort;
+
+    /** HTTP service, to host the servlet */
+    @Requires(id = IPOJO_ID_HTTP, filter = "(" + HTTP_SERVICE_PORT + "=*)")
+    private HttpService pHttpService;
+
+    /** The logger */
+    @Requires
+    private LogService pLogger;
+
+    /** The servlet calling the exported services */
+    private BinaryRpcServlet pServlet;
+
+    /** Name of the servlet */
+    @Property(name = "endpoint.servlet.name",
+            value = IBinaryRpcConstants.DEFAULT_SERVLET_NAME)
+    private String pServletName;
+
+    /**
+     * Component constructed
+     *
+     * @param aContext
+     *            The bundle context
+     */
+    public BinaryRpcExporter(final BundleContext aContext) {
+
+        pContext = aContext;
+    }
+
+    /**
+     * HTTP service ready: store its listening port
+     *
+     * @param aHttpService
+     *            The bound service
+     * @param aServiceProperties
+     *            The HTTP service properties
+     */
+    @Bind(id = IPOJO_ID_HTTP)
+    private void bindHttpService(final HttpService aHttpService,
+            final Map<?, ?> aServiceProperties) {
+
+        final Object rawPort = aServiceProperties.get(HTTP_SERVICE_PORT);
+
+        if (rawPort instanceof Number) {
+            // Get the integer
+            pHttpPort = ((Number) rawPort).intValue();
+
+        } else if (rawPort instanceof CharSequence) {
+            // Parse the string
+            pHttpPort = Integer.parseInt(rawPort.toString());
+
+        } else {
+            // Unknown port type
+            pLogger.log(LogService.LOG_WARNING, "Couldn't read access port="
+                    + rawPort);
+            pHttpPort = -1;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#exportService(org.osgi.framework
+     * .ServiceReference, java.lang.String, java.lang.String)
+     */
+    @Override
+    public synchronized ExportEndpoint exportService(
+            final ServiceReference<?> aReference, final String aName,
+            final String aFramworkUid) throws BundleException {
+
+        // Prefer the name given in properties, if any
+        String name = (String) aReference
+                .getProperty(IBinaryRpcConstants.PROP_ENDPOINT_NAME);
+        if (name == null) {
+            name = aName;
+        }
+
+        if (pEndpoints.containsKey(name)) {
+            pLogger.log(LogService.LOG_ERROR,
+                    "Already use BINARY-RPC endpoint: " + name);
+            return null;
+        }
+
+        // Get the service
+        final Object service = pContext.getService(aReference);
+        if (service == null) {
+            throw new BundleException("Service is gone: " + aReference);
+        }
+
+        // Prepare extra properties
+        final Map<String, Object> extraProps = new LinkedHashMap<String, Object>();
+        extraProps.put(IBinaryRpcConstants.PROP_ENDPOINT_NAME, name);
+        extraProps.put(IBinaryRpcConstants.PROP_HTTP_ACCESSES, getAccesses());
+
+        // Prepare the endpoint bean
+        final ExportEndpoint endpoint = new ExportEndpoint(UUID.randomUUID()
+                .toString(), pFrameworkUid, pConfigurations, name, aReference,
+                extraProps);
+
+        // Register the object in the servlet
+        pServlet.register(name, service,
+                (String[]) aReference.getProperty(Constants.OBJECTCLASS));
+
+        // Store information
+        pEndpoints.put(name, endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Prepares the String containing the list of URLs to access the servlet
+     *
+     * @return A comma-separated list of URLs
+     */
+    private String getAccesses() {
+
+        // Forge the URI manually, as '{' and '}' are forbidden in URIs
+        // (that's why we use it)
+        final StringBuilder builder = new StringBuilder("http://{server}");
+
+        if (pHttpPort > 0) {
+            // Port given
+            builder.append(":").append(pHttpPort);
+        }
+
+        if (!pServletName.startsWith("/")) {
+            // Add path starting slash if necessary
+            builder.append("/");
+        }
+
+        builder.append(pServletName);
+        return builder.toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.IServiceExporter#handles(java.lang.String[])
+     */
+    @Override
+    public boolean handles(final String[] aConfigurations) {
+
+        if (aConfigurations == null) {
+            // null = "match all"
+            return true;
+        }
+
+        // Look for a match in configurations
+        for (final String config : aConfigurations) {
+            for (final String handledConfig : pConfigurations) {
+                if (handledConfig.equals(config)) {
+                    // Got a match
+                    return true;
+                }
+            }
+        }
+
+        // No match
+        return false;
+    }
+
+    /**
+     * Component invalidated
+     */
+    @Invalidate
+    public void invalidate() {
+
+        // Unregister the servlet
+        pHttpService.unregister(pServletName);
+
+        // Destroy end points
+        final ExportEndpoint[] endpoints = pEndpoints.values().toArray(
+                new ExportEndpoint[0]);
+        for (final ExportEndpoint endpoint : endpoints) {
+            try {
+                // Release the service, unregister the endpoint
+                unexportService(endpoint);
+
+            } catch (final Exception ex) {
+                // Just log the error
+                pLogger.log(LogService.LOG_WARNING,
+                        "Error unregistering service: " + ex, ex);
+            }
+        }
+
+        pServlet = null;
+        pFrameworkUid = null;
+        pLogger.log(LogService.LOG_INFO, "BINARY-RPC exporter gone");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#unexportService(org.cohorte.remote
+     * .ExportEndpoint)
+     */
+    @Override
+    public synchronized void unexportService(final ExportEndpoint aEndpoint) {
+
+        // Pop the endpoint
+        if (pEndpoints.remove(aEndpoint.getName()) != null) {
+            // Destroy the endpoint
+            pServlet.unregister(aEndpoint.getName());
+
+            // Release the service
+            pContext.ungetService(aEndpoint.getReference());
+
+        } else {
+            // Unknown endpoint
+            pLogger.log(LogService.LOG_WARNING, "Unknown endpoint: "
+                    + aEndpoint);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#updateExport(org.cohorte.remote.
+     * ExportEndpoint, java.lang.String, java.util.Map)
+     */
+    @Override
+    public synchronized void updateExport(final ExportEndpoint aEndpoint,
+            final String aNewName, final Map<String, Object> aOldProperties) {
+
+        final ExportEndpoint knownEndpoint = pEndpoints.get(aNewName);
+        if (knownEndpoint != null && !knownEndpoint.equals(aEndpoint)) {
+            // Name already taken by another endpoint: reject it
+            throw new IllegalArgumentException("New name of " + aEndpoint
+                    + " is already in use: " + aNewName);
+        }
+
+        // Update storage
+        pEndpoints.put(aNewName, pEndpoints.remove(aEndpoint.getName()));
+        pServlet.rename(aEndpoint.getName(), aNewName);
+
+        // Update the endpoint
+        aEndpoint.setName(aNewName);
+    }
+
+    /**
+     * Component validated
+     */
+    @Validate
+    public void validate() {
+
+        // Setup the isolate UID
+        pFrameworkUid = RSUtils.setupUID(pContext,
+                IRemoteServicesConstants.ISOLATE_UID);
+
+        // Register the servlet
+        pServlet = new BinaryRpcServlet();
+        try {
+            pHttpService.registerServlet(pServletName, pServlet, null, null);
+
+        } catch (final Exception ex) {
+            pLogger.log(LogService.LOG_ERROR,
+                    "Error registering the BINARY-RPC servlet", ex);
+        }
+
+        pLogger.log(LogService.LOG_INFO, "BINARY-RPC exporter ready, port="
+                + pHttpPort);
+    }
+}
@@ -0,0 +1,458 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Property;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.cohorte.remote.IImportEndpointListener;
+import org.cohorte.remote.IImportEndpointsListener;
+import org.cohorte.remote.ImportEndpoint;
+import org.cohorte.remote.utilities.BundleClass;
+import org.cohorte.remote.utilities.BundlesClassLoader;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogService;
+
+/**
+ * Service importer of the binary transports, over HTTP, framed TCP or shared
+ * memory
+ *
+ * @author Thomas Calmant
+ */
+@Component(name = "cohorte-remote-importer-binaryrpc-factory")
+@Provides(specifications = IImportEndpointListener.class)
+@Instantiate(name = "cohorte-remote-importer-binaryrpc")
+public class BinaryRpcImporter implements IImportEndpointsListener {
+
+    /** Supported export configurations */
+    @Property(name = Constants.REMOTE_CONFIGS_SUPPORTED,
+            value = "{" + IBinaryRpcConstants.EXPORT_CONFIG + ","
+                    + IBinaryRpcConstants.TCP_EXPORT_CONFIG + ","
+                    + IBinaryRpcConstants.SHM_EXPORT_CONFIG + "}")
+    private String[] pConfigurations;
+
+    /** The bundle context */
+    private final BundleContext pContext;
+
+    /** The logger */
+    @Requires
+    private LogService pLogger;
+
+    /** Endpoint UID -&gt; Proxy */
+    private final Map<String, Object> pProxies = new LinkedHashMap<String, Object>();
+
+    /** Imported services: Endpoint UID -&gt; ServiceRegistration */
+    private final Map<String, ServiceRegistration<?>> pRegistrations = new LinkedHashMap<String, ServiceRegistration<?>>();
+
+    /**
+     * Component constructed
+     *
+     * @param aContext
+     *            The bundle context
+     */
+    public BinaryRpcImporter(final BundleContext aContext) {
+
+        pContext = aContext;
+    }
+
+    /**
+     * Creates the Java proxy object to use the remote service
+     *
+     * @param aUid
+     *            Endpoint UID
+     * @param aName
+     *            Endpoint name
+     * @param aConfiguration
+     *            The export configuration to use
+     * @param aAccessUrl
+     *            URL to the remote servlet, tcp://host:port URI of the
+     *            remote server or directory of the shared memory server
+     * @param aClasses
+     *            Object interfaces
+     * @return The proxy object
+     * @throws MalformedURLException
+     *             Invalid access URL
+     */
+    private Object createProxy(final String aUid, final String aName,
+            final String aConfiguration, final String aAccessUrl,
+            final Class<?>[] aClasses) throws MalformedURLException {
+
+        // Prepare a bundle class loader
+        final BundlesClassLoader classLoader = new BundlesClassLoader(pContext);
+
+        final BinaryCodec codec = new BinaryCodec(aClasses);
+        final AbstractBinaryProxy handler;
+        if (IBinaryRpcConstants.SHM_EXPORT_CONFIG.equals(aConfiguration)) {
+            // Shared memory: share the channel to the server
+            handler = new FrameRpcProxy(ShmRpcClient.get(aAccessUrl), aName,
+                    codec);
+
+        } else if (aAccessUrl.startsWith("tcp://")) {
+            // Framed TCP: share the connections to the peer
+            final URI uri;
+            try {
+                uri = new URI(aAccessUrl);
+
+            } catch (final URISyntaxException ex) {
+                throw new MalformedURLException(ex.getMessage());
+            }
+
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                throw new MalformedURLException("Invalid TCP access: "
+                        + aAccessUrl);
+            }
+
+            handler = new FrameRpcProxy(TcpRpcClient.get(uri.getHost(),
+                    uri.getPort()), aName, codec);
+
+        } else {
+            handler = new BinaryRpcProxy(getEndpointUrl(aAccessUrl, aName),
+                    codec);
+        }
+
+        // Create the proxy
+        final Object proxy = Proxy.newProxyInstance(classLoader, aClasses,
+                handler);
+
+        // Store it
+        pProxies.put(aUid, proxy);
+        return proxy;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.pelix.IImportEndpointListener#endpointAdded(org.cohorte
+     * .remote.pelix.ImportEndpoint)
+     */
+    @Override
+    public synchronized void endpointAdded(final ImportEndpoint aEndpoint) {
+
+        // Check if the export configurations match a known one
+        final String configuration = getConfiguration(aEndpoint);
+        if (configuration == null) {
+            // Unknown export configuration, ignore
+            return;
+        }
+
+        final String accessProperty;
+        if (IBinaryRpcConstants.SHM_EXPORT_CONFIG.equals(configuration)) {
+            accessProperty = IBinaryRpcConstants.PROP_SHM_ACCESSES;
+
+        } else if (IBinaryRpcConstants.TCP_EXPORT_CONFIG
+                .equals(configuration)) {
+            accessProperty = IBinaryRpcConstants.PROP_TCP_ACCESSES;
+
+        } else {
+            accessProperty = IBinaryRpcConstants.PROP_HTTP_ACCESSES;
+        }
+
+        // Get the access URL: the binary exporters give a single access, the
+        // first non-empty one is kept if there are more
+        final String rawAccessUrl = (String) aEndpoint.getProperties().get(
+                accessProperty);
+        String accessUrl = null;
+        if (rawAccessUrl != null) {
+            for (final String access : rawAccessUrl.split(",")) {
+                if (!access.trim().isEmpty()) {
+                    accessUrl = access.trim();
+                    break;
+                }
+            }
+        }
+
+        if (accessUrl == null) {
+            pLogger.log(LogService.LOG_WARNING, "No access URL given: "
+                    + aEndpoint);
+            return;
+        }
+
+        final String server = aEndpoint.getServer();
+        if (server != null && !server.isEmpty()) {
+            accessUrl = accessUrl.replace("{server}", server);
+        }
+
+        pLogger.log(LogService.LOG_DEBUG, "Chosen access: " + accessUrl);
+
+        // Check if endpoint is known
+        if (pRegistrations.containsKey(aEndpoint.getUid())) {
+            return;
+        }
+
+        // Compute the name
+        final String name = (String) aEndpoint.getProperties().get(
+                IBinaryRpcConstants.PROP_ENDPOINT_NAME);
+        if (name == null || name.isEmpty()) {
+            pLogger.log(LogService.LOG_ERROR, "Remote endpoint has no name: "
+                    + aEndpoint);
+            return;
+        }
+
+        pLogger.log(LogService.LOG_DEBUG, "Importing " + aEndpoint
+                + " with name: " + name);
+
+        // Load interface classes
+        final Class<?>[] classes;
+        try {
+            classes = loadInterfaces(aEndpoint.getSpecifications());
+
+        } catch (final ClassNotFoundException ex) {
+            pLogger.log(LogService.LOG_ERROR,
+                    "No specification class could be loaded: " + ex, ex);
+            return;
+        }
+
+        // Register the service
+        final Object service;
+        try {
+            service = createProxy(aEndpoint.getUid(), name, configuration,
+                    accessUrl, classes);
+
+        } catch (final MalformedURLException ex) {
+            pLogger.log(LogService.LOG_ERROR, "Invalid access URL: "
+                    + accessUrl, ex);
+            return;
+        }
+
+        final ServiceRegistration<?> svcReg = pContext.registerService(
+                aEndpoint.getSpecifications(), service,
+                new Hashtable<String, Object>(aEndpoint.getProperties()));
+
+        // Store references
+        pRegistrations.put(aEndpoint.getUid(), svcReg);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.pelix.IImportEndpointListener#endpointRemoved(org.
+     * cohorte.remote.pelix.ImportEndpoint)
+     */
+    @Override
+    public synchronized void endpointRemoved(final ImportEndpoint aEndpoint) {
+
+        final String uid = aEndpoint.getUid();
+        final ServiceRegistration<?> svcReg = pRegistrations.remove(uid);
+        if (svcReg == null) {
+            // Unknown endpoint
+            pLogger.log(LogService.LOG_DEBUG, "Unknown endpoint: " + uid);
+            return;
+        }
+        svcReg.unregister();
+        pProxies.remove(uid);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IImportEndpointsListener#endpointsAdded(org.cohorte
+     * .remote.ImportEndpoint[])
+     */
+    @Override
+    public synchronized void endpointsAdded(final ImportEndpoint[] aEndpoints) {
+
+        for (final ImportEndpoint endpoint : aEndpoints) {
+            try {
+                endpointAdded(endpoint);
+
+            } catch (final RuntimeException ex) {
+                // Import the other endpoints anyway
+                pLogger.log(LogService.LOG_ERROR, "Error importing "
+                        + endpoint + ": " + ex, ex);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.pelix.IImportEndpointListener#endpointUpdated(org.
+     * cohorte.remote.pelix.ImportEndpoint, java.util.Map)
+     */
+    @Override
+    public synchronized void endpointUpdated(final ImportEndpoint aEndpoint,
+            final Map<String, Object> aOldProperties) {
+
+        final ServiceRegistration<?> svcReg = pRegistrations.get(aEndpoint
+                .getUid());
+        if (svcReg == null) {
+            // Unknown endpoint
+            return;
+        }
+
+        // Update service properties
+        svcReg.setProperties(new Hashtable<String, Object>(aEndpoint
+                .getProperties()));
+    }
+
+    /**
+     * Selects the export configuration to use to import an endpoint. The
+     * shared memory is preferred, but only if the endpoint has been exported
+     * on this host and if this platform supports it.
+     *
+     * @param aEndpoint
+     *            An imported endpoint
+     * @return The selected configuration, or null
+     */
+    private String getConfiguration(final ImportEndpoint aEndpoint) {
+
+        String selected = null;
+        for (final String config : aEndpoint.getConfigurations()) {
+            for (final String handledConfig : pConfigurations) {
+                if (!handledConfig.equals(config)) {
+                    continue;
+                }
+
+                if (!IBinaryRpcConstants.SHM_EXPORT_CONFIG.equals(config)) {
+                    selected = config;
+
+                } else if (ShmRing.isSupported()
+                        && ShmChannel.getHostId().equals(
+                                aEndpoint.getProperties().get(
+                                        IBinaryRpcConstants.PROP_SHM_HOST))) {
+                    // Same host
+                    return config;
+                }
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Computes the URL of an endpoint of a binary RPC servlet
+     *
+     * @param aAccessUrl
+     *            URL to the remote servlet
+     * @param aName
+     *            Endpoint name
+     * @return The URL of the endpoint
+     * @throws MalformedURLException
+     *             Invalid access URL
+     */
+    private URL getEndpointUrl(final String aAccessUrl, final String aName)
+            throws MalformedURLException {
+
+        // The endpoint name is the path of the calls
+        final String path;
+        try {
+            path = URLEncoder.encode(aName, "UTF-8").replace("+", "%20");
+
+        } catch (final UnsupportedEncodingException ex) {
+            // Can't happen: UTF-8 is always supported
+            throw new IllegalStateException(ex);
+        }
+
+        return new URL(aAccessUrl.endsWith("/") ? aAccessUrl + path
+                : aAccessUrl + "/" + path);
+    }
+
+    /**
+     * Component invalidated
+     */
+    @Invalidate
+    public void invalidate() {
+
+        // Close the connections of the framed transports
+        TcpRpcClient.closeAll();
+        ShmRpcClient.closeAll();
+    }
+
+    /**
+     * Tries to load remote service interfaces
+     *
+     * @param aSpecifications
+     *            Remote service interfaces
+     * @return An array of interfaces classes, or null
+     * @throws ClassNotFoundException
+     *             No specification class found
+     */
+    private Class<?>[] loadInterfaces(final String[] aSpecifications)
+            throws ClassNotFoundException {
+
+        // Invalid parameter
+        if (aSpecifications == null || aSpecifications.length == 0) {
+            pLogger.log(LogService.LOG_ERROR, "No/Empty interface list");
+            return null;
+        }
+
+        // Keep track of unknown classes
+        final List<String> unknownClasses = new LinkedList<String>();
+
+        // Find all accessible classes
+        final List<Class<?>> classes = new LinkedList<Class<?>>();
+        for (final String interfaceName : aSpecifications) {
+            if (interfaceName == null || interfaceName.isEmpty()) {
+                // Invalid interface name
+                continue;
+            }
+
+            // Finding the class using Class.forName(interfaceName) won't work.
+            // Only look into active bundles (not resolved ones)
+            final BundleClass foundClass = BundleClass.findClassInBundles(
+                    pContext.getBundles(), interfaceName, false);
+            if (foundClass != null) {
+                // Found an interface
+                final Class<?> interfaceClass = foundClass.getLoadedClass();
+                classes.add(interfaceClass);
+
+            } else {
+                // Unknown class name
+                unknownClasses.add(interfaceName);
+            }
+        }
+
+        // No interface found at all
+        if (classes.isEmpty()) {
+            final String specificationsString = Arrays
+                    .toString(aSpecifications);
+            pLogger.log(LogService.LOG_ERROR, "No interface found in: "
+                    + specificationsString);
+            throw new ClassNotFoundException(specificationsString);
+        }
+
+        // Some interfaces are missing
+        if (!unknownClasses.isEmpty()) {
+            pLogger.log(LogService.LOG_WARNING, "Some interfaces are missing: "
+                    + unknownClasses);
+        }
+
+        // Return the classes array
+        return classes.toArray(new Class<?>[0]);
+    }
+}
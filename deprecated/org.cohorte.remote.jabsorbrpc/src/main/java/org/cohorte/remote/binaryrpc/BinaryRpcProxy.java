@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.cohorte.remote.utilities.HttpConnectionPool;
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Invocation handler of the proxies of the services imported with the binary
+ * RPC transport
+ *
+ * @author Thomas Calmant
+ */
+class BinaryRpcProxy extends AbstractBinaryProxy {
+
+    /** URL of the endpoint */
+    private final URL pUrl;
+
+    /**
+     * Sets up the handler
+     *
+     * @param aUrl
+     *            URL of the endpoint
+     * @param aCodec
+     *            The codec of the calls
+     */
+    BinaryRpcProxy(final URL aUrl, final BinaryCodec aCodec) {
+
+        super(aCodec);
+        pUrl = aUrl;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.binaryrpc.AbstractBinaryProxy#send(java.lang.reflect
+     * .Method, org.cohorte.remote.utilities.ThreadByteBuffer)
+     */
+    @Override
+    protected Object send(final Method aMethod,
+            final ThreadByteBuffer aRequest) throws Throwable {
+
+        HttpURLConnection httpConnection = null;
+        try {
+            httpConnection = HttpConnectionPool.get().open(pUrl);
+            httpConnection.setRequestMethod("POST");
+            httpConnection.setDoOutput(true);
+            httpConnection.addRequestProperty("Content-Type",
+                    IBinaryRpcConstants.CONTENT_TYPE);
+            httpConnection.setFixedLengthStreamingMode(aRequest.size());
+
+            final OutputStream output = httpConnection.getOutputStream();
+            aRequest.writeTo(output);
+            output.close();
+
+            final int responseCode = httpConnection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Got HTTP Status " + responseCode
+                        + " for URL " + pUrl);
+            }
+
+            return readResponse(aMethod, BinaryInput.read(
+                    httpConnection.getInputStream(),
+                    httpConnection.getContentLength()));
+
+        } catch (final IOException ex) {
+            // The connection can't be reused
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
+            throw ex;
+
+        } finally {
+            HttpConnectionPool.get().release(httpConnection);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "BinaryRpcProxy(" + pUrl + ")";
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * The servlet calling the services exported with the binary RPC transport.
+ * The endpoint name is given as the path of the request.
+ *
+ * @author Thomas Calmant
+ */
+class BinaryRpcServlet extends HttpServlet {
+
+    /** Serial version UID */
+    private static final long serialVersionUID = 1L;
+
+    /** Endpoint name -&gt; Endpoint */
+    private final ConcurrentMap<String, BinaryEndpoint> pEndpoints = new ConcurrentHashMap<String, BinaryEndpoint>();
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest
+     * , javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    protected void doPost(final HttpServletRequest aReq,
+            final HttpServletResponse aResp) throws ServletException,
+            IOException {
+
+        final String path = aReq.getPathInfo();
+        final BinaryEndpoint endpoint = path != null ? pEndpoints.get(path
+                .substring(1)) : null;
+        if (endpoint == null) {
+            aResp.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "Unknown endpoint: " + path);
+            return;
+        }
+
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
+        try {
+            try {
+                final BinaryInput input = BinaryInput.read(
+                        aReq.getInputStream(), aReq.getContentLength());
+                final byte version = input.readByte();
+                if (version != IBinaryRpcConstants.VERSION) {
+                    aResp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Unsupported protocol version: " + version);
+                    return;
+                }
+
+                endpoint.call(input, buffer);
+
+            } catch (final IOException ex) {
+                aResp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                        "Invalid request: " + ex);
+                return;
+
+            } catch (final Throwable ex) {
+                // Unexpected error (e.g. encoding the result): the caller
+                // still waits for a binary response
+                buffer.reset();
+                final DataOutputStream output = new DataOutputStream(buffer);
+                BinaryEndpoint.writeError(output, ex);
+                output.flush();
+            }
+
+            aResp.setStatus(HttpServletResponse.SC_OK);
+            aResp.setContentType(IBinaryRpcConstants.CONTENT_TYPE);
+            aResp.setContentLength(buffer.size());
+
+            final OutputStream output = aResp.getOutputStream();
+            buffer.writeTo(output);
+            output.flush();
+
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Registers an exported service
+     *
+     * @param aName
+     *            Endpoint name
+     * @param aService
+     *            The service object
+     * @param aSpecifications
+     *            The exported interfaces names
+     */
+    void register(final String aName, final Object aService,
+            final String[] aSpecifications) {
+
+        pEndpoints.put(aName, new BinaryEndpoint(aService, aSpecifications));
+    }
+
+    /**
+     * Changes the name of an endpoint
+     *
+     * @param aOldName
+     *            Current endpoint name
+     * @param aNewName
+     *            New endpoint name
+     */
+    void rename(final String aOldName, final String aNewName) {
+
+        final BinaryEndpoint endpoint = pEndpoints.remove(aOldName);
+        if (endpoint != null) {
+            pEndpoints.put(aNewName, endpoint);
+        }
+    }
+
+    /**
+     * Unregisters an exported service
+     *
+     * @param aName
+     *            Endpoint name
+     */
+    void unregister(final String aName) {
+
+        pEndpoints.remove(aName);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Invocation handler of the proxies of the services imported with a framed
+ * transport (TCP or shared memory)
+ *
+ * @author Thomas Calmant
+ */
+class FrameRpcProxy extends AbstractBinaryProxy {
+
+    /** The client of the peer */
+    private final IFrameClient pClient;
+
+    /** Name of the endpoint */
+    private final String pName;
+
+    /** The encoded endpoint name, which starts all requests */
+    private final byte[] pPrefix;
+
+    /**
+     * Sets up the handler
+     *
+     * @param aClient
+     *            The client of the peer
+     * @param aName
+     *            Name of the endpoint
+     * @param aCodec
+     *            The codec of the calls
+     */
+    FrameRpcProxy(final IFrameClient aClient, final String aName,
+            final BinaryCodec aCodec) {
+
+        super(aCodec);
+        pClient = aClient;
+        pName = aName;
+
+        final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+        try {
+            BinaryCodec.writeString(new DataOutputStream(prefix), aName);
+
+        } catch (final IOException ex) {
+            // Can't happen: writing in memory
+            throw new IllegalStateException(ex);
+        }
+        pPrefix = prefix.toByteArray();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.binaryrpc.AbstractBinaryProxy#send(java.lang.reflect
+     * .Method, org.cohorte.remote.utilities.ThreadByteBuffer)
+     */
+    @Override
+    protected Object send(final Method aMethod,
+            final ThreadByteBuffer aRequest) throws Throwable {
+
+        return readResponse(aMethod,
+                new BinaryInput(pClient.call(pPrefix, aRequest)));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "FrameRpcProxy(" + pName + "@" + pClient + ")";
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+/**
+ * Constants of the binary RPC transport
+ *
+ * @author Thomas Calmant
+ */
+public interface IBinaryRpcConstants {
+
+    /** MIME type of the requests and responses */
+    String CONTENT_TYPE = "application/x-cohorte-binary-rpc";
+
+    /** Default servlet name */
+    String DEFAULT_SERVLET_NAME = "/BINARY-RPC";
+
+    /** The export configuration */
+    String EXPORT_CONFIG = "binary-rpc";
+
+    /** Name of the endpoint */
+    String PROP_ENDPOINT_NAME = "cohorte.binaryrpc.name";
+
+    /** HTTP accesses (comma-separated String) */
+    String PROP_HTTP_ACCESSES = "cohorte.binaryrpc.accesses";
+
+    /** Shared memory accesses (server directory) */
+    String PROP_SHM_ACCESSES = "cohorte.binaryshm.accesses";
+
+    /** ID of the host of the shared memory server */
+    String PROP_SHM_HOST = "cohorte.binaryshm.host";
+
+    /** TCP accesses (comma-separated String of tcp://host:port URIs) */
+    String PROP_TCP_ACCESSES = "cohorte.binarytcp.accesses";
+
+    /** The export configuration of the shared memory transport */
+    String SHM_EXPORT_CONFIG = "binary-shm";
+
+    /** Response status: the method returned a value */
+    byte STATUS_OK = 0;
+
+    /** Response status: the call failed (exception class name and message) */
+    byte STATUS_ERROR = 1;
+
+    /** The export configuration of the framed TCP transport */
+    String TCP_EXPORT_CONFIG = "binary-tcp";
+
+    /** Version of the protocol, first byte of the requests */
+    byte VERSION = 1;
+}
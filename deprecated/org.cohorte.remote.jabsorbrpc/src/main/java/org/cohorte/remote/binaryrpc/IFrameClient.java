@@ -0,0 +1,42 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.IOException;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Client side of a framed binary transport, multiplexing the calls of all
+ * threads to a peer
+ *
+ * @author Thomas Calmant
+ */
+interface IFrameClient {
+
+    /**
+     * Sends a request and waits for its response
+     *
+     * @param aPrefix
+     *            The beginning of the request payload
+     * @param aRequest
+     *            The end of the request payload
+     * @return The response payload
+     * @throws IOException
+     *             Connection error or time out
+     */
+    byte[] call(byte[] aPrefix, ThreadByteBuffer aRequest) throws IOException;
+}
@@ -0,0 +1,381 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.UUID;
+
+/**
+ * A memory-mapped file shared by a client and a server of the same host,
+ * holding a ring of requests and a ring of responses.
+ *
+ * The client creates the file in the directory of the server and locks it
+ * for its whole life: the server considers the client gone when it can lock
+ * the file. In the same way, the server locks a {@link #SERVER_LOCK} file in
+ * its directory.
+ *
+ * @author Thomas Calmant
+ */
+class ShmChannel {
+
+    /** Extension of the channel files */
+    static final String EXTENSION = ".chan";
+
+    /** Size of the file header */
+    private static final int FILE_HEADER_SIZE = 128;
+
+    /** Size of a frame header: frame size and call ID */
+    static final int HEADER_SIZE = 12;
+
+    /** Marker of an initialized file ("CSM1") */
+    private static final int MAGIC = 0x43534D31;
+
+    /** Offset of the capacity of the rings in the file header */
+    private static final int OFFSET_CAPACITY = 4;
+
+    /** Offset of the "server closed" flag in the file header */
+    private static final int OFFSET_CLOSED = 8;
+
+    /** Offset of the magic marker in the file header */
+    private static final int OFFSET_MAGIC = 0;
+
+    /** Name of the file locked by the server in its directory */
+    static final String SERVER_LOCK = "server.lock";
+
+    /** The host ID, computed once */
+    private static String sHostId;
+
+    /** The file */
+    private final File pFile;
+
+    /** The file lock, held by the client */
+    private FileLock pLock;
+
+    /** The mapped file */
+    private final MappedByteBuffer pMemory;
+
+    /** The opened file */
+    private final RandomAccessFile pRandomFile;
+
+    /** The requests ring (client to server) */
+    private final ShmRing pRequests;
+
+    /** The responses ring (server to client) */
+    private final ShmRing pResponses;
+
+    /**
+     * Sets up the channel
+     *
+     * @param aFile
+     *            The file
+     * @param aRandomFile
+     *            The opened file
+     * @param aCapacity
+     *            Capacity of each ring
+     * @throws IOException
+     *             Error mapping the file
+     */
+    private ShmChannel(final File aFile, final RandomAccessFile aRandomFile,
+            final int aCapacity) throws IOException {
+
+        pFile = aFile;
+        pRandomFile = aRandomFile;
+
+        final int ringSize = ShmRing.size(aCapacity);
+        pMemory = aRandomFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, FILE_HEADER_SIZE + 2 * ringSize);
+
+        pRequests = new ShmRing(slice(FILE_HEADER_SIZE, ringSize), aCapacity);
+        pResponses = new ShmRing(slice(FILE_HEADER_SIZE + ringSize, ringSize),
+                aCapacity);
+    }
+
+    /**
+     * Creates a channel file in the directory of a server (client side)
+     *
+     * @param aDirectory
+     *            The directory of the server
+     * @param aCapacity
+     *            Capacity of each ring (power of two)
+     * @return The locked channel
+     * @throws IOException
+     *             Error creating the file
+     */
+    static ShmChannel create(final File aDirectory, final int aCapacity)
+            throws IOException {
+
+        final File file = new File(aDirectory, UUID.randomUUID().toString()
+                + EXTENSION);
+        final RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+        try {
+            // Lock it before the server can see it initialized
+            final FileLock lock = randomFile.getChannel().lock();
+            randomFile.setLength(FILE_HEADER_SIZE + 2
+                    * ShmRing.size(aCapacity));
+
+            final ShmChannel channel = new ShmChannel(file, randomFile,
+                    aCapacity);
+            channel.pLock = lock;
+            channel.pMemory.putInt(OFFSET_CAPACITY, aCapacity);
+            channel.pMemory.putInt(OFFSET_MAGIC, MAGIC);
+            return channel;
+
+        } catch (final IOException ex) {
+            randomFile.close();
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the directory where the servers create their own directory:
+     * /dev/shm/cohorte if /dev/shm exists, else a directory in the temporary
+     * directory
+     *
+     * @return The base directory of the servers
+     */
+    static File getBaseDirectory() {
+
+        final File shm = new File("/dev/shm");
+        if (shm.isDirectory()) {
+            return new File(shm, "cohorte");
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "cohorte-shm");
+    }
+
+    /**
+     * Returns the ID of this host: the "cohorte.host.id" system property, the
+     * machine ID or the host name
+     *
+     * @return The host ID
+     */
+    static synchronized String getHostId() {
+
+        if (sHostId != null) {
+            return sHostId;
+        }
+
+        sHostId = System.getProperty("cohorte.host.id");
+        if (sHostId == null) {
+            try {
+                final BufferedReader reader = new BufferedReader(
+                        new FileReader("/etc/machine-id"));
+                try {
+                    sHostId = reader.readLine();
+
+                } finally {
+                    reader.close();
+                }
+
+            } catch (final IOException ex) {
+                // No machine ID
+            }
+        }
+
+        if (sHostId == null || sHostId.trim().isEmpty()) {
+            try {
+                sHostId = InetAddress.getLocalHost().getHostName();
+
+            } catch (final IOException ex) {
+                sHostId = "localhost";
+            }
+        }
+
+        sHostId = sHostId.trim();
+        return sHostId;
+    }
+
+    /**
+     * Checks if another process or this JVM holds a lock on the given file
+     *
+     * @param aFileChannel
+     *            An opened file
+     * @return True if the file is locked
+     */
+    static boolean isLocked(final FileChannel aFileChannel) {
+
+        try {
+            // Shared lock: the file can be opened in read-only mode
+            final FileLock lock = aFileChannel.tryLock(0, Long.MAX_VALUE,
+                    true);
+            if (lock == null) {
+                // Held by another process
+                return true;
+            }
+
+            lock.release();
+            return false;
+
+        } catch (final OverlappingFileLockException ex) {
+            // Held by this JVM
+            return true;
+
+        } catch (final IOException ex) {
+            // Can't tell: consider it alive
+            return true;
+        }
+    }
+
+    /**
+     * Opens a channel file created by a client (server side)
+     *
+     * @param aFile
+     *            A channel file
+     * @return The channel, or null if the file isn't initialized yet
+     * @throws IOException
+     *             Error opening the file
+     */
+    static ShmChannel open(final File aFile) throws IOException {
+
+        final RandomAccessFile randomFile = new RandomAccessFile(aFile, "rw");
+        try {
+            if (randomFile.length() >= FILE_HEADER_SIZE
+                    && randomFile.readInt() == MAGIC) {
+                final int capacity = randomFile.readInt();
+                if (randomFile.length() == FILE_HEADER_SIZE + 2
+                        * ShmRing.size(capacity)) {
+                    return new ShmChannel(aFile, randomFile, capacity);
+                }
+            }
+
+        } catch (final IOException ex) {
+            randomFile.close();
+            throw ex;
+
+        } catch (final IllegalArgumentException ex) {
+            // Invalid capacity
+            randomFile.close();
+            throw new IOException("Invalid channel file: " + aFile);
+        }
+
+        // Not ready
+        randomFile.close();
+        return null;
+    }
+
+    /**
+     * Closes the file and releases the lock, if any. The mapping stays valid
+     * until it is garbage collected.
+     */
+    void close() {
+
+        try {
+            if (pLock != null) {
+                pLock.release();
+            }
+            pRandomFile.close();
+
+        } catch (final IOException ex) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Returns the channel file
+     *
+     * @return The channel file
+     */
+    File getFile() {
+
+        return pFile;
+    }
+
+    /**
+     * Returns the requests ring (client to server)
+     *
+     * @return The requests ring
+     */
+    ShmRing getRequests() {
+
+        return pRequests;
+    }
+
+    /**
+     * Returns the responses ring (server to client)
+     *
+     * @return The responses ring
+     */
+    ShmRing getResponses() {
+
+        return pResponses;
+    }
+
+    /**
+     * Checks if the client still holds the channel file
+     *
+     * @return True if the client is alive
+     */
+    boolean isClientAlive() {
+
+        return isLocked(pRandomFile.getChannel());
+    }
+
+    /**
+     * Checks if the server has closed the channel
+     *
+     * @return True if the server is closed
+     */
+    boolean isServerClosed() {
+
+        return pMemory.getInt(OFFSET_CLOSED) != 0;
+    }
+
+    /**
+     * Notifies the client that the server is closed
+     */
+    void setServerClosed() {
+
+        pMemory.putInt(OFFSET_CLOSED, 1);
+    }
+
+    /**
+     * Returns a view of a part of the file
+     *
+     * @param aOffset
+     *            Offset of the part
+     * @param aSize
+     *            Size of the part
+     * @return A view of the part
+     */
+    private ByteBuffer slice(final int aOffset, final int aSize) {
+
+        final ByteBuffer view = pMemory.duplicate();
+        view.position(aOffset);
+        view.limit(aOffset + aSize);
+        return view.slice();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "ShmChannel(" + pFile + ")";
+    }
+}
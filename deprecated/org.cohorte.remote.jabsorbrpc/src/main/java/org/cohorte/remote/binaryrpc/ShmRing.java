@@ -0,0 +1,325 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring of frames in a memory-mapped file.
+ * The ring starts with its write position (at offset 0) and read position (at
+ * offset 64, on another cache line), followed by its data.
+ *
+ * A record is made of its size (int, excluding itself), a call ID (long) and
+ * a payload, aligned on 8 bytes. A negative size marks the end of the data
+ * before the ring wraps.
+ *
+ * The positions are published with plain accesses to the mapped memory,
+ * ordered for the compiler by {@link #fence()}: the rings rely on the
+ * processor keeping the stores in order and the loads in order, and can only
+ * be used on x86 processors (see {@link #isSupported()}).
+ *
+ * @author Thomas Calmant
+ */
+class ShmRing {
+
+    /**
+     * A frame read from the ring
+     */
+    static final class Frame {
+
+        /** The call ID */
+        final long pCallId;
+
+        /** The payload */
+        final byte[] pPayload;
+
+        /**
+         * Sets up the frame
+         *
+         * @param aCallId
+         *            The call ID
+         * @param aPayload
+         *            The payload
+         */
+        private Frame(final long aCallId, final byte[] aPayload) {
+
+            pCallId = aCallId;
+            pPayload = aPayload;
+        }
+    }
+
+    /** Offset of the data of the ring */
+    private static final int DATA_OFFSET = 128;
+
+    /** Maximum park time when idle (1 ms) */
+    private static final long MAX_PARK = 1000000L;
+
+    /** Maximum park time after a long idle period (20 ms) */
+    private static final long MAX_SLEEP = 20000000L;
+
+    /** Size marker of the padding before the ring wraps */
+    private static final int PADDING = -1;
+
+    /** Offset of the read position */
+    private static final int READ_OFFSET = 64;
+
+    /**
+     * Number of idle loops before parking longer (about one second of short
+     * parks)
+     */
+    private static final int SLEEP_LOOPS = 1200;
+
+    /** Number of idle loops spent spinning before yielding */
+    private static final int SPIN_LOOPS = 100;
+
+    /** Offset of the write position */
+    private static final int WRITE_OFFSET = 0;
+
+    /** Number of idle loops spent yielding before parking */
+    private static final int YIELD_LOOPS = 200;
+
+    /** Capacity of the data part (power of two) */
+    private final int pCapacity;
+
+    /** View of the data, used by the consumer */
+    private final ByteBuffer pConsumer;
+
+    /** Store/load fence of the positions (see {@link #fence()}) */
+    private volatile int pFence;
+
+    /** The mapped ring (header and data) */
+    private final ByteBuffer pMemory;
+
+    /** View of the data, used by the producer */
+    private final ByteBuffer pProducer;
+
+    /**
+     * Sets up the ring
+     *
+     * @param aMemory
+     *            The mapped memory, starting with the ring header
+     * @param aCapacity
+     *            Capacity of the data part (power of two)
+     */
+    ShmRing(final ByteBuffer aMemory, final int aCapacity) {
+
+        if (Integer.bitCount(aCapacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Ring capacity must be a power of two: " + aCapacity);
+        }
+
+        pCapacity = aCapacity;
+        pMemory = aMemory;
+
+        final ByteBuffer data = aMemory.duplicate();
+        data.position(DATA_OFFSET);
+        data.limit(DATA_OFFSET + aCapacity);
+        pConsumer = data.slice();
+        pProducer = data.slice();
+    }
+
+    /**
+     * Rounds the given size up to a multiple of 8
+     *
+     * @param aSize
+     *            A size
+     * @return The aligned size
+     */
+    private static int align(final int aSize) {
+
+        return aSize + 7 & ~7;
+    }
+
+    /**
+     * Waits a little, for the given idle loop: spins, then yields, then parks
+     * for an increasing time, up to 1 ms. After about a second without
+     * activity, parks up to 20 ms, so that an idle peer wakes up about 50
+     * times per second instead of 1000, at the cost of the latency of the
+     * next frame.
+     *
+     * @param aLoop
+     *            Number of consecutive idle loops
+     * @return The number to give for the next idle loop (it stops growing
+     *         once the longest park is reached)
+     */
+    static int idle(final int aLoop) {
+
+        if (aLoop < SPIN_LOOPS) {
+            // Busy spin
+
+        } else if (aLoop < YIELD_LOOPS) {
+            Thread.yield();
+
+        } else if (aLoop < SLEEP_LOOPS) {
+            LockSupport.parkNanos(Math.min(MAX_PARK,
+                    1000L << Math.min(aLoop - YIELD_LOOPS, 10)));
+
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_SLEEP,
+                    MAX_PARK << Math.min(aLoop - SLEEP_LOOPS, 6)));
+        }
+
+        return Math.min(aLoop + 1, SLEEP_LOOPS + 6);
+    }
+
+    /**
+     * Tests if the rings can be used on this platform: only x86 processors
+     * keep the order of the stores and of the loads to the mapped memory.
+     * Weaker memory models, like ARM or POWER ones, would need real
+     * release/acquire barriers.
+     *
+     * @return True if the processor is a x86 one
+     */
+    static boolean isSupported() {
+
+        final String arch = System.getProperty("os.arch", "").toLowerCase();
+        return arch.equals("amd64") || arch.equals("x86_64")
+                || arch.equals("x86") || arch.matches("i[3-6]86");
+    }
+
+    /**
+     * Returns the size of the ring in the mapped file
+     *
+     * @param aCapacity
+     *            Capacity of the data part
+     * @return The size of the ring, with its header
+     */
+    static int size(final int aCapacity) {
+
+        return DATA_OFFSET + aCapacity;
+    }
+
+    /**
+     * Orders the accesses to the mapped memory with the accesses to the
+     * positions, with a volatile write then read
+     */
+    private void fence() {
+
+        pFence = pFence + 1;
+    }
+
+    /**
+     * Returns the maximum size of a frame payload
+     *
+     * @return The maximum payload size
+     */
+    int getMaxPayload() {
+
+        return pCapacity / 2 - ShmChannel.HEADER_SIZE;
+    }
+
+    /**
+     * Writes a frame in the ring, if there is enough room for it (called by
+     * the producer only)
+     *
+     * @param aCallId
+     *            The call ID
+     * @param aPrefix
+     *            The beginning of the payload
+     * @param aData
+     *            The end of the payload
+     * @param aLength
+     *            Number of bytes of aData to write
+     * @return False if the ring is full
+     * @throws IOException
+     *             Frame too large for the ring
+     */
+    boolean offer(final long aCallId, final byte[] aPrefix,
+            final byte[] aData, final int aLength) throws IOException {
+
+        final int payloadSize = aPrefix.length + aLength;
+        if (payloadSize > getMaxPayload()) {
+            throw new IOException("Frame too large for the shared memory: "
+                    + payloadSize + " bytes");
+        }
+
+        final int recordSize = align(ShmChannel.HEADER_SIZE + payloadSize);
+        final long write = pMemory.getLong(WRITE_OFFSET);
+        fence();
+        final long read = pMemory.getLong(READ_OFFSET);
+
+        int index = (int) (write & pCapacity - 1);
+        int padding = 0;
+        if (index + recordSize > pCapacity) {
+            // Not enough room before the end: wrap
+            padding = pCapacity - index;
+        }
+
+        if (write + padding + recordSize - read > pCapacity) {
+            // Full
+            return false;
+        }
+
+        if (padding != 0) {
+            pProducer.putInt(index, PADDING);
+            index = 0;
+        }
+
+        pProducer.putInt(index, 8 + payloadSize);
+        pProducer.putLong(index + 4, aCallId);
+        pProducer.position(index + ShmChannel.HEADER_SIZE);
+        pProducer.put(aPrefix);
+        pProducer.put(aData, 0, aLength);
+
+        // Publish the record
+        fence();
+        pMemory.putLong(WRITE_OFFSET, write + padding + recordSize);
+        return true;
+    }
+
+    /**
+     * Reads the next frame of the ring (called by the consumer only)
+     *
+     * @return The next frame, or null if the ring is empty
+     * @throws IOException
+     *             Invalid frame
+     */
+    Frame poll() throws IOException {
+
+        long read = pMemory.getLong(READ_OFFSET);
+        final long write = pMemory.getLong(WRITE_OFFSET);
+        fence();
+        if (read == write) {
+            // Empty
+            return null;
+        }
+
+        int index = (int) (read & pCapacity - 1);
+        int size = pConsumer.getInt(index);
+        if (size == PADDING) {
+            // Wrap
+            read += pCapacity - index;
+            index = 0;
+            size = pConsumer.getInt(index);
+        }
+
+        if (size < 8 || size > pCapacity / 2) {
+            throw new IOException("Invalid frame size: " + size);
+        }
+
+        final long callId = pConsumer.getLong(index + 4);
+        final byte[] payload = new byte[size - 8];
+        pConsumer.position(index + ShmChannel.HEADER_SIZE);
+        pConsumer.get(payload);
+
+        // Free the record
+        fence();
+        pMemory.putLong(READ_OFFSET, read + align(4 + size));
+        return new Frame(callId, payload);
+    }
+}
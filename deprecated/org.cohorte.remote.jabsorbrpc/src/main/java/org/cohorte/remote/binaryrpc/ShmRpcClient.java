@@ -0,0 +1,363 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Client side of the shared memory transport: a channel file per server
+ * directory, shared by all the concurrent calls. The calls are matched to
+ * their responses by their ID, so responses can come back in any order.
+ *
+ * @author Thomas Calmant
+ */
+final class ShmRpcClient implements IFrameClient {
+
+    /**
+     * A call waiting for its response
+     */
+    private static final class Call {
+
+        /** Released when the call is over */
+        private final CountDownLatch pDone = new CountDownLatch(1);
+
+        /** The channel error */
+        private IOException pError;
+
+        /** The response payload */
+        private byte[] pResponse;
+    }
+
+    /**
+     * A channel to the server, with a thread reading the responses
+     */
+    private final class Connection implements Runnable {
+
+        /** The pending calls: Call ID -&gt; Call */
+        private final ConcurrentMap<Long, Call> pCalls = new ConcurrentHashMap<Long, Call>();
+
+        /** The channel file */
+        private final ShmChannel pChannel;
+
+        /** Set when the channel is closed */
+        private volatile boolean pClosed;
+
+        /** The thread reading the responses */
+        private final Thread pReader;
+
+        /** The lock file of the server */
+        private final RandomAccessFile pServerLock;
+
+        /** Set when a request has been sent, to wake up the reader */
+        private volatile boolean pWakeUp;
+
+        /**
+         * Creates the channel file and starts the reading thread
+         *
+         * @throws IOException
+         *             Error creating the channel
+         */
+        private Connection() throws IOException {
+
+            final File lockFile = new File(pDirectory, ShmChannel.SERVER_LOCK);
+            if (!lockFile.exists()) {
+                throw new IOException("No server in " + pDirectory);
+            }
+
+            pServerLock = new RandomAccessFile(lockFile, "r");
+            try {
+                pChannel = ShmChannel.create(pDirectory, RING_SIZE);
+
+            } catch (final IOException ex) {
+                pServerLock.close();
+                throw ex;
+            }
+
+            pReader = new Thread(this, "binary-shm-client-"
+                    + pDirectory.getName());
+            pReader.setDaemon(true);
+            pReader.start();
+        }
+
+        /**
+         * Sends a request and waits for its response
+         *
+         * @param aPrefix
+         *            The beginning of the request payload
+         * @param aRequest
+         *            The end of the request payload
+         * @return The response payload
+         * @throws IOException
+         *             Channel error or time out
+         */
+        private byte[] call(final byte[] aPrefix,
+                final ThreadByteBuffer aRequest) throws IOException {
+
+            final Long callId = Long.valueOf(pNextCallId.incrementAndGet());
+            final Call call = new Call();
+            pCalls.put(callId, call);
+            if (pClosed) {
+                // Lost before the call was stored
+                pCalls.remove(callId);
+                throw new IOException("Channel to " + pDirectory + " lost");
+            }
+
+            final long deadline = System.currentTimeMillis() + TIMEOUT;
+            try {
+                final ShmRing ring = pChannel.getRequests();
+                synchronized (ring) {
+                    int loop = 0;
+                    while (!ring.offer(callId.longValue(), aPrefix,
+                            aRequest.getBuffer(), aRequest.size())) {
+                        if (pClosed || System.currentTimeMillis() > deadline) {
+                            throw new SocketTimeoutException(
+                                    "Server in " + pDirectory
+                                            + " doesn't read its requests");
+                        }
+                        loop = ShmRing.idle(loop);
+                    }
+                }
+
+                // The reader may be in a long park after an idle period
+                pWakeUp = true;
+                LockSupport.unpark(pReader);
+
+                // Spin a little, as the response often comes back quickly
+                for (int loop = 0; loop < WAIT_LOOPS
+                        && call.pDone.getCount() != 0; loop++) {
+                    ShmRing.idle(loop);
+                }
+
+                if (!call.pDone.await(deadline - System.currentTimeMillis(),
+                        TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No response from "
+                            + pDirectory + " after " + TIMEOUT + " ms");
+                }
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for "
+                        + pDirectory);
+
+            } finally {
+                pCalls.remove(callId);
+            }
+
+            if (call.pError != null) {
+                throw new IOException("Channel to " + pDirectory + " lost",
+                        call.pError);
+            }
+            return call.pResponse;
+        }
+
+        /**
+         * Closes the channel, deletes its file and fails the pending calls
+         *
+         * @param aError
+         *            The cause of the closing
+         */
+        private synchronized void close(final IOException aError) {
+
+            if (pClosed) {
+                return;
+            }
+
+            pClosed = true;
+            pChannel.close();
+            pChannel.getFile().delete();
+            try {
+                pServerLock.close();
+
+            } catch (final IOException ex) {
+                // Ignore
+            }
+
+            for (final Call call : pCalls.values()) {
+                call.pError = aError;
+                call.pDone.countDown();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+
+            final FileChannel serverLock = pServerLock.getChannel();
+            final ShmRing ring = pChannel.getResponses();
+            long nextCheck = System.currentTimeMillis() + CHECK_INTERVAL;
+            int idleLoop = 0;
+            try {
+                while (!pClosed) {
+                    final ShmRing.Frame frame = ring.poll();
+                    if (frame != null) {
+                        idleLoop = 0;
+                        final Call call = pCalls.remove(Long
+                                .valueOf(frame.pCallId));
+                        if (call != null) {
+                            // Otherwise, the call has timed out
+                            call.pResponse = frame.pPayload;
+                            call.pDone.countDown();
+                        }
+                        continue;
+                    }
+
+                    if (System.currentTimeMillis() >= nextCheck) {
+                        if (pChannel.isServerClosed()
+                                || !ShmChannel.isLocked(serverLock)) {
+                            throw new IOException("Server in " + pDirectory
+                                    + " is gone");
+                        }
+                        nextCheck = System.currentTimeMillis()
+                                + CHECK_INTERVAL;
+                    }
+
+                    idleLoop = ShmRing.idle(idleLoop);
+                    if (pWakeUp) {
+                        // Requests sent: poll often again
+                        pWakeUp = false;
+                        idleLoop = 0;
+                    }
+                }
+
+            } catch (final IOException ex) {
+                close(ex);
+            }
+        }
+    }
+
+    /** Interval between two checks of the server, in milliseconds */
+    private static final long CHECK_INTERVAL = 100;
+
+    /** Capacity of the rings, in bytes (power of two) */
+    private static final int RING_SIZE = Integer.getInteger(
+            "cohorte.binaryshm.ring.size", 1024 * 1024).intValue();
+
+    /** Maximum time to wait for a response, in milliseconds */
+    private static final long TIMEOUT = Long.getLong(
+            "cohorte.binaryshm.timeout", 60000).longValue();
+
+    /** Number of idle loops waiting for a response before blocking */
+    private static final int WAIT_LOOPS = 200;
+
+    /** The clients: Server directory -&gt; client */
+    private static final ConcurrentMap<String, ShmRpcClient> sClients = new ConcurrentHashMap<String, ShmRpcClient>();
+
+    /** The current channel to the server */
+    private Connection pConnection;
+
+    /** The server directory */
+    private final File pDirectory;
+
+    /** The next call ID */
+    private final AtomicLong pNextCallId = new AtomicLong();
+
+    /**
+     * Sets up the client
+     *
+     * @param aDirectory
+     *            The server directory
+     */
+    private ShmRpcClient(final File aDirectory) {
+
+        pDirectory = aDirectory;
+    }
+
+    /**
+     * Closes the channels of all clients
+     */
+    static void closeAll() {
+
+        for (final ShmRpcClient client : sClients.values()) {
+            synchronized (client) {
+                if (client.pConnection != null) {
+                    client.pConnection.close(new IOException("Client closed"));
+                }
+            }
+        }
+        sClients.clear();
+    }
+
+    /**
+     * Returns the client of the given server
+     *
+     * @param aDirectory
+     *            The server directory
+     * @return The client of the server
+     */
+    static ShmRpcClient get(final String aDirectory) {
+
+        ShmRpcClient client = sClients.get(aDirectory);
+        if (client == null) {
+            client = new ShmRpcClient(new File(aDirectory));
+            final ShmRpcClient known = sClients.putIfAbsent(aDirectory, client);
+            if (known != null) {
+                client = known;
+            }
+        }
+        return client;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.binaryrpc.IFrameClient#call(byte[],
+     * org.cohorte.remote.utilities.ThreadByteBuffer)
+     */
+    @Override
+    public byte[] call(final byte[] aPrefix, final ThreadByteBuffer aRequest)
+            throws IOException {
+
+        Connection connection;
+        synchronized (this) {
+            connection = pConnection;
+            if (connection == null || connection.pClosed) {
+                // (Re)create the channel
+                connection = new Connection();
+                pConnection = connection;
+            }
+        }
+
+        return connection.call(aPrefix, aRequest);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "ShmRpcClient(" + pDirectory + ")";
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Property;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.remote.ExportEndpoint;
+import org.cohorte.remote.IRemoteServicesConstants;
+import org.cohorte.remote.IServiceExporter;
+import org.cohorte.remote.utilities.RSUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.log.LogService;
+
+/**
+ * Service exporter using the binary encoding over memory-mapped files, for
+ * the isolates of the same host
+ *
+ * @author Thomas Calmant
+ */
+@Component(name = "cohorte-remote-exporter-binaryshm-factory")
+@Provides(specifications = IServiceExporter.class)
+@Instantiate(name = "cohorte-remote-exporter-binaryshm")
+public class ShmRpcExporter implements IServiceExporter {
+
+    /** Supported export configurations */
+    @Property(name = Constants.REMOTE_CONFIGS_SUPPORTED,
+            value = "{" + IBinaryRpcConstants.SHM_EXPORT_CONFIG + "}")
+    private String[] pConfigurations;
+
+    /** The bundle context */
+    private final BundleContext pContext;
+
+    /** Exported services: Name -&gt; ExportEndpoint */
+    private final Map<String, ExportEndpoint> pEndpoints = new LinkedHashMap<String, ExportEndpoint>();
+
+    /** Framework UID */
+    private String pFrameworkUid;
+
+    /** The logger */
+    @Requires
+    private LogService pLogger;
+
+    /** Server directory (empty for a directory in the default one) */
+    @Property(name = "shm.directory", value = "")
+    private String pDirectory;
+
+    /** The server calling the exported services */
+    private ShmRpcServer pServer;
+
+    /** Maximum number of concurrent calls */
+    @Property(name = "shm.threads", value = "8")
+    private int pThreads;
+
+    /**
+     * Component constructed
+     *
+     * @param aContext
+     *            The bundle context
+     */
+    public ShmRpcExporter(final BundleContext aContext) {
+
+        pContext = aContext;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#exportService(org.osgi.framework
+     * .ServiceReference, java.lang.String, java.lang.String)
+     */
+    @Override
+    public synchronized ExportEndpoint exportService(
+            final ServiceReference<?> aReference, final String aName,
+            final String aFramworkUid) throws BundleException {
+
+        // Prefer the name given in properties, if any
+        String name = (String) aReference
+                .getProperty(IBinaryRpcConstants.PROP_ENDPOINT_NAME);
+        if (name == null) {
+            name = aName;
+        }
+
+        if (pServer == null) {
+            throw new BundleException("BINARY-SHM server not started");
+        }
+
+        if (pEndpoints.containsKey(name)) {
+            pLogger.log(LogService.LOG_ERROR,
+                    "Already use BINARY-SHM endpoint: " + name);
+            return null;
+        }
+
+        // Get the service
+        final Object service = pContext.getService(aReference);
+        if (service == null) {
+            throw new BundleException("Service is gone: " + aReference);
+        }
+
+        // Prepare extra properties
+        final Map<String, Object> extraProps = new LinkedHashMap<String, Object>();
+        extraProps.put(IBinaryRpcConstants.PROP_ENDPOINT_NAME, name);
+        extraProps.put(IBinaryRpcConstants.PROP_SHM_ACCESSES, pServer
+                .getDirectory().getAbsolutePath());
+        extraProps.put(IBinaryRpcConstants.PROP_SHM_HOST,
+                ShmChannel.getHostId());
+
+        // Prepare the endpoint bean
+        final ExportEndpoint endpoint = new ExportEndpoint(UUID.randomUUID()
+                .toString(), pFrameworkUid, pConfigurations, name, aReference,
+                extraProps);
+
+        // Register the object in the server
+        pServer.getEndpoints().register(name, service,
+                (String[]) aReference.getProperty(Constants.OBJECTCLASS));
+
+        // Store information
+        pEndpoints.put(name, endpoint);
+        return endpoint;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.IServiceExporter#handles(java.lang.String[])
+     */
+    @Override
+    public boolean handles(final String[] aConfigurations) {
+
+        if (pServer == null) {
+            // Not started (unsupported platform or error)
+            return false;
+        }
+
+        if (aConfigurations == null) {
+            // null = "match all"
+            return true;
+        }
+
+        // Look for a match in configurations
+        for (final String config : aConfigurations) {
+            for (final String handledConfig : pConfigurations) {
+                if (handledConfig.equals(config)) {
+                    // Got a match
+                    return true;
+                }
+            }
+        }
+
+        // No match
+        return false;
+    }
+
+    /**
+     * Component invalidated
+     */
+    @Invalidate
+    public void invalidate() {
+
+        // Destroy end points
+        final ExportEndpoint[] endpoints = pEndpoints.values().toArray(
+                new ExportEndpoint[0]);
+        for (final ExportEndpoint endpoint : endpoints) {
+            try {
+                // Release the service, unregister the endpoint
+                unexportService(endpoint);
+
+            } catch (final Exception ex) {
+                // Just log the error
+                pLogger.log(LogService.LOG_WARNING,
+                        "Error unregistering service: " + ex, ex);
+            }
+        }
+
+        // Stop the server
+        if (pServer != null) {
+            pServer.close();
+            pServer = null;
+        }
+
+        pFrameworkUid = null;
+        pLogger.log(LogService.LOG_INFO, "BINARY-SHM exporter gone");
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#unexportService(org.cohorte.remote
+     * .ExportEndpoint)
+     */
+    @Override
+    public synchronized void unexportService(final ExportEndpoint aEndpoint) {
+
+        // Pop the endpoint
+        if (pEndpoints.remove(aEndpoint.getName()) != null) {
+            // Destroy the endpoint
+            pServer.getEndpoints().unregister(aEndpoint.getName());
+
+            // Release the service
+            pContext.ungetService(aEndpoint.getReference());
+
+        } else {
+            // Unknown endpoint
+            pLogger.log(LogService.LOG_WARNING, "Unknown endpoint: "
+                    + aEndpoint);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IServiceExporter#updateExport(org.cohorte.remote.
+     * ExportEndpoint, java.lang.String, java.util.Map)
+     */
+    @Override
+    public synchronized void updateExport(final ExportEndpoint aEndpoint,
+            final String aNewName, final Map<String, Object> aOldProperties) {
+
+        final ExportEndpoint knownEndpoint = pEndpoints.get(aNewName);
+        if (knownEndpoint != null && !knownEndpoint.equals(aEndpoint)) {
+            // Name already taken by another endpoint: reject it
+            throw new IllegalArgumentException("New name of " + aEndpoint
+                    + " is already in use: " + aNewName);
+        }
+
+        // Update storage
+        pEndpoints.put(aNewName, pEndpoints.remove(aEndpoint.getName()));
+        pServer.getEndpoints().rename(aEndpoint.getName(), aNewName);
+
+        // Update the endpoint
+        aEndpoint.setName(aNewName);
+    }
+
+    /**
+     * Component validated
+     */
+    @Validate
+    public void validate() {
+
+        // Setup the isolate UID
+        pFrameworkUid = RSUtils.setupUID(pContext,
+                IRemoteServicesConstants.ISOLATE_UID);
+
+        if (!ShmRing.isSupported()) {
+            pLogger.log(LogService.LOG_INFO,
+                    "BINARY-SHM exporter disabled: unsupported architecture "
+                            + System.getProperty("os.arch"));
+            return;
+        }
+
+        // Start the server in its own directory
+        final File directory;
+        if (pDirectory == null || pDirectory.isEmpty()) {
+            directory = new File(ShmChannel.getBaseDirectory(), pFrameworkUid);
+
+        } else {
+            directory = new File(pDirectory);
+        }
+
+        try {
+            pServer = new ShmRpcServer(directory, pThreads);
+            pServer.start();
+
+        } catch (final IOException ex) {
+            pLogger.log(LogService.LOG_ERROR,
+                    "Error starting the BINARY-SHM server in " + directory, ex);
+            return;
+        }
+
+        pLogger.log(LogService.LOG_INFO,
+                "BINARY-SHM exporter ready, directory=" + directory);
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Server side of the shared memory transport. A single thread polls the
+ * requests rings of all the channel files created by the clients in the
+ * server directory; the calls are executed by a thread pool, which writes the
+ * responses in the responses rings.
+ *
+ * The payload of a request is the endpoint name followed by a binary RPC
+ * request; the payload of a response is a binary RPC response.
+ *
+ * @author Thomas Calmant
+ */
+class ShmRpcServer implements Runnable {
+
+    /** Interval between two scans of the directory, in milliseconds */
+    private static final long SCAN_INTERVAL = 100;
+
+    /** The channels of the clients: File -&gt; Channel */
+    private final ConcurrentMap<File, ShmChannel> pChannels = new ConcurrentHashMap<File, ShmChannel>();
+
+    /** The server directory */
+    private final File pDirectory;
+
+    /** The exported services */
+    private final BinaryEndpoints pEndpoints = new BinaryEndpoints();
+
+    /** The threads executing the calls */
+    private final ThreadPoolExecutor pExecutor;
+
+    /** The lock telling the clients the server is alive */
+    private final FileLock pLock;
+
+    /** The polling thread loop control */
+    private volatile boolean pRunning;
+
+    /** The polling thread */
+    private Thread pThread;
+
+    /**
+     * Prepares the server directory
+     *
+     * @param aDirectory
+     *            The server directory
+     * @param aThreads
+     *            The maximum number of concurrent calls
+     * @throws IOException
+     *             Error preparing the directory
+     */
+    ShmRpcServer(final File aDirectory, final int aThreads)
+            throws IOException {
+
+        pDirectory = aDirectory;
+        if (!aDirectory.isDirectory() && !aDirectory.mkdirs()) {
+            throw new IOException("Can't create directory " + aDirectory);
+        }
+
+        final RandomAccessFile lockFile = new RandomAccessFile(new File(
+                aDirectory, ShmChannel.SERVER_LOCK), "rw");
+        pLock = lockFile.getChannel().tryLock();
+        if (pLock == null) {
+            lockFile.close();
+            throw new IOException("Directory already used by another server: "
+                    + aDirectory);
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        pExecutor = new ThreadPoolExecutor(aThreads, aThreads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+
+                        final Thread thread = new Thread(aRunnable,
+                                "binary-shm-call-"
+                                        + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops the server and closes all channels
+     */
+    void close() {
+
+        pRunning = false;
+        try {
+            pThread.join();
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        pExecutor.shutdown();
+        for (final ShmChannel channel : pChannels.values()) {
+            // Let the client fail its calls
+            channel.setServerClosed();
+            channel.close();
+        }
+        pChannels.clear();
+        pEndpoints.clear();
+
+        try {
+            pLock.release();
+            pLock.channel().close();
+
+        } catch (final IOException ex) {
+            // Ignore
+        }
+
+        // The clients delete their own files
+        new File(pDirectory, ShmChannel.SERVER_LOCK).delete();
+        pDirectory.delete();
+    }
+
+    /**
+     * Closes the channel of a client and deletes its file
+     *
+     * @param aChannel
+     *            A client channel
+     */
+    private void close(final ShmChannel aChannel) {
+
+        aChannel.close();
+        aChannel.getFile().delete();
+    }
+
+    /**
+     * Returns the server directory
+     *
+     * @return The server directory
+     */
+    File getDirectory() {
+
+        return pDirectory;
+    }
+
+    /**
+     * Returns the exported services
+     *
+     * @return The exported services
+     */
+    BinaryEndpoints getEndpoints() {
+
+        return pEndpoints;
+    }
+
+    /**
+     * Executes a call and writes its response (called by the executor)
+     *
+     * @param aChannel
+     *            The channel of the caller
+     * @param aFrame
+     *            The request frame
+     */
+    private void handle(final ShmChannel aChannel, final ShmRing.Frame aFrame) {
+
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
+        try {
+            try {
+                pEndpoints.call(new BinaryInput(aFrame.pPayload), buffer);
+
+            } catch (final Throwable ex) {
+                // Unexpected error (e.g. encoding the result): the caller
+                // still waits for a response
+                buffer.reset();
+                final DataOutputStream output = new DataOutputStream(buffer);
+                BinaryEndpoint.writeError(output, ex);
+                output.flush();
+            }
+
+            final ShmRing ring = aChannel.getResponses();
+            synchronized (ring) {
+                try {
+                    respond(aChannel, aFrame.pCallId, buffer);
+
+                } catch (final IOException ex) {
+                    // Response too large: send the error instead
+                    buffer.reset();
+                    final DataOutputStream output = new DataOutputStream(
+                            buffer);
+                    BinaryEndpoint.writeError(output, ex);
+                    output.flush();
+                    respond(aChannel, aFrame.pCallId, buffer);
+                }
+            }
+
+        } catch (final IOException ex) {
+            // Can't happen: the error response is small
+            throw new IllegalStateException(ex);
+
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Looks for new channel files and closes the channels of the clients
+     * which are gone
+     */
+    private void scan() {
+
+        final Iterator<ShmChannel> iterator = pChannels.values().iterator();
+        while (iterator.hasNext()) {
+            final ShmChannel channel = iterator.next();
+            if (!channel.isClientAlive()) {
+                iterator.remove();
+                close(channel);
+            }
+        }
+
+        final File[] files = pDirectory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(final File aFile) {
+
+                return aFile.getName().endsWith(ShmChannel.EXTENSION);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            if (pChannels.containsKey(file)) {
+                continue;
+            }
+
+            try {
+                final ShmChannel channel = ShmChannel.open(file);
+                if (channel == null) {
+                    // Not initialized yet
+                    continue;
+                }
+
+                if (channel.isClientAlive()) {
+                    pChannels.put(file, channel);
+
+                } else {
+                    // Left by a dead client
+                    close(channel);
+                }
+
+            } catch (final IOException ex) {
+                // Invalid file
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a response frame, waiting for room in the ring as long as the
+     * client is there (called with the ring lock held)
+     *
+     * @param aChannel
+     *            The channel of the caller
+     * @param aCallId
+     *            The call ID
+     * @param aResponse
+     *            The response payload
+     * @throws IOException
+     *             Response too large for the ring
+     */
+    private void respond(final ShmChannel aChannel, final long aCallId,
+            final ThreadByteBuffer aResponse) throws IOException {
+
+        final ShmRing ring = aChannel.getResponses();
+        final byte[] noPrefix = new byte[0];
+        int loop = 0;
+        while (!ring.offer(aCallId, noPrefix, aResponse.getBuffer(),
+                aResponse.size())) {
+            if (!pRunning || !pChannels.containsKey(aChannel.getFile())) {
+                // Server or client gone
+                return;
+            }
+            loop = ShmRing.idle(loop);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+
+        long nextScan = 0;
+        int idleLoop = 0;
+        final List<ShmChannel> channels = new ArrayList<ShmChannel>();
+        while (pRunning) {
+            if (System.currentTimeMillis() >= nextScan) {
+                scan();
+                channels.clear();
+                channels.addAll(pChannels.values());
+                nextScan = System.currentTimeMillis() + SCAN_INTERVAL;
+            }
+
+            boolean busy = false;
+            for (final ShmChannel channel : channels) {
+                try {
+                    ShmRing.Frame frame;
+                    while ((frame = channel.getRequests().poll()) != null) {
+                        busy = true;
+                        submit(channel, frame);
+                    }
+
+                } catch (final IOException ex) {
+                    // Corrupted channel: the client will time out
+                    pChannels.remove(channel.getFile());
+                    close(channel);
+                    nextScan = 0;
+                }
+            }
+
+            if (busy) {
+                idleLoop = 0;
+
+            } else {
+                idleLoop = ShmRing.idle(idleLoop);
+            }
+        }
+    }
+
+    /**
+     * Starts the polling thread
+     */
+    void start() {
+
+        pRunning = true;
+        pThread = new Thread(this, "binary-shm-server-" + pDirectory.getName());
+        pThread.setDaemon(true);
+        pThread.start();
+    }
+
+    /**
+     * Submits a call to the executor
+     *
+     * @param aChannel
+     *            The channel of the caller
+     * @param aFrame
+     *            The request frame
+     */
+    private void submit(final ShmChannel aChannel, final ShmRing.Frame aFrame) {
+
+        pExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+
+                handle(aChannel, aFrame);
+            }
+        });
+    }
+}
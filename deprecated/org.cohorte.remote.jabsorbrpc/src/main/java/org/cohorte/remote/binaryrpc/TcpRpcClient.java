@@ -0,0 +1,421 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Client side of the framed TCP transport: a few long-lived connections per
+ * peer, each one shared by all the concurrent calls. The calls are matched to
+ * their responses by their ID, so responses can come back in any order.
+ *
+ * @author Thomas Calmant
+ */
+final class TcpRpcClient implements IFrameClient {
+
+    /**
+     * A call waiting for its response
+     */
+    private static final class Call {
+
+        /** Released when the call is over */
+        private final CountDownLatch pDone = new CountDownLatch(1);
+
+        /** The connection error */
+        private IOException pError;
+
+        /** The response payload */
+        private byte[] pResponse;
+    }
+
+    /**
+     * A connection to the peer, with a thread writing the requests and a
+     * thread reading the responses. The callers never use the channel
+     * themselves: an interrupted caller would close it.
+     */
+    private final class Connection implements Runnable {
+
+        /** The pending calls: Call ID -&gt; Call */
+        private final ConcurrentMap<Long, Call> pCalls = new ConcurrentHashMap<Long, Call>();
+
+        /** The socket channel (blocking) */
+        private final SocketChannel pChannel;
+
+        /** Set when the connection is lost */
+        private volatile boolean pClosed;
+
+        /** The request frames waiting to be written */
+        private final BlockingQueue<ByteBuffer> pFrames = new LinkedBlockingQueue<ByteBuffer>();
+
+        /** The thread writing the requests */
+        private Thread pWriter;
+
+        /**
+         * Connects the peer, waiting at most {@link #CONNECT_TIMEOUT}
+         *
+         * @throws IOException
+         *             Error connecting the peer
+         */
+        private Connection() throws IOException {
+
+            pChannel = SocketChannel.open();
+            try {
+                pChannel.socket().connect(pAddress, CONNECT_TIMEOUT);
+                pChannel.socket().setTcpNoDelay(true);
+
+            } catch (final IOException ex) {
+                pChannel.close();
+                throw ex;
+            }
+        }
+
+        /**
+         * Sends a request and waits for its response
+         *
+         * @param aPrefix
+         *            The beginning of the request payload
+         * @param aRequest
+         *            The end of the request payload
+         * @return The response payload
+         * @throws IOException
+         *             Connection error or time out
+         */
+        private byte[] call(final byte[] aPrefix,
+                final ThreadByteBuffer aRequest) throws IOException {
+
+            final Long callId = Long.valueOf(pNextCallId.incrementAndGet());
+            final Call call = new Call();
+            pCalls.put(callId, call);
+            if (pClosed) {
+                // Lost before the call was stored
+                pCalls.remove(callId);
+                throw new IOException("Connection to " + pAddress + " lost");
+            }
+
+            // Copy the request, as its buffer is reused once the call ends
+            final ByteBuffer frame = ByteBuffer
+                    .allocate(TcpRpcServer.HEADER_SIZE + aPrefix.length
+                            + aRequest.size());
+            frame.putInt(8 + aPrefix.length + aRequest.size());
+            frame.putLong(callId.longValue());
+            frame.put(aPrefix);
+            frame.put(aRequest.getBuffer(), 0, aRequest.size());
+            frame.flip();
+            pFrames.add(frame);
+
+            try {
+                if (!call.pDone.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No response from "
+                            + pAddress + " after " + TIMEOUT + " ms");
+                }
+
+            } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for "
+                        + pAddress);
+
+            } finally {
+                pCalls.remove(callId);
+            }
+
+            if (call.pError != null) {
+                throw new IOException("Connection to " + pAddress + " lost",
+                        call.pError);
+            }
+            return call.pResponse;
+        }
+
+        /**
+         * Closes the connection and fails the pending calls
+         *
+         * @param aError
+         *            The cause of the closing
+         */
+        private void close(final IOException aError) {
+
+            pClosed = true;
+            if (pWriter != null) {
+                pWriter.interrupt();
+            }
+
+            try {
+                pChannel.close();
+
+            } catch (final IOException ex) {
+                // Ignore
+            }
+
+            for (final Call call : pCalls.values()) {
+                call.pError = aError;
+                call.pDone.countDown();
+            }
+        }
+
+        /**
+         * Reads bytes until the given buffer is full
+         *
+         * @param aBuffer
+         *            The buffer to fill
+         * @throws IOException
+         *             Error reading the channel
+         */
+        private void readFully(final ByteBuffer aBuffer) throws IOException {
+
+            while (aBuffer.hasRemaining()) {
+                if (pChannel.read(aBuffer) < 0) {
+                    throw new EOFException("Connection closed by " + pAddress);
+                }
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+
+            final ByteBuffer header = ByteBuffer
+                    .allocate(TcpRpcServer.HEADER_SIZE);
+            try {
+                while (true) {
+                    header.clear();
+                    readFully(header);
+                    header.flip();
+
+                    final int size = header.getInt();
+                    if (size < 8 || size > TcpRpcServer.MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame size: " + size);
+                    }
+
+                    final Long callId = Long.valueOf(header.getLong());
+                    final ByteBuffer payload = ByteBuffer.allocate(size - 8);
+                    readFully(payload);
+
+                    final Call call = pCalls.remove(callId);
+                    if (call != null) {
+                        // Otherwise, the call has timed out
+                        call.pResponse = payload.array();
+                        call.pDone.countDown();
+                    }
+                }
+
+            } catch (final IOException ex) {
+                close(ex);
+            }
+        }
+
+        /**
+         * Starts the threads writing the requests and reading the responses
+         */
+        private void start() {
+
+            pWriter = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    write();
+                }
+            }, "binary-tcp-client-writer-" + pAddress);
+            pWriter.setDaemon(true);
+            pWriter.start();
+
+            final Thread thread = new Thread(this, "binary-tcp-client-"
+                    + pAddress);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Writes the request frames, grouping those queued at the same time
+         * (writing thread loop)
+         */
+        private void write() {
+
+            final List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+            try {
+                while (!pClosed) {
+                    frames.add(pFrames.take());
+                    pFrames.drainTo(frames);
+
+                    final ByteBuffer[] buffers = frames
+                            .toArray(new ByteBuffer[frames.size()]);
+                    final ByteBuffer last = buffers[buffers.length - 1];
+                    while (last.hasRemaining()) {
+                        pChannel.write(buffers);
+                    }
+                    frames.clear();
+                }
+
+            } catch (final InterruptedException ex) {
+                // Connection closed
+
+            } catch (final IOException ex) {
+                close(ex);
+            }
+        }
+    }
+
+    /** Number of connections per peer */
+    private static final int CONNECTIONS = Integer.getInteger(
+            "cohorte.binarytcp.connections", 2).intValue();
+
+    /** Maximum time to wait for a connection, in milliseconds */
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(
+            "cohorte.binarytcp.connect.timeout", 5000).intValue();
+
+    /** Maximum time to wait for a response, in milliseconds */
+    private static final long TIMEOUT = Long.getLong(
+            "cohorte.binarytcp.timeout", 60000).longValue();
+
+    /** The clients: "host:port" -&gt; client */
+    private static final ConcurrentMap<String, TcpRpcClient> sClients = new ConcurrentHashMap<String, TcpRpcClient>();
+
+    /** The address of the peer */
+    private final InetSocketAddress pAddress;
+
+    /** The connections to the peer */
+    private final Connection[] pConnections = new Connection[Math.max(1,
+            CONNECTIONS)];
+
+    /** The next call ID */
+    private final AtomicLong pNextCallId = new AtomicLong();
+
+    /** Index of the next connection to use */
+    private final AtomicInteger pNextConnection = new AtomicInteger();
+
+    /**
+     * Sets up the client
+     *
+     * @param aAddress
+     *            The address of the peer
+     */
+    private TcpRpcClient(final InetSocketAddress aAddress) {
+
+        pAddress = aAddress;
+    }
+
+    /**
+     * Closes the connections of all clients
+     */
+    static void closeAll() {
+
+        for (final TcpRpcClient client : sClients.values()) {
+            synchronized (client) {
+                for (final Connection connection : client.pConnections) {
+                    if (connection != null) {
+                        connection.close(new IOException("Client closed"));
+                    }
+                }
+            }
+        }
+        sClients.clear();
+    }
+
+    /**
+     * Returns the client of the given peer
+     *
+     * @param aHost
+     *            Peer host
+     * @param aPort
+     *            Peer port
+     * @return The client of the peer
+     */
+    static TcpRpcClient get(final String aHost, final int aPort) {
+
+        final String key = aHost + ':' + aPort;
+        TcpRpcClient client = sClients.get(key);
+        if (client == null) {
+            client = new TcpRpcClient(new InetSocketAddress(aHost, aPort));
+            final TcpRpcClient known = sClients.putIfAbsent(key, client);
+            if (known != null) {
+                client = known;
+            }
+        }
+        return client;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.binaryrpc.IFrameClient#call(byte[],
+     * org.cohorte.remote.utilities.ThreadByteBuffer)
+     */
+    @Override
+    public byte[] call(final byte[] aPrefix, final ThreadByteBuffer aRequest)
+            throws IOException {
+
+        final int index = (pNextConnection.getAndIncrement() &
+                Integer.MAX_VALUE) % pConnections.length;
+
+        Connection connection;
+        synchronized (this) {
+            connection = pConnections[index];
+        }
+
+        if (connection == null || connection.pClosed) {
+            // (Re)connect without holding the lock, to avoid blocking the
+            // calls on the other connections
+            final Connection created = new Connection();
+            synchronized (this) {
+                connection = pConnections[index];
+                if (connection == null || connection.pClosed) {
+                    connection = created;
+                    pConnections[index] = created;
+                    created.start();
+                }
+            }
+
+            if (connection != created) {
+                // Another caller has reconnected first
+                created.close(new IOException("Duplicate connection"));
+            }
+        }
+
+        return connection.call(aPrefix, aRequest);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+
+        return "TcpRpcClient(" + pAddress + ")";
+    }
+}
@@ -0,0 +1,501 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.binaryrpc;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cohorte.remote.utilities.ThreadByteBuffer;
+
+/**
+ * Server side of the framed TCP transport. A single selector thread reads the
+ * frames of all connections; the calls are executed by a thread pool and
+ * their responses are written back by the selector thread, in the order they
+ * complete.
+ *
+ * A connection can have at most {@link #MAX_CALLS} calls being executed or
+ * waiting for their response to be written: beyond, the server stops reading
+ * it until responses are written. This bounds both the executor queue and the
+ * responses queued for a slow client.
+ *
+ * A frame is made of its size (int, excluding itself), a call ID (long) and a
+ * payload. The payload of a request is the endpoint name followed by a binary
+ * RPC request; the payload of a response is a binary RPC response.
+ *
+ * @author Thomas Calmant
+ */
+class TcpRpcServer implements Runnable {
+
+    /**
+     * A client connection
+     */
+    private static final class Connection {
+
+        /**
+         * Calls submitted and whose response isn't written yet (selector
+         * thread only)
+         */
+        private int pCalls;
+
+        /** The socket channel */
+        private final SocketChannel pChannel;
+
+        /** Bytes read and not yet handled (write mode) */
+        private ByteBuffer pInput = ByteBuffer.allocate(INPUT_SIZE);
+
+        /** The selection key of the channel */
+        private SelectionKey pKey;
+
+        /** Response frames to write */
+        private final Queue<ByteBuffer> pOutput = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        /**
+         * Sets up the connection
+         *
+         * @param aChannel
+         *            The accepted channel
+         */
+        private Connection(final SocketChannel aChannel) {
+
+            pChannel = aChannel;
+        }
+    }
+
+    /** Size of a frame header: frame size and call ID */
+    static final int HEADER_SIZE = 12;
+
+    /** Initial size of the input buffer of a connection */
+    private static final int INPUT_SIZE = 8192;
+
+    /** Maximum number of calls in flight per connection */
+    private static final int MAX_CALLS = 64;
+
+    /** Maximum size of a frame (64 MiB) */
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /** The exported services */
+    private final BinaryEndpoints pEndpoints = new BinaryEndpoints();
+
+    /** The threads executing the calls */
+    private final ThreadPoolExecutor pExecutor;
+
+    /** Connections with responses to write */
+    private final Queue<Connection> pPendingWrites = new ConcurrentLinkedQueue<Connection>();
+
+    /** The selector thread loop control */
+    private volatile boolean pRunning;
+
+    /** The selector of all channels */
+    private final Selector pSelector;
+
+    /** The listening channel */
+    private final ServerSocketChannel pServer;
+
+    /** The selector thread */
+    private Thread pThread;
+
+    /**
+     * Opens the listening socket
+     *
+     * @param aPort
+     *            The listening port (0 for any)
+     * @param aThreads
+     *            The maximum number of concurrent calls
+     * @throws IOException
+     *             Error opening the socket
+     */
+    TcpRpcServer(final int aPort, final int aThreads) throws IOException {
+
+        pSelector = Selector.open();
+        pServer = ServerSocketChannel.open();
+        try {
+            pServer.socket().bind(new InetSocketAddress(aPort));
+            pServer.configureBlocking(false);
+            pServer.register(pSelector, SelectionKey.OP_ACCEPT);
+
+        } catch (final IOException ex) {
+            pServer.close();
+            pSelector.close();
+            throw ex;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        pExecutor = new ThreadPoolExecutor(aThreads, aThreads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(final Runnable aRunnable) {
+
+                        final Thread thread = new Thread(aRunnable,
+                                "binary-tcp-call-"
+                                        + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Accepts a new client connection
+     *
+     * @throws IOException
+     *             Error accepting the connection
+     */
+    private void accept() throws IOException {
+
+        final SocketChannel channel = pServer.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+
+        final Connection connection = new Connection(channel);
+        connection.pKey = channel.register(pSelector, 0, connection);
+        updateInterest(connection);
+    }
+
+    /**
+     * Stops the server and closes all connections
+     */
+    void close() {
+
+        pRunning = false;
+        pSelector.wakeup();
+        try {
+            pThread.join();
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final SelectionKey key : pSelector.keys()) {
+            try {
+                key.channel().close();
+
+            } catch (final IOException ex) {
+                // Ignore
+            }
+        }
+
+        try {
+            pSelector.close();
+
+        } catch (final IOException ex) {
+            // Ignore
+        }
+
+        pExecutor.shutdown();
+        pEndpoints.clear();
+    }
+
+    /**
+     * Closes a client connection
+     *
+     * @param aConnection
+     *            A client connection
+     */
+    private void close(final Connection aConnection) {
+
+        aConnection.pKey.cancel();
+        try {
+            aConnection.pChannel.close();
+
+        } catch (final IOException ex) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Returns the exported services
+     *
+     * @return The exported services
+     */
+    BinaryEndpoints getEndpoints() {
+
+        return pEndpoints;
+    }
+
+    /**
+     * Returns the listening port
+     *
+     * @return The listening port
+     */
+    int getPort() {
+
+        return pServer.socket().getLocalPort();
+    }
+
+    /**
+     * Executes a call and queues its response (called by the executor)
+     *
+     * @param aConnection
+     *            The connection of the caller
+     * @param aCallId
+     *            The call ID
+     * @param aPayload
+     *            The request payload
+     */
+    private void handle(final Connection aConnection, final long aCallId,
+            final byte[] aPayload) {
+
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
+        try {
+            // Keep room for the header
+            buffer.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+            try {
+                pEndpoints.call(new BinaryInput(aPayload), buffer);
+
+            } catch (final Throwable ex) {
+                // Unexpected error (e.g. encoding the result): the caller
+                // still waits for a response
+                buffer.reset();
+                buffer.write(new byte[HEADER_SIZE], 0, HEADER_SIZE);
+                final DataOutputStream output = new DataOutputStream(buffer);
+                BinaryEndpoint.writeError(output, ex);
+                output.flush();
+            }
+
+            final ByteBuffer frame = ByteBuffer.wrap(Arrays.copyOf(
+                    buffer.getBuffer(), buffer.size()));
+            frame.putInt(0, frame.capacity() - 4);
+            frame.putLong(4, aCallId);
+
+            aConnection.pOutput.add(frame);
+            pPendingWrites.add(aConnection);
+            pSelector.wakeup();
+
+        } catch (final IOException ex) {
+            // Can't happen: writing in memory
+            throw new IllegalStateException(ex);
+
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Reads the available bytes of a connection and submits its complete
+     * frames
+     *
+     * @param aConnection
+     *            A client connection
+     * @throws IOException
+     *             Error reading the channel or invalid frame
+     */
+    private void read(final Connection aConnection) throws IOException {
+
+        if (aConnection.pChannel.read(aConnection.pInput) < 0) {
+            // End of stream
+            close(aConnection);
+            return;
+        }
+
+        submit(aConnection);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+
+        while (pRunning) {
+            try {
+                pSelector.select();
+
+            } catch (final IOException ex) {
+                // Selector closed
+                break;
+            }
+
+            // Wait for the sockets accepting the new responses
+            Connection pending;
+            while ((pending = pPendingWrites.poll()) != null) {
+                if (pending.pKey.isValid()) {
+                    updateInterest(pending);
+                }
+            }
+
+            final Iterator<SelectionKey> iterator = pSelector.selectedKeys()
+                    .iterator();
+            while (iterator.hasNext()) {
+                final SelectionKey key = iterator.next();
+                iterator.remove();
+
+                final Connection connection = (Connection) key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+
+                    } else if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+
+                    if (key.isValid()) {
+                        updateInterest(connection);
+                    }
+
+                } catch (final IOException ex) {
+                    if (connection != null) {
+                        // Connection lost or invalid stream
+                        close(connection);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the selector thread
+     */
+    void start() {
+
+        pRunning = true;
+        pThread = new Thread(this, "binary-tcp-server-" + getPort());
+        pThread.setDaemon(true);
+        pThread.start();
+    }
+
+    /**
+     * Submits the complete frames read from a connection, as long as it has
+     * less than {@link #MAX_CALLS} calls in flight
+     *
+     * @param aConnection
+     *            A client connection
+     * @throws IOException
+     *             Invalid frame
+     */
+    private void submit(final Connection aConnection) throws IOException {
+
+        final ByteBuffer input = aConnection.pInput;
+        input.flip();
+        while (aConnection.pCalls < MAX_CALLS && input.remaining() >= 4) {
+            final int size = input.getInt(input.position());
+            if (size < 8 || size > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame size: " + size);
+            }
+
+            if (input.remaining() < size + 4) {
+                // Incomplete frame
+                break;
+            }
+
+            input.getInt();
+            final long callId = input.getLong();
+            final byte[] payload = new byte[size - 8];
+            input.get(payload);
+            aConnection.pCalls++;
+
+            pExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    handle(aConnection, callId, payload);
+                }
+            });
+        }
+
+        if (input.remaining() >= 4
+                && input.getInt(input.position()) + 4 > input.capacity()) {
+            // Grow the buffer to hold the next frame
+            final ByteBuffer bigger = ByteBuffer.allocate(input
+                    .getInt(input.position()) + 4);
+            bigger.put(input);
+            aConnection.pInput = bigger;
+
+        } else {
+            input.compact();
+        }
+    }
+
+    /**
+     * Updates the operations selected for a connection: reading while it has
+     * less than {@link #MAX_CALLS} calls in flight, writing while it has
+     * responses to send
+     *
+     * @param aConnection
+     *            A client connection
+     */
+    private void updateInterest(final Connection aConnection) {
+
+        int ops = 0;
+        if (aConnection.pCalls < MAX_CALLS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (!aConnection.pOutput.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        aConnection.pKey.interestOps(ops);
+    }
+
+    /**
+     * Writes the queued responses of a connection, as long as its socket
+     * accepts them
+     *
+     * @param aConnection
+     *            A client connection
+     * @throws IOException
+     *             Error writing the channel
+     */
+    private void write(final Connection aConnection) throws IOException {
+
+        ByteBuffer frame;
+        while ((frame = aConnection.pOutput.peek()) != null) {
+            aConnection.pChannel.write(frame);
+            if (frame.hasRemaining()) {
+                // Socket buffer full
+                break;
+            }
+            aConnection.pOutput.poll();
+            aConnection.pCalls--;
+        }
+
+        // Submit the frames kept while too many calls were in flight
+        submit(aConnection);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.jabsorbrpc;
+
+/**
+ * Management interface of the bulkhead of an endpoint exported with
+ * JABSORB-RPC, registered in the platform MBean server
+ *
+ * @author Thomas Calmant
+ */
+public interface IJabsorbBulkhead {
+
+    /**
+     * Returns the number of calls running
+     *
+     * @return The number of calls running
+     */
+    int getActive();
+
+    /**
+     * Returns the name of the endpoint
+     *
+     * @return The endpoint name
+     */
+    String getEndpointName();
+
+    /**
+     * Returns the maximum number of concurrent calls
+     *
+     * @return The maximum number of concurrent calls
+     */
+    int getMaxConcurrent();
+
+    /**
+     * Returns the maximum number of calls waiting for a running one to end
+     *
+     * @return The maximum number of waiting calls
+     */
+    int getMaxQueued();
+
+    /**
+     * Returns the number of calls waiting for a running one to end
+     *
+     * @return The number of waiting calls
+     */
+    int getQueued();
+
+    /**
+     * Returns the number of calls which had to wait since the export
+     *
+     * @return The total number of calls which had to wait
+     */
+    long getQueuedTotal();
+
+    /**
+     * Returns the maximum time a call waits for a running one to end
+     *
+     * @return The queue timeout, in milliseconds
+     */
+    long getQueueTimeout();
+
+    /**
+     * Returns the number of calls rejected since the export
+     *
+     * @return The total number of rejected calls
+     */
+    long getRejected();
+
+    /**
+     * Returns the number of calls rejected after waiting too long since the
+     * export (included in {@link #getRejected()})
+     *
+     * @return The total number of calls which waited too long
+     */
+    long getTimedOut();
+}
@@ -21,6 +21,12 @@ package org.cohorte.remote.jabsorbrpc;
  */
 public interface IJabsorbRpcConstants {
 
+    /** Error code of the calls rejected by a saturated endpoint */
+    int CODE_ERR_OVERLOADED = -32001;
+
+    /** Default maximum time a call waits for a running one to end, in ms */
+    int DEFAULT_QUEUE_TIMEOUT = 30000;
+
     /** Default Jabsorb servlet name */
     String DEFAULT_SERVLET_NAME = "/JABSORB-RPC";
 
@@ -35,4 +41,24 @@ public interface IJabsorbRpcConstants {
 
     /** HTTP accesses (comma-separated String) */
     String PROP_HTTP_ACCESSES = "ecf.jabsorb.accesses";
+
+    /**
+     * Maximum number of concurrent calls to an exported service (Integer or
+     * String, no limit if absent)
+     */
+    String PROP_MAX_CONCURRENT = "cohorte.jabsorb.max.concurrent";
+
+    /**
+     * Maximum number of calls to an exported service waiting for a running
+     * one to end, the next ones being rejected (Integer or String, 0 if
+     * absent)
+     */
+    String PROP_MAX_QUEUED = "cohorte.jabsorb.max.queued";
+
+    /**
+     * Maximum time a call waits for a running one to end, in milliseconds,
+     * before being rejected (Integer or String,
+     * {@link #DEFAULT_QUEUE_TIMEOUT} if absent)
+     */
+    String PROP_QUEUE_TIMEOUT = "cohorte.jabsorb.queue.timeout";
 }
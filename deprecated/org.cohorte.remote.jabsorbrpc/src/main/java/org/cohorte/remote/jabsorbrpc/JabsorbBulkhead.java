@@ -0,0 +1,240 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.jabsorbrpc;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the concurrent calls to an endpoint: up to a maximum number of calls
+ * run at the same time, a bounded number of others wait for them to end (for
+ * a bounded time), and the next ones are rejected immediately
+ *
+ * @author Thomas Calmant
+ */
+class JabsorbBulkhead implements IJabsorbBulkhead {
+
+    /** Name of the endpoint */
+    private volatile String pEndpointName;
+
+    /** Maximum number of concurrent calls */
+    private final int pMaxConcurrent;
+
+    /** Maximum number of waiting calls */
+    private final int pMaxQueued;
+
+    /** Permits of the running calls */
+    private final Semaphore pPermits;
+
+    /** Number of waiting calls */
+    private final AtomicInteger pQueued = new AtomicInteger();
+
+    /** Number of calls which had to wait */
+    private final AtomicLong pQueuedTotal = new AtomicLong();
+
+    /** Maximum time a call waits, in milliseconds */
+    private final long pQueueTimeout;
+
+    /** Number of rejected calls */
+    private final AtomicLong pRejected = new AtomicLong();
+
+    /** Number of calls rejected after waiting too long */
+    private final AtomicLong pTimedOut = new AtomicLong();
+
+    /**
+     * Sets up the bulkhead
+     *
+     * @param aEndpointName
+     *            Name of the endpoint
+     * @param aMaxConcurrent
+     *            Maximum number of concurrent calls (strictly positive)
+     * @param aMaxQueued
+     *            Maximum number of waiting calls
+     * @param aQueueTimeout
+     *            Maximum time a call waits, in milliseconds
+     */
+    JabsorbBulkhead(final String aEndpointName, final int aMaxConcurrent,
+            final int aMaxQueued, final long aQueueTimeout) {
+
+        pEndpointName = aEndpointName;
+        pMaxConcurrent = aMaxConcurrent;
+        pMaxQueued = Math.max(0, aMaxQueued);
+        pQueueTimeout = aQueueTimeout;
+        pPermits = new Semaphore(aMaxConcurrent, true);
+    }
+
+    /**
+     * Reserves a place for a call, waiting if all places are taken and the
+     * queue isn't full, at most for the queue timeout. The call must
+     * {@link #release()} it once done.
+     *
+     * @return False if the call is rejected
+     */
+    boolean acquire() {
+
+        if (pPermits.tryAcquire()) {
+            // Fast path
+            return true;
+        }
+
+        if (pQueued.incrementAndGet() > pMaxQueued) {
+            // Queue full
+            pQueued.decrementAndGet();
+            pRejected.incrementAndGet();
+            return false;
+        }
+
+        pQueuedTotal.incrementAndGet();
+        try {
+            if (pPermits.tryAcquire(pQueueTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+
+            // Waited too long
+            pTimedOut.incrementAndGet();
+            pRejected.incrementAndGet();
+            return false;
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            pRejected.incrementAndGet();
+            return false;
+
+        } finally {
+            pQueued.decrementAndGet();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getActive()
+     */
+    @Override
+    public int getActive() {
+
+        return pMaxConcurrent - pPermits.availablePermits();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getEndpointName()
+     */
+    @Override
+    public String getEndpointName() {
+
+        return pEndpointName;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getMaxConcurrent()
+     */
+    @Override
+    public int getMaxConcurrent() {
+
+        return pMaxConcurrent;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getMaxQueued()
+     */
+    @Override
+    public int getMaxQueued() {
+
+        return pMaxQueued;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getQueued()
+     */
+    @Override
+    public int getQueued() {
+
+        return pQueued.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getQueuedTotal()
+     */
+    @Override
+    public long getQueuedTotal() {
+
+        return pQueuedTotal.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getQueueTimeout()
+     */
+    @Override
+    public long getQueueTimeout() {
+
+        return pQueueTimeout;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getRejected()
+     */
+    @Override
+    public long getRejected() {
+
+        return pRejected.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.jabsorbrpc.IJabsorbBulkhead#getTimedOut()
+     */
+    @Override
+    public long getTimedOut() {
+
+        return pTimedOut.get();
+    }
+
+    /**
+     * Frees the place of a call
+     */
+    void release() {
+
+        pPermits.release();
+    }
+
+    /**
+     * Updates the name of the endpoint
+     *
+     * @param aEndpointName
+     *            New name of the endpoint
+     */
+    void setEndpointName(final String aEndpointName) {
+
+        pEndpointName = aEndpointName;
+    }
+}
@@ -16,17 +16,25 @@
 package org.cohorte.remote.jabsorbrpc;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.Scanner;
 
+import org.cohorte.remote.utilities.HttpCompression;
+import org.cohorte.remote.utilities.HttpConnectionPool;
+import org.cohorte.remote.utilities.ThreadByteBuffer;
 import org.jabsorb.ng.client.ClientError;
 import org.jabsorb.ng.client.HTTPSession;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * Overrides the Jabsorb implementation of its HTTP Session
@@ -35,6 +43,23 @@ import org.json.JSONObject;
  */
 public class JabsorbHttpSession extends HTTPSession {
 
+    /** Charset of the JSON-RPC messages */
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    /**
+     * System property: coalescing window of the calls to the same URL, in
+     * milliseconds (0 to send each call in its own request)
+     */
+    static final String PROP_BATCH_WINDOW = "cohorte.jabsorb.batch.window";
+
+    /** Coalescing window of the calls, in milliseconds */
+    static final long BATCH_WINDOW = Long.getLong(PROP_BATCH_WINDOW,
+            0);
+
+    /** Content type of the requests */
+    private static final String REQUEST_CONTENT_TYPE = JSON_CONTENT_TYPE
+            + "; charset=" + CHARSET_UTF8;
+
     /** The session URL */
     private final URL pUrl;
 
@@ -53,40 +78,57 @@ public class JabsorbHttpSession extends HTTPSession {
     }
 
     /**
-     * Sends a POST request to the session URL with the given content
+     * Sends a POST request to the session URL with the given content. The
+     * JSON response is parsed while it is read from the connection.
      * 
      * @param aRequestContent
-     *            Request content
-     * @return The result page
+     *            Request content, encoded in UTF-8
+     * @return The parsed response
      * @throws ClientError
      *             Something wrong happened
      */
-    protected String getUrlPostResult(final byte[] aRequestContent) {
+    protected JSONObject getUrlPostResult(
+            final ThreadByteBuffer aRequestContent) {
+
+        return toResponse(post(aRequestContent));
+    }
+
+    /**
+     * Sends a POST request to the session URL with the given content. The
+     * JSON response is parsed while it is read from the connection.
+     * 
+     * @param aRequestContent
+     *            Request content, encoded in UTF-8
+     * @return The parsed response: a JSON object or a JSON array
+     * @throws ClientError
+     *             Something wrong happened
+     */
+    private Object post(final ThreadByteBuffer aRequestContent) {
 
         // Open a connection
         HttpURLConnection httpConnection = null;
-        Scanner scanner = null;
+        Reader reader = null;
         try {
-            // Open the connection and cast it
-            final URLConnection connection = pUrl.openConnection();
-            if (!(connection instanceof HttpURLConnection)) {
-                throw new ClientError("Unknown URL connection for : " + pUrl);
-            }
-
-            httpConnection = (HttpURLConnection) connection;
+            // Get a connection from the pool
+            httpConnection = HttpConnectionPool.get().open(pUrl);
 
             // Make the connection writable (POST)
             httpConnection.setRequestMethod("POST");
             httpConnection.setDoOutput(true);
 
-            // Set up the headers
-            httpConnection
-                    .addRequestProperty("Content-Type", JSON_CONTENT_TYPE);
-            httpConnection.addRequestProperty("Content-Length",
-                    Integer.toString(aRequestContent.length));
+            // Set up the headers: the length is known, no need to let the
+            // connection buffer the content
+            httpConnection.addRequestProperty("Content-Type",
+                    REQUEST_CONTENT_TYPE);
+            httpConnection.setFixedLengthStreamingMode(aRequestContent.size());
+            httpConnection.addRequestProperty(
+                    HttpCompression.HEADER_ACCEPT_ENCODING,
+                    HttpCompression.ACCEPT_ENCODING);
 
             // Set POST data
-            httpConnection.getOutputStream().write(aRequestContent);
+            final OutputStream output = httpConnection.getOutputStream();
+            aRequestContent.writeTo(output);
+            output.close();
 
             // Wait for an answer
             final int responseCode = httpConnection.getResponseCode();
@@ -95,27 +137,76 @@ public class JabsorbHttpSession extends HTTPSession {
                         + " for URL " + pUrl);
             }
 
-            // Use a scanner to read the response content See here for more
-            // information:
-            // http://weblogs.java.net/blog/pat/archive/2004/10/stupid_scanner_1.html
-            scanner = new Scanner(connection.getInputStream());
-            scanner.useDelimiter("\\A");
-            return scanner.next();
+            // Parse the (decompressed) response content from the stream,
+            // without an intermediate string
+            reader = new InputStreamReader(
+                    HttpCompression.getInputStream(httpConnection),
+                    CHARSET_UTF8);
+            return new JSONTokener(reader).nextValue();
 
         } catch (final IOException e) {
+            // The connection can't be reused
+            HttpConnectionPool.get().discard(httpConnection);
+            httpConnection = null;
+
             // Convert error class
             throw new ClientError(e);
 
+        } catch (final JSONException e) {
+            // Invalid response
+            throw new ClientError(e);
+
         } finally {
-            // In any case, free the connection
-            if (httpConnection != null) {
-                httpConnection.disconnect();
+            // Close the reader...
+            if (reader != null) {
+                try {
+                    reader.close();
+
+                } catch (final IOException e) {
+                    // Ignore: the connection will be drained anyway
+                }
             }
 
-            // ... and close the scanner
-            if (scanner != null) {
-                scanner.close();
+            // ... and give back the connection, keeping it alive
+            HttpConnectionPool.get().release(httpConnection);
+        }
+    }
+
+    /**
+     * Sends a JSON-RPC request or a batch of requests
+     * 
+     * @param aMessage
+     *            A JSON object or a JSON array
+     * @return The parsed response: a JSON object or a JSON array
+     * @throws ClientError
+     *             Something wrong happened
+     */
+    Object send(final Object aMessage) {
+
+        // Serialize the request in the buffer of the thread
+        final ThreadByteBuffer buffer = ThreadByteBuffer.acquire();
+        try {
+            final Writer writer = new OutputStreamWriter(buffer, CHARSET_UTF8);
+            if (aMessage instanceof JSONArray) {
+                ((JSONArray) aMessage).write(writer);
+            } else {
+                ((JSONObject) aMessage).write(writer);
             }
+            writer.flush();
+
+            // Send the request and parse the result
+            return post(buffer);
+
+        } catch (final IOException e) {
+            // Unsupported encoding
+            throw new ClientError(e);
+
+        } catch (final JSONException e) {
+            // Error writing the request
+            throw new ClientError(e);
+
+        } finally {
+            buffer.release();
         }
     }
 
@@ -128,14 +219,35 @@ public class JabsorbHttpSession extends HTTPSession {
     @Override
     public JSONObject sendAndReceive(final JSONObject aMessage) {
 
-        try {
-            // Get the result and parse it
-            final String result = getUrlPostResult(aMessage.toString()
-                    .getBytes());
-            return new JSONObject(result);
+        if (BATCH_WINDOW > 0) {
+            // Group the call with the concurrent ones
+            return JsonRpcBatcher.get(pUrl, BATCH_WINDOW).call(this, aMessage);
+        }
 
-        } catch (final JSONException e) {
-            throw new ClientError(e);
+        final JsonRpcBatcher batcher = JsonRpcBatcher.find(pUrl);
+        if (batcher != null && batcher.isScoped()) {
+            // Held by a batch scope
+            return batcher.call(this, aMessage);
         }
+
+        return toResponse(send(aMessage));
+    }
+
+    /**
+     * Checks that the given response is a JSON object
+     * 
+     * @param aResponse
+     *            A parsed response
+     * @return The response as a JSON object
+     * @throws ClientError
+     *             The response isn't a JSON object
+     */
+    static JSONObject toResponse(final Object aResponse) {
+
+        if (!(aResponse instanceof JSONObject)) {
+            throw new ClientError("Invalid JSON-RPC response: " + aResponse);
+        }
+
+        return (JSONObject) aResponse;
     }
 }
@@ -15,10 +15,15 @@
  */
 package org.cohorte.remote.jabsorbrpc;
 
+import java.lang.management.ManagementFactory;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
@@ -32,7 +37,6 @@ import org.cohorte.remote.IRemoteServicesConstants;
 import org.cohorte.remote.IServiceExporter;
 import org.cohorte.remote.utilities.RSUtils;
 import org.jabsorb.ng.JSONRPCBridge;
-import org.jabsorb.ng.JSONRPCServlet;
 import org.jabsorb.ng.client.HTTPSessionFactory;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
@@ -51,12 +55,23 @@ import org.osgi.service.log.LogService;
 @Instantiate(name = "cohorte-remote-exporter-jabsorb")
 public class JabsorbRpcExporter implements IServiceExporter {
 
+    /** Domain of the bulkheads MBeans */
+    private static final String DOMAIN = "org.cohorte.remote";
+
     /** HTTP service port property */
     private static final String HTTP_SERVICE_PORT = "org.osgi.service.http.port";
 
     /** HTTPService dependency ID */
     private static final String IPOJO_ID_HTTP = "http.service";
 
+    /** Threads running the calls of a batch in parallel, 0 to disable it */
+    @Property(name = "batch.threads", value = "4")
+    private int pBatchThreads;
+
+    /** Minimum size of a compressed response, negative to disable it */
+    @Property(name = "compression.threshold", value = "1024")
+    private int pCompressionThreshold;
+
     /** Supported export configurations */
     @Property(name = Constants.REMOTE_CONFIGS_SUPPORTED,
             value = "{jabsorbrpc,jabsorb-rpc}")
@@ -85,6 +100,9 @@ public class JabsorbRpcExporter implements IServiceExporter {
     @Requires
     private LogService pLogger;
 
+    /** The Jabsorb servlet */
+    private JabsorbRpcServlet pServlet;
+
     /** Name of the Jabsorb servlet */
     @Property(name = "endpoint.servlet.name",
             value = IJabsorbRpcConstants.DEFAULT_SERVLET_NAME)
@@ -178,6 +196,7 @@ public class JabsorbRpcExporter implements IServiceExporter {
 
         // Register the object in the Jabsorb bridge
         pJsonRpcBridge.registerObject(name, service);
+        setupBulkhead(endpoint, null);
 
         // Store information
         pEndpoints.put(name, endpoint);
@@ -210,6 +229,52 @@ public class JabsorbRpcExporter implements IServiceExporter {
         return builder.toString();
     }
 
+    /**
+     * Reads an integer service property
+     *
+     * @param aReference
+     *            The service reference
+     * @param aKey
+     *            The property key
+     * @return The property value, or 0 if absent or invalid
+     */
+    private int getIntProperty(final ServiceReference<?> aReference,
+            final String aKey) {
+
+        final Object rawValue = aReference.getProperty(aKey);
+        if (rawValue instanceof Number) {
+            return ((Number) rawValue).intValue();
+
+        } else if (rawValue instanceof CharSequence) {
+            try {
+                return Integer.parseInt(rawValue.toString().trim());
+
+            } catch (final NumberFormatException ex) {
+                pLogger.log(LogService.LOG_WARNING, "Invalid " + aKey
+                        + " of " + aReference + ": " + rawValue);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Computes the name of the MBean of the bulkhead of an endpoint
+     *
+     * @param aEndpoint
+     *            An export endpoint
+     * @return The name of the MBean
+     * @throws JMException
+     *             Invalid name
+     */
+    private ObjectName getObjectName(final ExportEndpoint aEndpoint)
+            throws JMException {
+
+        return new ObjectName(DOMAIN + ":type=JabsorbBulkhead,framework="
+                + ObjectName.quote(pFrameworkUid) + ",endpoint="
+                + ObjectName.quote(aEndpoint.getUid()));
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -251,15 +316,85 @@ public class JabsorbRpcExporter implements IServiceExporter {
         pLogger.log(LogService.LOG_INFO, "JABSORB-RPC exporter gone");
     }
 
+    /**
+     * Registers the MBean of the bulkhead of an endpoint
+     *
+     * @param aEndpoint
+     *            An export endpoint
+     * @param aBulkhead
+     *            The bulkhead of the endpoint
+     */
+    private void registerBulkhead(final ExportEndpoint aEndpoint,
+            final JabsorbBulkhead aBulkhead) {
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(aBulkhead, IJabsorbBulkhead.class),
+                    getObjectName(aEndpoint));
+
+        } catch (final JMException ex) {
+            pLogger.log(LogService.LOG_WARNING,
+                    "Error registering the bulkhead MBean of " + aEndpoint
+                            + ": " + ex);
+        }
+    }
+
+    /**
+     * Sets up, updates or removes the bulkhead of an endpoint, according to
+     * the properties of its service
+     *
+     * @param aEndpoint
+     *            An export endpoint, with its current name
+     * @param aOldName
+     *            The previous name of the endpoint, or null for a new one
+     */
+    private void setupBulkhead(final ExportEndpoint aEndpoint,
+            final String aOldName) {
+
+        final ServiceReference<?> reference = aEndpoint.getReference();
+        final int maxConcurrent = getIntProperty(reference,
+                IJabsorbRpcConstants.PROP_MAX_CONCURRENT);
+        final int maxQueued = Math.max(0, getIntProperty(reference,
+                IJabsorbRpcConstants.PROP_MAX_QUEUED));
+        int queueTimeout = getIntProperty(reference,
+                IJabsorbRpcConstants.PROP_QUEUE_TIMEOUT);
+        if (queueTimeout <= 0) {
+            queueTimeout = IJabsorbRpcConstants.DEFAULT_QUEUE_TIMEOUT;
+        }
+
+        final JabsorbBulkhead previous = aOldName == null ? null : pServlet
+                .removeBulkhead(aOldName);
+        if (previous != null) {
+            if (previous.getMaxConcurrent() == maxConcurrent
+                    && previous.getMaxQueued() == maxQueued
+                    && previous.getQueueTimeout() == queueTimeout) {
+                // Same limits: keep the counters
+                previous.setEndpointName(aEndpoint.getName());
+                pServlet.putBulkhead(aEndpoint.getName(), previous);
+                return;
+            }
+
+            unregisterBulkhead(aEndpoint);
+        }
+
+        if (maxConcurrent > 0) {
+            final JabsorbBulkhead bulkhead = new JabsorbBulkhead(
+                    aEndpoint.getName(), maxConcurrent, maxQueued,
+                    queueTimeout);
+            pServlet.putBulkhead(aEndpoint.getName(), bulkhead);
+            registerBulkhead(aEndpoint, bulkhead);
+        }
+    }
+
     /**
      * Sets up the Jabsorb bridge
      */
     private void startJabsorbBridge() {
 
         // Register the Jabsorb servlet
+        pServlet = new JabsorbRpcServlet(pCompressionThreshold, pBatchThreads);
         try {
-            pHttpService.registerServlet(pServletName, new JSONRPCServlet(),
-                    null, null);
+            pHttpService.registerServlet(pServletName, pServlet, null, null);
 
         } catch (final Exception ex) {
             pLogger.log(LogService.LOG_INFO,
@@ -300,6 +435,7 @@ public class JabsorbRpcExporter implements IServiceExporter {
         // Clean up references
         HTTPSessionFactory.setHTTPSessionProvider(null);
         pJsonRpcBridge = null;
+        pServlet = null;
     }
 
     /*
@@ -316,6 +452,9 @@ public class JabsorbRpcExporter implements IServiceExporter {
         if (pEndpoints.remove(aEndpoint.getName()) != null) {
             // Destroy the endpoint
             pJsonRpcBridge.unregisterObject(aEndpoint.getName());
+            if (pServlet.removeBulkhead(aEndpoint.getName()) != null) {
+                unregisterBulkhead(aEndpoint);
+            }
 
             // Release the service
             pContext.ungetService(aEndpoint.getReference());
@@ -327,6 +466,25 @@ public class JabsorbRpcExporter implements IServiceExporter {
         }
     }
 
+    /**
+     * Unregisters the MBean of the bulkhead of an endpoint
+     *
+     * @param aEndpoint
+     *            An export endpoint
+     */
+    private void unregisterBulkhead(final ExportEndpoint aEndpoint) {
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    getObjectName(aEndpoint));
+
+        } catch (final JMException ex) {
+            pLogger.log(LogService.LOG_WARNING,
+                    "Error unregistering the bulkhead MBean of " + aEndpoint
+                            + ": " + ex);
+        }
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -349,7 +507,11 @@ public class JabsorbRpcExporter implements IServiceExporter {
         pEndpoints.put(aNewName, pEndpoints.remove(aEndpoint.getName()));
 
         // Update the endpoint
+        final String oldName = aEndpoint.getName();
         aEndpoint.setName(aNewName);
+
+        // Apply the new limits, if any
+        setupBulkhead(aEndpoint, oldName);
     }
 
     /**
@@ -28,6 +28,7 @@ import org.apache.felix.ipojo.annotations.Property;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.cohorte.remote.IImportEndpointListener;
+import org.cohorte.remote.IImportEndpointsListener;
 import org.cohorte.remote.ImportEndpoint;
 import org.cohorte.remote.utilities.BundleClass;
 import org.cohorte.remote.utilities.BundlesClassLoader;
@@ -47,7 +48,7 @@ import org.osgi.service.log.LogService;
 @Component(name = "cohorte-remote-importer-jabsorb-factory")
 @Provides(specifications = IImportEndpointListener.class)
 @Instantiate(name = "cohorte-remote-importer-jabsorb")
-public class JabsorbRpcImporter implements IImportEndpointListener {
+public class JabsorbRpcImporter implements IImportEndpointsListener {
 
     /** Endpoint UID -&gt; Jabsorb Client */
     private final Map<String, Client> pClients = new LinkedHashMap<String, Client>();
@@ -112,6 +113,7 @@ public class JabsorbRpcImporter implements IImportEndpointListener {
         // Store it
         pClients.put(aUid, client);
         pProxies.put(aUid, proxy);
+        JsonRpcBatchScope.register(proxy, aAccessUrl);
         return proxy;
     }
 
@@ -219,7 +221,31 @@ public class JabsorbRpcImporter implements IImportEndpointListener {
         svcReg.unregister();
 
         // Clean up
-        pClients.remove(uid).closeProxy(pProxies.remove(uid));
+        final Object proxy = pProxies.remove(uid);
+        JsonRpcBatchScope.unregister(proxy);
+        pClients.remove(uid).closeProxy(proxy);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IImportEndpointsListener#endpointsAdded(org.cohorte
+     * .remote.ImportEndpoint[])
+     */
+    @Override
+    public synchronized void endpointsAdded(final ImportEndpoint[] aEndpoints) {
+
+        for (final ImportEndpoint endpoint : aEndpoints) {
+            try {
+                endpointAdded(endpoint);
+
+            } catch (final RuntimeException ex) {
+                // Import the other endpoints anyway
+                pLogger.log(LogService.LOG_ERROR, "Error importing "
+                        + endpoint + ": " + ex, ex);
+            }
+        }
     }
 
     /*
@@ -0,0 +1,830 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.jabsorbrpc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.cohorte.remote.utilities.HttpCompression;
+import org.jabsorb.ng.JSONRPCBridge;
+import org.jabsorb.ng.JSONRPCResult;
+import org.jabsorb.ng.JSONRPCServlet;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The Jabsorb servlet, extended to handle batches of JSON-RPC requests (JSON
+ * arrays), to limit the concurrent calls to an endpoint and to compress the
+ * responses larger than a threshold when the client accepts it
+ *
+ * @author Thomas Calmant
+ */
+class JabsorbRpcServlet extends JSONRPCServlet {
+
+    /**
+     * Response wrapper keeping the body in memory, to compress it once
+     * complete
+     */
+    private static final class BufferedResponse extends
+            HttpServletResponseWrapper {
+
+        /** The response body */
+        private final ByteArrayOutputStream pBuffer = new ByteArrayOutputStream();
+
+        /** The body stream given to the servlet */
+        private ServletOutputStream pOutputStream;
+
+        /** The body writer given to the servlet */
+        private PrintWriter pWriter;
+
+        /**
+         * Sets up the wrapper
+         *
+         * @param aResponse
+         *            The wrapped response
+         */
+        private BufferedResponse(final HttpServletResponse aResponse) {
+
+            super(aResponse);
+        }
+
+        /**
+         * Writes the buffered body to the wrapped response, compressed with
+         * the given coding if it is large enough
+         *
+         * @param aEncoding
+         *            The negotiated content coding
+         * @param aThreshold
+         *            Minimum size of a compressed body, in bytes
+         * @throws IOException
+         *             Error writing the response
+         */
+        private void finish(final String aEncoding, final int aThreshold)
+                throws IOException {
+
+            if (pWriter != null) {
+                pWriter.flush();
+            }
+
+            if (pOutputStream == null && pWriter == null) {
+                // The servlet didn't write any body
+                return;
+            }
+
+            final HttpServletResponse response = (HttpServletResponse) getResponse();
+            response.setHeader(HttpCompression.HEADER_VARY,
+                    HttpCompression.HEADER_ACCEPT_ENCODING);
+
+            byte[] content = pBuffer.toByteArray();
+            if (content.length >= aThreshold) {
+                content = HttpCompression.encode(content, content.length,
+                        aEncoding);
+                response.setHeader(HttpCompression.HEADER_CONTENT_ENCODING,
+                        aEncoding);
+            }
+            response.setContentLength(content.length);
+
+            final OutputStream output = response.getOutputStream();
+            output.write(content);
+            output.flush();
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletResponseWrapper#flushBuffer()
+         */
+        @Override
+        public void flushBuffer() {
+
+            // Nothing is sent before the body is complete
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletResponseWrapper#getOutputStream()
+         */
+        @Override
+        public ServletOutputStream getOutputStream() {
+
+            if (pOutputStream == null) {
+                pOutputStream = new ServletOutputStream() {
+
+                    @Override
+                    public void write(final byte[] aBuffer, final int aOffset,
+                            final int aLength) {
+
+                        pBuffer.write(aBuffer, aOffset, aLength);
+                    }
+
+                    @Override
+                    public void write(final int aByte) {
+
+                        pBuffer.write(aByte);
+                    }
+                };
+            }
+
+            return pOutputStream;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletResponseWrapper#getWriter()
+         */
+        @Override
+        public PrintWriter getWriter() throws IOException {
+
+            if (pWriter == null) {
+                pWriter = new PrintWriter(new OutputStreamWriter(pBuffer,
+                        getCharacterEncoding()));
+            }
+
+            return pWriter;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletResponseWrapper#setContentLength(int)
+         */
+        @Override
+        public void setContentLength(final int aLength) {
+
+            // Computed once the body is complete
+        }
+    }
+
+    /**
+     * Request wrapper giving a body stream which has been peeked at
+     */
+    private static final class PeekedRequest extends HttpServletRequestWrapper {
+
+        /** The request body */
+        private final ServletInputStream pInputStream;
+
+        /** The body reader given to the servlet */
+        private BufferedReader pReader;
+
+        /**
+         * Sets up the wrapper
+         *
+         * @param aRequest
+         *            The wrapped request
+         * @param aBody
+         *            The request body stream
+         */
+        private PeekedRequest(final HttpServletRequest aRequest,
+                final InputStream aBody) {
+
+            super(aRequest);
+            pInputStream = new ServletInputStream() {
+
+                @Override
+                public int read() throws IOException {
+
+                    return aBody.read();
+                }
+
+                @Override
+                public int read(final byte[] aBuffer, final int aOffset,
+                        final int aLength) throws IOException {
+
+                    return aBody.read(aBuffer, aOffset, aLength);
+                }
+            };
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletRequestWrapper#getInputStream()
+         */
+        @Override
+        public ServletInputStream getInputStream() {
+
+            return pInputStream;
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see javax.servlet.ServletRequestWrapper#getReader()
+         */
+        @Override
+        public BufferedReader getReader() throws IOException {
+
+            if (pReader == null) {
+                final String encoding = getCharacterEncoding();
+                pReader = new BufferedReader(new InputStreamReader(
+                        pInputStream, encoding != null ? encoding
+                                : CHARSET_UTF8));
+            }
+
+            return pReader;
+        }
+    }
+
+    /** Charset of the batch requests and responses */
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    /** Content type of the batch responses */
+    private static final String JSON_TYPE = "application/json";
+
+    /**
+     * Maximum number of bytes read to find the method of a request without
+     * parsing all of it
+     */
+    private static final int METHOD_PEEK_LIMIT = 4096;
+
+    /** Maximum number of leading blanks read to detect a batch request */
+    private static final int PEEK_LIMIT = 256;
+
+    /** Serial version UID */
+    private static final long serialVersionUID = 1L;
+
+    /** Executor of the calls of the batches, null to run them sequentially */
+    private final ExecutorService pBatchExecutor;
+
+    /** The limited endpoints: Endpoint name -&gt; Bulkhead */
+    private final ConcurrentMap<String, JabsorbBulkhead> pBulkheads = new ConcurrentHashMap<String, JabsorbBulkhead>();
+
+    /** Minimum size of a compressed response, negative to disable it */
+    private final int pThreshold;
+
+    /**
+     * Sets up the servlet
+     *
+     * @param aThreshold
+     *            Minimum size of a response body to be compressed, in bytes
+     *            (negative to disable compression)
+     * @param aBatchThreads
+     *            Maximum number of threads running the calls of a batch in
+     *            parallel with the request thread (0 to run them sequentially)
+     */
+    JabsorbRpcServlet(final int aThreshold, final int aBatchThreads) {
+
+        pThreshold = aThreshold;
+
+        if (aBatchThreads > 0) {
+            final AtomicInteger counter = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    aBatchThreads, aBatchThreads, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(final Runnable aRunnable) {
+
+                            final Thread thread = new Thread(aRunnable,
+                                    "jabsorb-batch-"
+                                            + counter.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+
+            // Busy threads: run the call in the request thread
+            executor.setRejectedExecutionHandler(
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            pBatchExecutor = executor;
+
+        } else {
+            pBatchExecutor = null;
+        }
+    }
+
+    /**
+     * Calls a method of the bridge, if the bulkhead of its endpoint lets it
+     *
+     * @param aBridge
+     *            The JSON-RPC bridge
+     * @param aContext
+     *            The call context (request and response)
+     * @param aRequest
+     *            A request of the batch
+     * @return The JSON form of the result
+     */
+    private String call(final JSONRPCBridge aBridge, final Object[] aContext,
+            final Object aRequest) {
+
+        if (!(aRequest instanceof JSONObject)) {
+            return new JSONRPCResult(JSONRPCResult.CODE_ERR_PARSE, null,
+                    "Invalid JSON-RPC request: " + aRequest).toString();
+        }
+
+        final JSONObject request = (JSONObject) aRequest;
+        final JabsorbBulkhead bulkhead = getBulkhead(request);
+        if (bulkhead != null && !bulkhead.acquire()) {
+            return overloaded(request, bulkhead);
+        }
+
+        try {
+            return aBridge.call(aContext, request).toString();
+
+        } catch (final RuntimeException ex) {
+            return new JSONRPCResult(JSONRPCResult.CODE_REMOTE_EXCEPTION,
+                    request.opt("id"), ex).toString();
+
+        } finally {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see javax.servlet.GenericServlet#destroy()
+     */
+    @Override
+    public void destroy() {
+
+        if (pBatchExecutor != null) {
+            pBatchExecutor.shutdownNow();
+        }
+
+        super.destroy();
+    }
+
+    /**
+     * Returns the bulkhead of the endpoint called by the given request
+     *
+     * @param aRequest
+     *            A JSON-RPC request (can be null)
+     * @return The bulkhead of the endpoint, or null
+     */
+    private JabsorbBulkhead getBulkhead(final JSONObject aRequest) {
+
+        if (aRequest == null) {
+            return null;
+        }
+
+        return getBulkhead(aRequest.optString("method", ""));
+    }
+
+    /**
+     * Returns the bulkhead of the endpoint of the given method
+     *
+     * @param aMethod
+     *            A Jabsorb method name: "endpoint.method"
+     * @return The bulkhead of the endpoint, or null
+     */
+    private JabsorbBulkhead getBulkhead(final String aMethod) {
+
+        final int separator = aMethod.lastIndexOf('.');
+        if (separator <= 0) {
+            return null;
+        }
+
+        return pBulkheads.get(aMethod.substring(0, separator));
+    }
+
+    /**
+     * Handles a request: batches are handled here, single requests by the
+     * Jabsorb servlet
+     *
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @throws IOException
+     *             Error reading the request or writing the response
+     */
+    private void handle(final HttpServletRequest aReq,
+            final HttpServletResponse aResp) throws IOException {
+
+        final BufferedInputStream body = new BufferedInputStream(
+                aReq.getInputStream());
+        if (isBatch(body)) {
+            serviceBatch(aReq, aResp, body);
+        } else if (pBulkheads.isEmpty()) {
+            super.service(new PeekedRequest(aReq, body), aResp);
+        } else {
+            serviceLimited(aReq, aResp, body);
+        }
+    }
+
+    /**
+     * Checks if the given request body is a batch (a JSON array), without
+     * consuming it
+     *
+     * @param aBody
+     *            The request body
+     * @return True if the body starts with '['
+     * @throws IOException
+     *             Error reading the request
+     */
+    private static boolean isBatch(final BufferedInputStream aBody)
+            throws IOException {
+
+        aBody.mark(PEEK_LIMIT);
+        try {
+            for (int i = 0; i < PEEK_LIMIT; i++) {
+                final int read = aBody.read();
+                if (read == -1 || !Character.isWhitespace(read)) {
+                    return read == '[';
+                }
+            }
+
+            return false;
+
+        } finally {
+            aBody.reset();
+        }
+    }
+
+    /**
+     * Computes the error result of a call rejected by a bulkhead
+     *
+     * @param aRequest
+     *            The rejected request (can be null if it is invalid)
+     * @param aBulkhead
+     *            The bulkhead of the endpoint
+     * @return The JSON form of the result
+     */
+    private static String overloaded(final JSONObject aRequest,
+            final JabsorbBulkhead aBulkhead) {
+
+        return new JSONRPCResult(IJabsorbRpcConstants.CODE_ERR_OVERLOADED,
+                aRequest != null ? aRequest.opt("id") : null, "Endpoint "
+                        + aBulkhead.getEndpointName() + " is overloaded")
+                .toString();
+    }
+
+    /**
+     * Parses a single request
+     *
+     * @param aContent
+     *            The request body
+     * @param aEncoding
+     *            The request body encoding
+     * @return The request, or null if it is invalid
+     * @throws IOException
+     *             Unsupported encoding
+     */
+    private static JSONObject parseRequest(final byte[] aContent,
+            final String aEncoding) throws IOException {
+
+        try {
+            return new JSONObject(new String(aContent, aEncoding));
+
+        } catch (final JSONException ex) {
+            // Let Jabsorb report the error
+            return null;
+        }
+    }
+
+    /**
+     * Looks for the method of a single request in the first bytes of its
+     * body, without consuming it
+     *
+     * @param aBody
+     *            The request body
+     * @param aEncoding
+     *            The request body encoding
+     * @return The method name, or null if it isn't in the first bytes
+     * @throws IOException
+     *             Error reading the request
+     */
+    private static String peekMethod(final BufferedInputStream aBody,
+            final String aEncoding) throws IOException {
+
+        aBody.mark(METHOD_PEEK_LIMIT);
+        try {
+            final byte[] head = new byte[METHOD_PEEK_LIMIT];
+            int size = 0;
+            int read;
+            while (size < head.length
+                    && (read = aBody.read(head, size, head.length - size)) != -1) {
+                size += read;
+            }
+
+            // Read the members until the method, skipping the others
+            final JSONTokener tokener = new JSONTokener(new String(head, 0,
+                    size, aEncoding));
+            if (tokener.nextClean() != '{') {
+                return null;
+            }
+
+            while (true) {
+                final Object key = tokener.nextValue();
+                if (tokener.nextClean() != ':') {
+                    return null;
+                }
+
+                final Object value = tokener.nextValue();
+                if ("method".equals(key)) {
+                    return value instanceof String ? (String) value : null;
+                }
+
+                if (tokener.nextClean() != ',') {
+                    return null;
+                }
+            }
+
+        } catch (final JSONException ex) {
+            // Truncated or invalid request
+            return null;
+
+        } finally {
+            aBody.reset();
+        }
+    }
+
+    /**
+     * Limits the concurrent calls to an endpoint
+     *
+     * @param aEndpointName
+     *            Endpoint name
+     * @param aBulkhead
+     *            The bulkhead of the endpoint
+     */
+    void putBulkhead(final String aEndpointName,
+            final JabsorbBulkhead aBulkhead) {
+
+        pBulkheads.put(aEndpointName, aBulkhead);
+    }
+
+    /**
+     * Reads all the given stream
+     *
+     * @param aInput
+     *            An input stream
+     * @return The content of the stream
+     * @throws IOException
+     *             Error reading the stream
+     */
+    private static byte[] readAll(final InputStream aInput) throws IOException {
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = aInput.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Removes the limit of the concurrent calls to an endpoint
+     *
+     * @param aEndpointName
+     *            Endpoint name
+     * @return The bulkhead of the endpoint, or null
+     */
+    JabsorbBulkhead removeBulkhead(final String aEndpointName) {
+
+        return pBulkheads.remove(aEndpointName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.jabsorb.ng.JSONRPCServlet#service(javax.servlet.http.HttpServletRequest
+     * , javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public void service(final HttpServletRequest aReq,
+            final HttpServletResponse aResp) throws IOException {
+
+        final String encoding;
+        if (pThreshold < 0) {
+            encoding = null;
+        } else {
+            encoding = HttpCompression.negotiate(aReq
+                    .getHeader(HttpCompression.HEADER_ACCEPT_ENCODING));
+        }
+
+        if (encoding == null) {
+            // No compression
+            handle(aReq, aResp);
+            return;
+        }
+
+        // Buffer the response to compress it
+        final BufferedResponse response = new BufferedResponse(aResp);
+        handle(aReq, response);
+        response.finish(encoding, pThreshold);
+    }
+
+    /**
+     * Runs the calls of a batch, in parallel if possible, and sends their
+     * results in a JSON array, in the order of the requests
+     *
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @param aBody
+     *            The request body
+     * @throws IOException
+     *             Error reading the request or writing the response
+     */
+    private void serviceBatch(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final InputStream aBody)
+            throws IOException {
+
+        final JSONArray requests;
+        try {
+            requests = new JSONArray(new JSONTokener(new InputStreamReader(
+                    aBody, CHARSET_UTF8)));
+
+        } catch (final JSONException ex) {
+            aResp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "Invalid JSON-RPC batch: " + ex);
+            return;
+        }
+
+        final JSONRPCBridge bridge = JSONRPCBridge.getGlobalBridge();
+        final Object[] context = new Object[] { aReq, aResp };
+        final int nbCalls = requests.length();
+
+        // Start the calls, the last one being run in this thread
+        final String[] results = new String[nbCalls];
+        final List<Future<String>> futures = new ArrayList<Future<String>>(
+                nbCalls);
+        for (int i = 0; i < nbCalls; i++) {
+            final Object request = requests.opt(i);
+            if (pBatchExecutor == null || i == nbCalls - 1) {
+                results[i] = call(bridge, context, request);
+
+            } else {
+                futures.add(pBatchExecutor.submit(new Callable<String>() {
+
+                    @Override
+                    public String call() {
+
+                        return JabsorbRpcServlet.this.call(bridge, context,
+                                request);
+                    }
+                }));
+            }
+        }
+
+        // Wait for the other calls
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                while (true) {
+                    try {
+                        results[i] = futures.get(i).get();
+                        break;
+
+                    } catch (final InterruptedException ex) {
+                        // Wait for the end of the calls anyway
+                        interrupted = true;
+                    }
+                }
+
+            } catch (final ExecutionException ex) {
+                results[i] = new JSONRPCResult(
+                        JSONRPCResult.CODE_REMOTE_EXCEPTION, null,
+                        ex.getCause()).toString();
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Send the results
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < nbCalls; i++) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(results[i]);
+        }
+        builder.append(']');
+        writeJson(aResp, builder.toString());
+    }
+
+    /**
+     * Handles a single request, while some endpoints are limited: the method
+     * of the request is looked for in its first bytes (or in the parsed
+     * request if it isn't there), then the request is handled by the Jabsorb
+     * servlet if the bulkhead of the endpoint lets it
+     *
+     * @param aReq
+     *            Servlet request
+     * @param aResp
+     *            Servlet response
+     * @param aBody
+     *            The request body
+     * @throws IOException
+     *             Error reading the request or writing the response
+     */
+    private void serviceLimited(final HttpServletRequest aReq,
+            final HttpServletResponse aResp, final BufferedInputStream aBody)
+            throws IOException {
+
+        final String encoding = aReq.getCharacterEncoding() != null ? aReq
+                .getCharacterEncoding() : CHARSET_UTF8;
+
+        InputStream content = aBody;
+        JSONObject request = null;
+        String method = peekMethod(aBody, encoding);
+        if (method == null) {
+            // Method not found in the first bytes: parse the whole request
+            final byte[] bytes = readAll(aBody);
+            content = new ByteArrayInputStream(bytes);
+            request = parseRequest(bytes, encoding);
+            method = request != null ? request.optString("method", "") : "";
+        }
+
+        final JabsorbBulkhead bulkhead = getBulkhead(method);
+        if (bulkhead == null) {
+            super.service(new PeekedRequest(aReq, content), aResp);
+            return;
+        }
+
+        if (!bulkhead.acquire()) {
+            if (request == null) {
+                // Parse the request to get its ID
+                request = parseRequest(readAll(content), encoding);
+            }
+
+            writeJson(aResp, overloaded(request, bulkhead));
+            return;
+        }
+
+        try {
+            super.service(new PeekedRequest(aReq, content), aResp);
+
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /**
+     * Sends a JSON response
+     *
+     * @param aResp
+     *            Servlet response
+     * @param aContent
+     *            The JSON response
+     * @throws IOException
+     *             Error writing the response
+     */
+    private static void writeJson(final HttpServletResponse aResp,
+            final String aContent) throws IOException {
+
+        final byte[] content = aContent.getBytes(CHARSET_UTF8);
+        aResp.setStatus(HttpServletResponse.SC_OK);
+        aResp.setContentType(JSON_TYPE);
+        aResp.setCharacterEncoding(CHARSET_UTF8);
+        aResp.setContentLength(content.length);
+
+        final OutputStream output = aResp.getOutputStream();
+        output.write(content);
+        output.flush();
+    }
+}
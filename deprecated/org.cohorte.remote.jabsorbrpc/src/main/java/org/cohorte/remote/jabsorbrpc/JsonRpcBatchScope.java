@@ -0,0 +1,145 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.jabsorbrpc;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * An explicit batch scope on a JABSORB-RPC proxy: while it is open, the calls
+ * made to the servlet of the proxy by the other threads are held, then sent
+ * as a single JSON-RPC batch when the scope is flushed or ended. As the
+ * proxies are synchronous, the calls to batch are usually made through an
+ * executor, their futures being completed once the batch is sent:
+ *
+ * <pre>
+ * final JsonRpcBatchScope scope = JsonRpcBatchScope.begin(proxy);
+ * try {
+ *     // Submit the calls to an executor
+ * } finally {
+ *     scope.end();
+ * }
+ * </pre>
+ *
+ * A call made by the thread which began the scope sends the held calls with
+ * it right away, as this thread needs its result.
+ *
+ * @author Thomas Calmant
+ */
+public final class JsonRpcBatchScope {
+
+    /**
+     * Imported proxies: Proxy -&gt; Servlet URL (by identity, as the proxies
+     * forward equals() to the remote service)
+     */
+    private static final Map<Object, URL> sProxies = Collections
+            .synchronizedMap(new IdentityHashMap<Object, URL>());
+
+    /** The batcher of the servlet URL */
+    private final JsonRpcBatcher pBatcher;
+
+    /** Set once the scope is ended */
+    private boolean pEnded;
+
+    /** The thread which began the scope */
+    private final Thread pOwner;
+
+    /**
+     * Sets up the scope
+     *
+     * @param aBatcher
+     *            The batcher of the servlet URL
+     */
+    private JsonRpcBatchScope(final JsonRpcBatcher aBatcher) {
+
+        pBatcher = aBatcher;
+        pOwner = Thread.currentThread();
+    }
+
+    /**
+     * Begins a batch scope on the servlet of the given proxy
+     *
+     * @param aProxy
+     *            A proxy imported with JABSORB-RPC
+     * @return The scope, to be ended by the current thread
+     * @throws IllegalArgumentException
+     *             Not a JABSORB-RPC proxy
+     */
+    public static JsonRpcBatchScope begin(final Object aProxy) {
+
+        final URL url = sProxies.get(aProxy);
+        if (url == null) {
+            throw new IllegalArgumentException(
+                    "Not a JABSORB-RPC proxy: " + aProxy);
+        }
+
+        final JsonRpcBatchScope scope = new JsonRpcBatchScope(
+                JsonRpcBatcher.get(url, JabsorbHttpSession.BATCH_WINDOW));
+        scope.pBatcher.beginScope(scope.pOwner);
+        return scope;
+    }
+
+    /**
+     * Associates an imported proxy to its servlet URL
+     *
+     * @param aProxy
+     *            A proxy imported with JABSORB-RPC
+     * @param aAccessUrl
+     *            The URL of the servlet of the proxy
+     */
+    static void register(final Object aProxy, final String aAccessUrl) {
+
+        try {
+            sProxies.put(aProxy, new URL(aAccessUrl));
+
+        } catch (final MalformedURLException ex) {
+            // The session would have failed the same way: no batch
+        }
+    }
+
+    /**
+     * Forgets an imported proxy
+     *
+     * @param aProxy
+     *            A proxy closed by the importer
+     */
+    static void unregister(final Object aProxy) {
+
+        sProxies.remove(aProxy);
+    }
+
+    /**
+     * Sends the held calls and ends the scope
+     */
+    public synchronized void end() {
+
+        if (!pEnded) {
+            pEnded = true;
+            pBatcher.endScope(pOwner);
+        }
+    }
+
+    /**
+     * Sends the calls held so far, the scope staying open
+     */
+    public void flush() {
+
+        pBatcher.flush();
+    }
+}
@@ -0,0 +1,459 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.jabsorbrpc;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jabsorb.ng.JSONRPCResult;
+import org.jabsorb.ng.client.ClientError;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Groups the JSON-RPC calls made to the same URL during a short time window,
+ * or while a {@link JsonRpcBatchScope} is open, into a single batch request (a
+ * JSON array of requests).
+ *
+ * The first call of a window waits for the end of the window (or for the
+ * flush of the scopes), then sends the batch and dispatches the responses to
+ * the other callers, which wait for their own result. The request IDs are replaced by their index in the batch,
+ * as the calls can come from different clients, and restored in the
+ * responses. If the batch fails without an error of its own, each caller sends
+ * its call alone; if the server rejected the batch as an invalid request, no
+ * batch is sent to this URL anymore.
+ *
+ * @author Thomas Calmant
+ */
+class JsonRpcBatcher {
+
+    /**
+     * A call waiting for its response
+     */
+    private static final class PendingCall {
+
+        /** The call must be sent alone by its caller */
+        private boolean pAlone;
+
+        /** The error raised while sending the call */
+        private RuntimeException pError;
+
+        /** The request */
+        private final JSONObject pRequest;
+
+        /** The response, null until received */
+        private JSONObject pResponse;
+
+        /**
+         * Sets up the call
+         *
+         * @param aRequest
+         *            The JSON-RPC request
+         */
+        private PendingCall(final JSONObject aRequest) {
+
+            pRequest = aRequest;
+        }
+
+        /**
+         * Sets the result of the call, if it hasn't been set yet
+         *
+         * @param aResponse
+         *            The JSON-RPC response (null on error)
+         * @param aError
+         *            The error raised sending the call (null on success)
+         */
+        private synchronized void complete(final JSONObject aResponse,
+                final RuntimeException aError) {
+
+            if (pResponse != null || pError != null || pAlone) {
+                // Already completed
+                return;
+            }
+
+            pResponse = aResponse;
+            pError = aError;
+            notifyAll();
+        }
+
+        /**
+         * Tells the caller to send the call alone, if it hasn't been completed
+         * yet
+         */
+        private synchronized void sendAlone() {
+
+            if (pResponse != null || pError != null) {
+                // Already completed
+                return;
+            }
+
+            pAlone = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the result of the call
+         *
+         * @return The JSON-RPC response, or null if the call must be sent
+         *         alone
+         * @throws RuntimeException
+         *             The error raised sending the call
+         */
+        private synchronized JSONObject waitResponse() {
+
+            boolean interrupted = false;
+            try {
+                while (pResponse == null && pError == null && !pAlone) {
+                    try {
+                        wait();
+
+                    } catch (final InterruptedException ex) {
+                        // The batch is already sent: wait for its end
+                        interrupted = true;
+                    }
+                }
+
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (pError != null) {
+                throw pError;
+            }
+            return pResponse;
+        }
+    }
+
+    /** JSON-RPC 2.0 error code of an invalid request */
+    private static final int CODE_INVALID_REQUEST = -32600;
+
+    /** JSON-RPC 2.0 error code of a request which can't be parsed */
+    private static final int CODE_PARSE_ERROR = -32700;
+
+    /** Maximum number of calls in a batch */
+    private static final int MAX_BATCH_SIZE = 64;
+
+    /** Maximum time the calls are held by a batch scope, in milliseconds */
+    private static final long SCOPE_TIMEOUT = 30000;
+
+    /** URL -&gt; Batcher */
+    private static final ConcurrentMap<String, JsonRpcBatcher> sBatchers = new ConcurrentHashMap<String, JsonRpcBatcher>();
+
+    /** Set to send the calls of the current window */
+    private boolean pFlush;
+
+    /** The server doesn't support batches */
+    private volatile boolean pNoBatch;
+
+    /** The threads which began the open batch scopes */
+    private final List<Thread> pOwners = new ArrayList<Thread>();
+
+    /** Calls of the current window */
+    private List<PendingCall> pPending = new ArrayList<PendingCall>();
+
+    /** Duration of the window, in milliseconds */
+    private final long pWindow;
+
+    /**
+     * Sets up the batcher
+     *
+     * @param aWindow
+     *            Duration of the coalescing window, in milliseconds
+     */
+    private JsonRpcBatcher(final long aWindow) {
+
+        pWindow = aWindow;
+    }
+
+    /**
+     * Opens a batch scope: the calls are held until it is flushed or ended
+     *
+     * @param aOwner
+     *            The thread which began the scope
+     */
+    synchronized void beginScope(final Thread aOwner) {
+
+        pOwners.add(aOwner);
+    }
+
+    /**
+     * Sends a call in the current batch
+     *
+     * @param aSession
+     *            The session used if the call has to send the batch
+     * @param aRequest
+     *            The JSON-RPC request
+     * @return The JSON-RPC response
+     * @throws ClientError
+     *             Error sending the call
+     */
+    JSONObject call(final JabsorbHttpSession aSession,
+            final JSONObject aRequest) {
+
+        if (pNoBatch) {
+            // Batches not supported
+            return JabsorbHttpSession.toResponse(aSession.send(aRequest));
+        }
+
+        final PendingCall call = new PendingCall(aRequest);
+        final List<PendingCall> batch;
+        synchronized (this) {
+            pPending.add(call);
+            if (pOwners.contains(Thread.currentThread())) {
+                // The thread of a scope needs its result: send the batch now
+                pFlush = true;
+                notifyAll();
+            }
+
+            if (pPending.size() > 1) {
+                if (pPending.size() >= MAX_BATCH_SIZE) {
+                    // Wake up the first caller of the window
+                    notifyAll();
+                }
+
+                // The first caller of the window sends the batch
+                batch = null;
+
+            } else {
+                // Wait for the end of the window, or for the flush of the
+                // scopes
+                final long start = System.currentTimeMillis();
+                try {
+                    while (!pFlush && pPending.size() < MAX_BATCH_SIZE) {
+                        final long remaining = start
+                                + (pOwners.isEmpty() ? pWindow : SCOPE_TIMEOUT)
+                                - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        wait(remaining);
+                    }
+
+                } catch (final InterruptedException ex) {
+                    // Send the batch right now
+                    Thread.currentThread().interrupt();
+                }
+
+                // Start a new window
+                pFlush = false;
+                batch = pPending;
+                pPending = new ArrayList<PendingCall>();
+            }
+        }
+
+        if (batch != null) {
+            sendBatch(aSession, batch);
+        }
+
+        final JSONObject response = call.waitResponse();
+        if (response == null) {
+            // Not sent in a batch: send it with the session of the caller
+            return JabsorbHttpSession.toResponse(aSession.send(aRequest));
+        }
+        return response;
+    }
+
+    /**
+     * Closes a batch scope and sends the held calls
+     *
+     * @param aOwner
+     *            The thread which began the scope
+     */
+    synchronized void endScope(final Thread aOwner) {
+
+        pOwners.remove(aOwner);
+        flush();
+    }
+
+    /**
+     * Sets the error of the calls which haven't been completed yet
+     *
+     * @param aCalls
+     *            The calls of the batch
+     * @param aError
+     *            The error to raise in the callers
+     */
+    private void fail(final List<PendingCall> aCalls,
+            final RuntimeException aError) {
+
+        for (final PendingCall call : aCalls) {
+            call.complete(null, aError);
+        }
+    }
+
+    /**
+     * Returns the existing batcher of the given URL
+     *
+     * @param aUrl
+     *            A JSON-RPC servlet URL
+     * @return The batcher associated to the URL, or null
+     */
+    static JsonRpcBatcher find(final URL aUrl) {
+
+        return sBatchers.get(aUrl.toString());
+    }
+
+    /**
+     * Sends the calls of the current window, if any
+     */
+    synchronized void flush() {
+
+        if (!pPending.isEmpty()) {
+            pFlush = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the batcher of the given URL
+     *
+     * @param aUrl
+     *            A JSON-RPC servlet URL
+     * @param aWindow
+     *            Duration of the coalescing window, in milliseconds
+     * @return The batcher associated to the URL
+     */
+    static JsonRpcBatcher get(final URL aUrl, final long aWindow) {
+
+        final String key = aUrl.toString();
+        JsonRpcBatcher batcher = sBatchers.get(key);
+        if (batcher == null) {
+            final JsonRpcBatcher newBatcher = new JsonRpcBatcher(aWindow);
+            batcher = sBatchers.putIfAbsent(key, newBatcher);
+            if (batcher == null) {
+                batcher = newBatcher;
+            }
+        }
+
+        return batcher;
+    }
+
+    /**
+     * Tests if a batch scope is open
+     *
+     * @return True if the calls are held by a scope
+     */
+    synchronized boolean isScoped() {
+
+        return !pOwners.isEmpty();
+    }
+
+    /**
+     * Tests if the given response to a batch tells that the server doesn't
+     * support batches: an error response to the whole request (without ID),
+     * telling that it couldn't be parsed or that it is invalid
+     *
+     * @param aResult
+     *            The response to a batch request
+     * @return True if the server rejected the batch
+     */
+    private static boolean isUnsupported(final Object aResult) {
+
+        if (!(aResult instanceof JSONObject)) {
+            return false;
+        }
+
+        final JSONObject response = (JSONObject) aResult;
+        final JSONObject error = response.optJSONObject("error");
+        if (error == null || !response.isNull("id")) {
+            // Not an error about the whole request
+            return false;
+        }
+
+        final int code = error.optInt("code");
+        return code == JSONRPCResult.CODE_ERR_PARSE
+                || code == CODE_PARSE_ERROR || code == CODE_INVALID_REQUEST;
+    }
+
+    /**
+     * Sends a batch of calls and dispatches the responses
+     *
+     * @param aSession
+     *            The session to use
+     * @param aBatch
+     *            The calls to send
+     */
+    private void sendBatch(final JabsorbHttpSession aSession,
+            final List<PendingCall> aBatch) {
+
+        if (aBatch.size() == 1) {
+            // Nothing to group
+            aBatch.get(0).sendAlone();
+            return;
+        }
+
+        try {
+            // Prepare the batch, using the indexes as IDs
+            final Object[] ids = new Object[aBatch.size()];
+            final JSONArray requests = new JSONArray();
+            for (int i = 0; i < ids.length; i++) {
+                final JSONObject request = aBatch.get(i).pRequest;
+                ids[i] = request.opt("id");
+                request.put("id", i);
+                requests.put(request);
+            }
+
+            final Object result = aSession.send(requests);
+            if (!(result instanceof JSONArray)) {
+                if (isUnsupported(result)) {
+                    // The server doesn't understand batches: stop using them
+                    pNoBatch = true;
+                }
+
+                // Let each caller send its call (with its own ID)
+                for (int i = 0; i < ids.length; i++) {
+                    final PendingCall call = aBatch.get(i);
+                    call.pRequest.put("id", ids[i]);
+                    call.sendAlone();
+                }
+                return;
+            }
+
+            // Dispatch the responses
+            final JSONArray responses = (JSONArray) result;
+            for (int i = 0; i < responses.length(); i++) {
+                final JSONObject response = responses.optJSONObject(i);
+                if (response == null) {
+                    continue;
+                }
+
+                final int index = response.optInt("id", -1);
+                if (index >= 0 && index < ids.length) {
+                    response.put("id", ids[index]);
+                    aBatch.get(index).complete(response, null);
+                }
+            }
+
+            // Calls without response
+            for (final PendingCall call : aBatch) {
+                call.complete(null, new ClientError(
+                        "No response in the JSON-RPC batch"));
+            }
+
+        } catch (final JSONException ex) {
+            fail(aBatch, new ClientError(ex));
+
+        } catch (final RuntimeException ex) {
+            fail(aBatch, ex);
+        }
+    }
+}
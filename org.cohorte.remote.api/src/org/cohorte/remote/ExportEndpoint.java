@@ -17,6 +17,7 @@ package org.cohorte.remote;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -33,6 +34,47 @@ import org.osgi.service.remoteserviceadmin.RemoteConstants;
  */
 public class ExportEndpoint {
 
+    /**
+     * Immutable state of an endpoint, shared by all readers
+     */
+    private static final class Snapshot {
+
+        /** Import properties */
+        private final Map<String, Object> pImportProperties;
+
+        /** Description of the endpoint, as used by the dispatcher servlet */
+        private final Map<String, Object> pMap;
+
+        /** Merged properties */
+        private final Map<String, Object> pProperties;
+
+        /** Version of the snapshot */
+        private final long pVersion;
+
+        /**
+         * Sets up the snapshot
+         *
+         * @param aVersion
+         *            Version of the snapshot
+         * @param aProperties
+         *            Merged properties (read-only)
+         * @param aImportProperties
+         *            Import properties (read-only)
+         * @param aMap
+         *            Map description (read-only)
+         */
+        private Snapshot(final long aVersion,
+                final Map<String, Object> aProperties,
+                final Map<String, Object> aImportProperties,
+                final Map<String, Object> aMap) {
+
+            pVersion = aVersion;
+            pProperties = aProperties;
+            pImportProperties = aImportProperties;
+            pMap = aMap;
+        }
+    }
+
     /** Export configuration */
     private final String[] pConfigurations;
 
@@ -43,7 +85,7 @@ public class ExportEndpoint {
     private final String pFrameworkUid;
 
     /** Endpoint name */
-    private String pName;
+    private volatile String pName;
 
     /** Service properties */
     private final Map<String, Object> pProperties = new LinkedHashMap<String, Object>();
@@ -51,6 +93,9 @@ public class ExportEndpoint {
     /** Service reference */
     private final ServiceReference<?> pReference;
 
+    /** Current state, replaced on each modification */
+    private volatile Snapshot pSnapshot;
+
     /** Endpoint UID */
     private final String pUid;
 
@@ -102,6 +147,9 @@ public class ExportEndpoint {
             throw new IllegalArgumentException(
                     "Service without exported specifications");
         }
+
+        // Compute the first snapshot
+        pSnapshot = computeSnapshot(0);
     }
 
     /**
@@ -155,6 +203,77 @@ public class ExportEndpoint {
                 .toArray(new String[filteredSpecs.size()]);
     }
 
+    /**
+     * Computes a snapshot of the current state of the endpoint
+     *
+     * @param aVersion
+     *            Version of the snapshot
+     * @return The new snapshot
+     */
+    private Snapshot computeSnapshot(final long aVersion) {
+
+        // Merged properties
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+
+        // Get service properties
+        for (final String key : pReference.getPropertyKeys()) {
+            properties.put(key, pReference.getProperty(key));
+        }
+
+        // Merge with local properties
+        properties.putAll(pProperties);
+
+        // Some properties must not be merged
+        properties.put(Constants.OBJECTCLASS,
+                pReference.getProperty(Constants.OBJECTCLASS));
+        properties.put(Constants.SERVICE_ID,
+                pReference.getProperty(Constants.SERVICE_ID));
+
+        // Import properties
+        final Map<String, Object> importProperties = new LinkedHashMap<String, Object>(
+                properties);
+
+        // Add the "imported" property
+        importProperties.put(Constants.SERVICE_IMPORTED, true);
+
+        // Replace the "exported configs"
+        final Object configs = importProperties
+                .remove(Constants.SERVICE_EXPORTED_CONFIGS);
+        if (configs != null) {
+            importProperties.put(Constants.SERVICE_IMPORTED_CONFIGS, configs);
+        }
+
+        // Clear other export properties
+        importProperties.remove(Constants.SERVICE_EXPORTED_INTENTS);
+        importProperties.remove(Constants.SERVICE_EXPORTED_INTENTS_EXTRA);
+        importProperties.remove(Constants.SERVICE_EXPORTED_INTERFACES);
+
+        // Add the framework UID
+        importProperties.put(RemoteConstants.ENDPOINT_FRAMEWORK_UUID,
+                pFrameworkUid);
+
+        final Map<String, Object> readOnlyImportProperties = Collections
+                .unmodifiableMap(importProperties);
+
+        // Map description
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+
+        // Simple attributes
+        map.put("uid", pUid);
+        map.put("sender", pFrameworkUid);
+        map.put("name", pName);
+
+        // Read-only lists: no need to copy them
+        map.put("configurations", Collections.unmodifiableList(Arrays
+                .asList(pConfigurations)));
+        map.put("specifications", Collections.unmodifiableList(Arrays
+                .asList(pExportedSpecs)));
+        map.put("properties", readOnlyImportProperties);
+
+        return new Snapshot(aVersion, Collections.unmodifiableMap(properties),
+                readOnlyImportProperties, Collections.unmodifiableMap(map));
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -204,29 +323,13 @@ public class ExportEndpoint {
     }
 
     /**
-     * Returns merged properties
+     * Returns merged properties, as of the last {@link #refresh()}
      *
-     * @return the service properties merged with extra ones
+     * @return the service properties merged with extra ones (read-only)
      */
     public Map<String, Object> getProperties() {
 
-        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
-
-        // Get service properties
-        for (final String key : pReference.getPropertyKeys()) {
-            properties.put(key, pReference.getProperty(key));
-        }
-
-        // Merge with local properties
-        properties.putAll(pProperties);
-
-        // Some properties must not be merged
-        properties.put(Constants.OBJECTCLASS,
-                pReference.getProperty(Constants.OBJECTCLASS));
-        properties.put(Constants.SERVICE_ID,
-                pReference.getProperty(Constants.SERVICE_ID));
-
-        return properties;
+        return pSnapshot.pProperties;
     }
 
     /**
@@ -245,6 +348,17 @@ public class ExportEndpoint {
         return pUid;
     }
 
+    /**
+     * Returns the version of the endpoint description, incremented each time
+     * its name or its properties change
+     *
+     * @return the version of the endpoint
+     */
+    public long getVersion() {
+
+        return pSnapshot.pVersion;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -261,33 +375,24 @@ public class ExportEndpoint {
      * Returns the properties of this endpoint where export properties have been
      * replaced by import ones
      *
-     * @return A dictionary with import properties
+     * @return A dictionary with import properties (read-only)
      */
     public Map<String, Object> makeImportProperties() {
 
-        // Get the merged properties
-        final Map<String, Object> importProperties = getProperties();
-
-        // Add the "imported" property
-        importProperties.put(Constants.SERVICE_IMPORTED, true);
-
-        // Replace the "exported configs"
-        final Object configs = importProperties
-                .remove(Constants.SERVICE_EXPORTED_CONFIGS);
-        if (configs != null) {
-            importProperties.put(Constants.SERVICE_IMPORTED_CONFIGS, configs);
-        }
-
-        // Clear other export properties
-        importProperties.remove(Constants.SERVICE_EXPORTED_INTENTS);
-        importProperties.remove(Constants.SERVICE_EXPORTED_INTENTS_EXTRA);
-        importProperties.remove(Constants.SERVICE_EXPORTED_INTERFACES);
+        return pSnapshot.pImportProperties;
+    }
 
-        // Add the framework UID
-        importProperties.put(RemoteConstants.ENDPOINT_FRAMEWORK_UUID,
-                pFrameworkUid);
+    /**
+     * Updates the endpoint description with the current properties of the
+     * exported service. To be called once per service modification.
+     *
+     * @return The merged properties before the update
+     */
+    public synchronized Map<String, Object> refresh() {
 
-        return importProperties;
+        final Snapshot oldSnapshot = pSnapshot;
+        pSnapshot = computeSnapshot(oldSnapshot.pVersion + 1);
+        return oldSnapshot.pProperties;
     }
 
     /**
@@ -296,31 +401,25 @@ public class ExportEndpoint {
      * @param aNewName
      *            The new endpoint name
      */
-    public void setName(final String aNewName) {
+    public synchronized void setName(final String aNewName) {
+
+        if (aNewName == null ? pName == null : aNewName.equals(pName)) {
+            // Nothing to do
+            return;
+        }
 
         pName = aNewName;
+        pSnapshot = computeSnapshot(pSnapshot.pVersion + 1);
     }
 
     /**
      * Converts this bean into a map, as used by the Pelix dispatcher servlet
      *
-     * @return A map describing this endpoint
+     * @return A map describing this endpoint (read-only)
      */
     public Map<String, Object> toMap() {
 
-        final Map<String, Object> result = new LinkedHashMap<String, Object>();
-
-        // Simple attributes
-        result.put("uid", pUid);
-        result.put("sender", pFrameworkUid);
-        result.put("name", pName);
-
-        // Use getters to get valid values
-        result.put("configurations", getConfigurations());
-        result.put("specifications", getExportedSpecs());
-        result.put("properties", makeImportProperties());
-
-        return result;
+        return pSnapshot.pMap;
     }
 
     /*
@@ -16,6 +16,7 @@
 package org.cohorte.remote;
 
 import java.net.InetAddress;
+import java.util.Collection;
 
 /**
  * Specifies the dispatcher servlet
@@ -54,6 +55,23 @@ public interface IDispatcherServlet {
     ImportEndpoint grabEndpoint(InetAddress aAddress, int aPort, String aPath,
             String aEndpointUID);
 
+    /**
+     * Retrieves the description of a set of endpoints from a dispatcher
+     * servlet, in a single request if the servlet supports it
+     * 
+     * @param aAddress
+     *            Address of the server hosting the servlet
+     * @param aPort
+     *            Port the server is listening to
+     * @param aPath
+     *            Path to the servlet
+     * @param aEndpointsUIDs
+     *            UIDs of the endpoints
+     * @return The descriptions of the known endpoints (can be empty)
+     */
+    Collection<ImportEndpoint> grabEndpoints(InetAddress aAddress, int aPort,
+            String aPath, String[] aEndpointsUIDs);
+
     /**
      * Sends a "discovered" HTTP POST request to the dispatcher servlet of the
      * framework that has been discovered
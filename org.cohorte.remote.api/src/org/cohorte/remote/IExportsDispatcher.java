@@ -22,6 +22,12 @@ package org.cohorte.remote;
  */
 public interface IExportsDispatcher {
 
+    /**
+     * Exports the services and applies the service updates which are waiting
+     * for the end of their coalescing window, in the caller thread
+     */
+    void flush();
+
     /**
      * Retrieves the endpoint having the given UID
      * 
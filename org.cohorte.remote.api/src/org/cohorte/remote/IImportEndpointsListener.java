@@ -0,0 +1,34 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote;
+
+/**
+ * Specifies an import endpoint listener which can handle multiple discovered
+ * endpoints in a single call. Listeners which don't implement this interface
+ * are notified once per endpoint.
+ * 
+ * @author Thomas Calmant
+ */
+public interface IImportEndpointsListener extends IImportEndpointListener {
+
+    /**
+     * Multiple endpoints have been discovered
+     * 
+     * @param aEndpoints
+     *            An array of import endpoints
+     */
+    void endpointsAdded(ImportEndpoint[] aEndpoints);
+}
@@ -15,6 +15,7 @@
  */
 package org.cohorte.remote;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -34,6 +35,16 @@ public interface IImportsRegistry {
      */
     boolean add(ImportEndpoint aEndpoint);
 
+    /**
+     * Registers a set of end points and notifies listeners. End points with an
+     * already known UID are ignored.
+     * 
+     * @param aEndpoints
+     *            The discovered endpoints
+     * @return True if at least one of the end points has been used
+     */
+    boolean addAll(Collection<ImportEndpoint> aEndpoints);
+
     /**
      * Unregisters all the end points associated to the given framework UID
      * 
@@ -50,6 +61,15 @@ public interface IImportsRegistry {
      */
     void remove(String aUid);
 
+    /**
+     * Unregisters a set of end points and notifies listeners. Unknown UIDs are
+     * ignored.
+     * 
+     * @param aUids
+     *            The UIDs of the end points to unregister
+     */
+    void removeAll(Collection<String> aUids);
+
     /**
      * Updates an end point and notifies listeners
      * 
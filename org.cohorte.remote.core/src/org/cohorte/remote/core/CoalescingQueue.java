@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A queue of keys handled in batches by a dedicated thread. The keys queued
+ * during a time window, starting with the first queued key, are given to the
+ * handler in a single call. A key queued twice before being handled is only
+ * handled once. A key cancelled while its batch is being handled is reported
+ * by {@link #isCancelled(Object)}, for the handler to skip it.
+ *
+ * @param <K>
+ *            Type of the queued keys
+ *
+ * @author Thomas Calmant
+ */
+class CoalescingQueue<K> implements Runnable {
+
+	/**
+	 * Handler of the batches of keys
+	 *
+	 * @param <K>
+	 *            Type of the queued keys
+	 */
+	interface IBatchHandler<K> {
+
+		/**
+		 * Handles a batch of keys
+		 *
+		 * @param aKeys
+		 *            The keys queued during the time window, in order
+		 */
+		void handleBatch(Collection<K> aKeys);
+	}
+
+	/**
+	 * Keys of the batch being handled which haven't been cancelled, null
+	 * between batches
+	 */
+	private Set<K> pBatch;
+
+	/** The batch handler */
+	private final IBatchHandler<K> pHandler;
+
+	/** Lock to serialize the calls to the handler */
+	private final Object pHandlerLock = new Object();
+
+	/** Name of the worker thread */
+	private final String pName;
+
+	/** Pending keys, in queuing order */
+	private final Set<K> pPending = new LinkedHashSet<K>();
+
+	/** The worker thread, null when the queue is stopped */
+	private Thread pThread;
+
+	/** The coalescing window, in milliseconds */
+	private final long pWindow;
+
+	/**
+	 * Sets up the queue
+	 *
+	 * @param aName
+	 *            Name of the worker thread
+	 * @param aWindow
+	 *            Coalescing window, in milliseconds
+	 * @param aHandler
+	 *            The batch handler
+	 */
+	CoalescingQueue(final String aName, final long aWindow,
+			final IBatchHandler<K> aHandler) {
+
+		pName = aName;
+		pWindow = Math.max(0, aWindow);
+		pHandler = aHandler;
+	}
+
+	/**
+	 * Removes a key from the queue, if it hasn't been handled yet, and marks
+	 * it as cancelled if it is in the batch being handled
+	 *
+	 * @param aKey
+	 *            A key
+	 * @return True if the key was pending or in the batch being handled
+	 */
+	synchronized boolean cancel(final K aKey) {
+
+		final boolean inBatch = pBatch != null && pBatch.remove(aKey);
+		return pPending.remove(aKey) || inBatch;
+	}
+
+	/**
+	 * Gives the pending keys to the handler, in the caller thread. Calls to the
+	 * handler are serialized.
+	 */
+	void flush() {
+
+		synchronized (pHandlerLock) {
+			final Collection<K> batch;
+			synchronized (this) {
+				if (pPending.isEmpty()) {
+					// Nothing to do
+					return;
+				}
+
+				batch = new LinkedHashSet<K>(pPending);
+				pPending.clear();
+				pBatch = new HashSet<K>(batch);
+			}
+
+			try {
+				pHandler.handleBatch(batch);
+
+			} finally {
+				synchronized (this) {
+					pBatch = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests if a key of the batch being handled has been cancelled since the
+	 * batch started (to be called by the handler)
+	 *
+	 * @param aKey
+	 *            A key of the current batch
+	 * @return True if the key has been cancelled
+	 */
+	synchronized boolean isCancelled(final K aKey) {
+
+		return pBatch != null && !pBatch.contains(aKey);
+	}
+
+	/**
+	 * Queues a key. Does nothing if the key is already pending.
+	 *
+	 * @param aKey
+	 *            A key
+	 * @return True if the key has been queued, False if it was already
+	 *         pending or if the queue is stopped
+	 */
+	synchronized boolean offer(final K aKey) {
+
+		if (pThread == null || !pPending.add(aKey)) {
+			return false;
+		}
+
+		// Wake up the worker
+		notifyAll();
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+
+		try {
+			while (waitForBatch()) {
+				flush();
+			}
+
+		} catch (final InterruptedException ex) {
+			// Stop there
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Starts the worker thread
+	 */
+	synchronized void start() {
+
+		if (pThread != null) {
+			// Already running
+			return;
+		}
+
+		pThread = new Thread(this, pName);
+		pThread.setDaemon(true);
+		pThread.start();
+	}
+
+	/**
+	 * Stops the worker thread. Pending keys are discarded.
+	 */
+	synchronized void stop() {
+
+		pPending.clear();
+		pThread = null;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for keys to be queued, then for the end of the coalescing window
+	 *
+	 * @return True if a batch can be handled, False if the queue is stopped
+	 * @throws InterruptedException
+	 *             Thread interrupted
+	 */
+	private synchronized boolean waitForBatch() throws InterruptedException {
+
+		// The queue might have been restarted with another worker
+		final Thread worker = Thread.currentThread();
+
+		// Wait for a first key
+		while (pThread == worker && pPending.isEmpty()) {
+			wait();
+		}
+
+		// Wait for the end of the window
+		final long deadline = System.currentTimeMillis() + pWindow;
+		long remaining = pWindow;
+		while (pThread == worker && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+
+		return pThread == worker;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cohorte.remote.ImportEndpoint;
+import org.cohorte.remote.utilities.BundleClass;
+import org.cohorte.remote.utilities.BundlesClassLoader;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.log.LogService;
+
+/**
+ * Imports the endpoints exported by another framework of the same JVM,
+ * without going through the network. The imported service is a proxy looking
+ * the service object up at each call; it copies the arguments and results if
+ * the service interfaces aren't shared with this framework.
+ *
+ * @author Thomas Calmant
+ */
+class DirectImporter {
+
+    /** The bundle context */
+    private final BundleContext pContext;
+
+    /** The log service */
+    private final LogService pLogger;
+
+    /** Imported services: Endpoint UID -&gt; ServiceRegistration */
+    private final ConcurrentMap<String, ServiceRegistration<?>> pRegistrations = new ConcurrentHashMap<String, ServiceRegistration<?>>();
+
+    /**
+     * Sets up the importer
+     *
+     * @param aContext
+     *            The bundle context
+     * @param aLogger
+     *            The log service
+     */
+    DirectImporter(final BundleContext aContext, final LogService aLogger) {
+
+        pContext = aContext;
+        pLogger = aLogger;
+    }
+
+    /**
+     * Unregisters all the imported services
+     */
+    void close() {
+
+        for (final String uid : pRegistrations.keySet()) {
+            unregister(pRegistrations.remove(uid));
+        }
+    }
+
+    /**
+     * Imports the given endpoint if it has been exported by a framework of
+     * this JVM
+     *
+     * @param aEndpoint
+     *            A new endpoint
+     * @return True if the endpoint has been handled here, False if it must
+     *         be imported by the transport importers
+     */
+    boolean endpointAdded(final ImportEndpoint aEndpoint) {
+
+        final Method lookup = LocalExports.getServiceLookup(aEndpoint
+                .getFrameworkUid());
+        if (lookup == null) {
+            // Not in this JVM
+            return false;
+        }
+
+        final Object service = LocalExports.lookup(lookup,
+                aEndpoint.getFrameworkUid(), aEndpoint.getUid());
+        if (service == null) {
+            // Not exported anymore
+            return false;
+        }
+
+        // Load the interfaces visible from this framework
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        boolean shared = true;
+        for (final String specification : aEndpoint.getSpecifications()) {
+            final BundleClass foundClass = BundleClass.findClassInBundles(
+                    pContext.getBundles(), specification, false);
+            if (foundClass != null) {
+                final Class<?> interfaceClass = foundClass.getLoadedClass();
+                classes.add(interfaceClass);
+                shared &= interfaceClass.isInstance(service);
+            }
+        }
+
+        if (classes.isEmpty()) {
+            pLogger.log(LogService.LOG_WARNING, "No interface of " + aEndpoint
+                    + " could be loaded: use the network");
+            return false;
+        }
+
+        // Don't keep the service object: it must be released when it is not
+        // exported anymore
+        final ClassLoader classLoader = new BundlesClassLoader(pContext);
+        final Object importedService = Proxy.newProxyInstance(classLoader,
+                classes.toArray(new Class<?>[classes.size()]),
+                new DirectInvocationHandler(lookup,
+                        aEndpoint.getFrameworkUid(), aEndpoint.getUid(),
+                        classLoader, service.getClass().getClassLoader(),
+                        shared));
+
+        pLogger.log(LogService.LOG_DEBUG, "Importing " + aEndpoint
+                + " directly" + (shared ? "" : ", copying the values"));
+
+        final ServiceRegistration<?> registration = pContext.registerService(
+                aEndpoint.getSpecifications(), importedService,
+                new Hashtable<String, Object>(aEndpoint.getProperties()));
+        unregister(pRegistrations.put(aEndpoint.getUid(), registration));
+        return true;
+    }
+
+    /**
+     * Unregisters the service of the given endpoint, if it was imported here
+     *
+     * @param aEndpoint
+     *            A removed endpoint
+     * @return True if the endpoint was imported here
+     */
+    boolean endpointRemoved(final ImportEndpoint aEndpoint) {
+
+        final ServiceRegistration<?> registration = pRegistrations
+                .remove(aEndpoint.getUid());
+        if (registration == null) {
+            return false;
+        }
+
+        unregister(registration);
+        return true;
+    }
+
+    /**
+     * Updates the properties of the service of the given endpoint, if it was
+     * imported here
+     *
+     * @param aEndpoint
+     *            An updated endpoint
+     * @return True if the endpoint was imported here
+     */
+    boolean endpointUpdated(final ImportEndpoint aEndpoint) {
+
+        final ServiceRegistration<?> registration = pRegistrations
+                .get(aEndpoint.getUid());
+        if (registration == null) {
+            return false;
+        }
+
+        registration.setProperties(new Hashtable<String, Object>(aEndpoint
+                .getProperties()));
+        return true;
+    }
+
+    /**
+     * Checks if the given endpoint has been imported here
+     *
+     * @param aUid
+     *            An endpoint UID
+     * @return True if the endpoint was imported here
+     */
+    boolean isImported(final String aUid) {
+
+        return pRegistrations.containsKey(aUid);
+    }
+
+    /**
+     * Unregisters a service, ignoring the errors
+     *
+     * @param aRegistration
+     *            A service registration (can be null)
+     */
+    private void unregister(final ServiceRegistration<?> aRegistration) {
+
+        if (aRegistration == null) {
+            return;
+        }
+
+        try {
+            aRegistration.unregister();
+
+        } catch (final IllegalStateException ex) {
+            // Already unregistered
+        }
+    }
+}
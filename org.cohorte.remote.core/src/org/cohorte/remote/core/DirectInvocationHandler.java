@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.ServiceException;
+
+/**
+ * Invocation handler of the proxies of the services exported by another
+ * framework of the same JVM: looks the service object up at each call, so
+ * that the calls fail once the service is not exported anymore, and calls it
+ * directly. If the service interfaces come from another class loader, the
+ * arguments and results are copied to the classes of the other side.
+ *
+ * @author Thomas Calmant
+ */
+class DirectInvocationHandler implements InvocationHandler {
+
+    /** UID of the export endpoint */
+    private final String pEndpointUid;
+
+    /** UID of the exporting framework */
+    private final String pFrameworkUid;
+
+    /** Copies values to the classes of the importing framework */
+    private final ObjectCopier pLocalCopier;
+
+    /** The service lookup method of the exporting framework */
+    private final Method pLookup;
+
+    /** Proxy method -&gt; Service method */
+    private final ConcurrentMap<Method, Method> pMethods = new ConcurrentHashMap<Method, Method>();
+
+    /** Copies values to the classes of the exporting framework */
+    private final ObjectCopier pServiceCopier;
+
+    /** If True, the service interfaces are shared: nothing is copied */
+    private final boolean pShared;
+
+    /**
+     * Sets up the handler
+     *
+     * @param aLookup
+     *            The service lookup method of the exporting framework
+     * @param aFrameworkUid
+     *            UID of the exporting framework
+     * @param aEndpointUid
+     *            UID of the export endpoint
+     * @param aLocalLoader
+     *            The class loader of the proxy
+     * @param aServiceLoader
+     *            The class loader of the service object
+     * @param aShared
+     *            True if the service interfaces are shared with the proxy
+     */
+    DirectInvocationHandler(final Method aLookup, final String aFrameworkUid,
+            final String aEndpointUid, final ClassLoader aLocalLoader,
+            final ClassLoader aServiceLoader, final boolean aShared) {
+
+        pLookup = aLookup;
+        pFrameworkUid = aFrameworkUid;
+        pEndpointUid = aEndpointUid;
+        pShared = aShared;
+        pLocalCopier = new ObjectCopier(aLocalLoader);
+        pServiceCopier = new ObjectCopier(aServiceLoader);
+    }
+
+    /**
+     * Returns the method of the service interface matching the given proxy
+     * method
+     *
+     * @param aMethod
+     *            A proxy method
+     * @return The service method
+     * @throws Exception
+     *             Method not found
+     */
+    private Method getServiceMethod(final Method aMethod) throws Exception {
+
+        Method method = pMethods.get(aMethod);
+        if (method == null) {
+            final Class<?>[] parameterTypes = aMethod.getParameterTypes();
+            for (int i = 0; i < parameterTypes.length; i++) {
+                parameterTypes[i] = pServiceCopier.translate(parameterTypes[i]);
+            }
+
+            method = pServiceCopier.translate(aMethod.getDeclaringClass())
+                    .getMethod(aMethod.getName(), parameterTypes);
+            pMethods.put(aMethod, method);
+        }
+        return method;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     * java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(final Object aProxy, final Method aMethod,
+            final Object[] aArgs) throws Throwable {
+
+        // Handle the methods of Object locally
+        if (aMethod.getDeclaringClass() == Object.class) {
+            final String name = aMethod.getName();
+            if (name.equals("equals")) {
+                return Boolean.valueOf(aProxy == aArgs[0]);
+
+            } else if (name.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(aProxy));
+
+            } else {
+                return "DirectProxy(" + pEndpointUid + ")";
+            }
+        }
+
+        final Object service = LocalExports.lookup(pLookup, pFrameworkUid,
+                pEndpointUid);
+        if (service == null) {
+            throw new ServiceException("Service of endpoint " + pEndpointUid
+                    + " is not exported anymore",
+                    ServiceException.UNREGISTERED);
+        }
+
+        if (pShared) {
+            try {
+                return aMethod.invoke(service, aArgs);
+
+            } catch (final InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        final Method method;
+        final Object[] args;
+        try {
+            method = getServiceMethod(aMethod);
+            if (aArgs == null) {
+                args = null;
+
+            } else {
+                args = new Object[aArgs.length];
+                for (int i = 0; i < aArgs.length; i++) {
+                    args[i] = pServiceCopier.copy(aArgs[i]);
+                }
+            }
+
+        } catch (final Exception ex) {
+            throw new UndeclaredThrowableException(ex, "Can't call "
+                    + aMethod.getName() + " on " + service);
+        }
+
+        try {
+            return pLocalCopier.copy(method.invoke(service, args));
+
+        } catch (final InvocationTargetException ex) {
+            throw toLocal(aMethod, ex.getCause());
+        }
+    }
+
+    /**
+     * Converts an exception thrown by the service to the classes of the
+     * importing framework
+     *
+     * @param aMethod
+     *            The called proxy method
+     * @param aError
+     *            The exception thrown by the service
+     * @return The exception to throw
+     */
+    private Throwable toLocal(final Method aMethod, final Throwable aError) {
+
+        try {
+            final Class<?> clazz = pLocalCopier.translate(aError.getClass());
+            if (clazz == aError.getClass()) {
+                // Shared class
+                return aError;
+            }
+
+            boolean declared = RuntimeException.class.isAssignableFrom(clazz)
+                    || Error.class.isAssignableFrom(clazz);
+            for (final Class<?> exception : aMethod.getExceptionTypes()) {
+                declared |= exception.isAssignableFrom(clazz);
+            }
+
+            if (declared) {
+                final Throwable error = (Throwable) clazz.getConstructor(
+                        String.class).newInstance(aError.getMessage());
+                error.setStackTrace(aError.getStackTrace());
+                return error;
+            }
+
+        } catch (final Exception ex) {
+            // Unknown class or no constructor with a message
+        }
+
+        return new UndeclaredThrowableException(aError);
+    }
+}
@@ -17,18 +17,34 @@ package org.cohorte.remote.core;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Property;
 import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Unbind;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.cohorte.remote.ExportEndpoint;
 import org.cohorte.remote.IExportEndpointListener;
@@ -64,7 +80,31 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	private final BundleContext pBundleContext;
 
 	/** UID -&gt; ExportEndpoint */
-	private final Map<String, ExportEndpoint> pEndpoints = new LinkedHashMap<String, ExportEndpoint>();
+	private final ConcurrentMap<String, ExportEndpoint> pEndpoints = new ConcurrentHashMap<String, ExportEndpoint>();
+
+	/**
+	 * Published snapshot of the endpoints, in export order. Replaced (never
+	 * modified) while holding the dispatcher lock, read without locking.
+	 */
+	private volatile ExportEndpoint[] pEndpointsSnapshot = new ExportEndpoint[0];
+
+	/** Executor calling the exporters */
+	private ExecutorService pExportExecutor;
+
+	/** Services waiting to be exported */
+	private CoalescingQueue<ServiceReference<?>> pExportQueue;
+
+	/** Coalescing window of the export queue, in milliseconds */
+	@Property(name = "export.window", value = "50")
+	private long pExportWindow;
+
+	/** Maximum number of exporters called concurrently */
+	@Property(name = "export.threads", value = "4")
+	private int pExportThreads;
+
+	/** Maximum time given to an exporter to export a service, in milliseconds */
+	@Property(name = "export.timeout", value = "30000")
+	private long pExportTimeout;
 
 	/** Service Exporters */
 	@Requires(id = ID_EXPORTERS, optional = true)
@@ -73,6 +113,19 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	/** Framework UID */
 	private String pFrameworkUid;
 
+	/**
+	 * Export configuration -&gt; Exporters supporting it. Guarded by the
+	 * dispatcher lock.
+	 */
+	private final Map<String, List<IServiceExporter>> pExportersIndex = new HashMap<String, List<IServiceExporter>>();
+
+	/**
+	 * Exporters which don't declare their supported configurations: they are
+	 * always tested with {@link IServiceExporter#handles(String[])}. Guarded by
+	 * the dispatcher lock.
+	 */
+	private final List<IServiceExporter> pExportersUnindexed = new LinkedList<IServiceExporter>();
+
 	/** Endpoints listeners **/
 	@Requires(id = ID_LISTENERS, optional = true)
 	private List<IExportEndpointListener> pListeners;
@@ -82,10 +135,17 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	private LogService pLogger;
 
 	/** Service reference -&gt; UIDs */
-	private final Map<ServiceReference<?>, Collection<String>> pServiceUids = new LinkedHashMap<ServiceReference<?>, Collection<String>>();
+	private final ConcurrentMap<ServiceReference<?>, Collection<String>> pServiceUids = new ConcurrentHashMap<ServiceReference<?>, Collection<String>>();
 
 	/** UID -&gt; Exporter */
-	private final Map<String, IServiceExporter> pUidExporter = new LinkedHashMap<String, IServiceExporter>();
+	private final ConcurrentMap<String, IServiceExporter> pUidExporter = new ConcurrentHashMap<String, IServiceExporter>();
+
+	/** Services waiting for their properties update to be propagated */
+	private CoalescingQueue<ServiceReference<?>> pUpdateQueue;
+
+	/** Coalescing window of the MODIFIED service events, in milliseconds */
+	@Property(name = "update.window", value = "100")
+	private long pUpdateWindow;
 
 	/** Validation flag */
 	private boolean pValidated = false;
@@ -106,9 +166,16 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	 *
 	 * @param aExporter
 	 *            The new service exporter
+	 * @param aProperties
+	 *            The exporter service properties
 	 */
 	@Bind(id = ID_EXPORTERS)
-	private void bindExporter(final IServiceExporter aExporter) {
+	private synchronized void bindExporter(final IServiceExporter aExporter,
+			final Map<String, Object> aProperties) {
+
+		// Index the exporter, even before validation
+		indexExporter(aExporter,
+				aProperties.get(Constants.REMOTE_CONFIGS_SUPPORTED));
 
 		if (!pValidated) {
 			// Not yet validated
@@ -120,6 +187,7 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 		pLogger.log(LogService.LOG_WARNING, "Binding exporter: " + aExporter);
 
 		// Tell the exporter to export already known services
+		final Collection<ExportEndpoint> endpoints = new LinkedList<ExportEndpoint>();
 		for (final ServiceReference<?> svcRef : pServiceUids.keySet()) {
 			// Compute the endpoint name
 			final String name = computeEndpointName(
@@ -139,24 +207,20 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 				}
 
 				// Store the endpoint
-				final String uid = endpoint.getUid();
-				pEndpoints.put(uid, endpoint);
-				pUidExporter.put(uid, aExporter);
-				pServiceUids.get(svcRef).add(uid);
+				storeEndpoint(endpoint, aExporter, pServiceUids.get(svcRef));
+				endpoints.add(endpoint);
 
 				pLogger.log(LogService.LOG_WARNING, "... New endpoint for "
-						+ svcRef + " - " + uid);
-
-				// Call listeners
-				for (final IExportEndpointListener listener : pListeners) {
-					listener.endpointsAdded(new ExportEndpoint[] { endpoint });
-				}
+						+ svcRef + " - " + endpoint.getUid());
 
 			} catch (final Exception ex) {
 				pLogger.log(LogService.LOG_ERROR, "Error exporting service: "
 						+ ex, ex);
 			}
 		}
+
+		// Call listeners
+		notifyEndpointsAdded(endpoints);
 	}
 
 	/**
@@ -168,9 +232,9 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	@Bind(id = ID_LISTENERS)
 	private void bindListener(final IExportEndpointListener aListener) {
 
-		if (!pEndpoints.isEmpty()) {
-			aListener.endpointsAdded(pEndpoints.values().toArray(
-					new ExportEndpoint[0]));
+		final ExportEndpoint[] endpoints = getEndpoints();
+		if (endpoints.length != 0) {
+			aListener.endpointsAdded(endpoints);
 		}
 	}
 
@@ -227,22 +291,28 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	}
 
 	/**
-	 * Exports the given service using all available matching providers
+	 * Starts the export of the given service by all available matching
+	 * providers, on the export executor. Must be called while holding the
+	 * dispatcher lock.
 	 *
 	 * @param aSvcRef
 	 *            Reference to the exported service
+	 * @return The submitted export tasks (can be empty)
 	 */
-	private synchronized void exportService(final ServiceReference<?> aSvcRef) {
+	private Collection<ExportTask> exportService(
+			final ServiceReference<?> aSvcRef) {
 
 		// Create a container for UIDs and store the ServiceReference
 		// -> this is how we now which service to export in bindExporter()
-		final Collection<String> serviceUids = getServiceUids(aSvcRef);
+		getServiceUids(aSvcRef);
+
+		final Collection<ExportTask> tasks = new LinkedList<ExportTask>();
 
 		// Check exporters
 		if (pExporters.isEmpty()) {
 			pLogger.log(LogService.LOG_WARNING, "No exporters yet for "
 					+ aSvcRef);
-			return;
+			return tasks;
 		}
 
 		// Get export configurations
@@ -257,11 +327,7 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 
 		} else {
 			// Only accept part of the exporters
-			for (final IServiceExporter exporter : pExporters) {
-				if (exporter.handles(configs)) {
-					exporters.add(exporter);
-				}
-			}
+			exporters.addAll(selectExporters(configs));
 		}
 
 		if (exporters.isEmpty()) {
@@ -275,47 +341,143 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 						.getProperty(IRemoteServicesConstants.PROP_ENDPOINT_NAME),
 				(Long) aSvcRef.getProperty(Constants.SERVICE_ID));
 
-		// Create endpoints
-		final Collection<ExportEndpoint> endpoints = new LinkedList<ExportEndpoint>();
-
+		// Call the exporters concurrently
 		for (final IServiceExporter exporter : exporters) {
+			final ExportTask task = new ExportTask(aSvcRef, exporter, name,
+					pFrameworkUid);
 			try {
-				// Create the endpoint
-				final ExportEndpoint endpoint = exporter.exportService(aSvcRef,
-						name, pFrameworkUid);
-				if (endpoint == null) {
-					// Export refused
+				task.submit(pExportExecutor);
+				tasks.add(task);
+
+			} catch (final RejectedExecutionException ex) {
+				pLogger.log(LogService.LOG_ERROR, "Can't export service "
+						+ aSvcRef + " with " + exporter + ": " + ex);
+			}
+		}
+
+		return tasks;
+	}
+
+	/**
+	 * Exports a batch of services, then notifies the listeners once with all
+	 * the created endpoints. The exporters are called concurrently, for all
+	 * the services of the batch, and are waited for without holding the
+	 * dispatcher lock. The endpoints of the services unexported in the
+	 * meantime are unexported instead of being stored.
+	 *
+	 * @param aSvcRefs
+	 *            References to the services to export
+	 */
+	private void exportServices(final Collection<ServiceReference<?>> aSvcRefs) {
+
+		// Start all exports
+		final Collection<ExportTask> tasks = new LinkedList<ExportTask>();
+		final Map<ServiceReference<?>, Collection<String>> exported = new HashMap<ServiceReference<?>, Collection<String>>();
+		synchronized (this) {
+			if (!pValidated) {
+				// Invalidated while the batch was waiting
+				return;
+			}
+
+			for (final ServiceReference<?> svcRef : aSvcRefs) {
+				if (svcRef.getBundle() == null
+						|| pExportQueue.isCancelled(svcRef)) {
+					// Service unregistered or not to be exported anymore
+					continue;
+				}
+
+				try {
+					tasks.addAll(exportService(svcRef));
+					exported.put(svcRef, pServiceUids.get(svcRef));
+
+				} catch (final Exception ex) {
+					pLogger.log(LogService.LOG_ERROR, "Error exporting service "
+							+ svcRef + ": " + ex, ex);
+				}
+			}
+		}
+
+		// Wait for the exporters, in submission order, without the lock
+		final Map<ExportTask, ExportEndpoint> results = new LinkedHashMap<ExportTask, ExportEndpoint>();
+		final Iterator<ExportTask> iterator = tasks.iterator();
+		while (iterator.hasNext()) {
+			final ExportTask task = iterator.next();
+			try {
+				final ExportEndpoint endpoint = task.waitResult(pExportTimeout);
+				if (endpoint != null) {
+					// Otherwise, export refused
+					results.put(task, endpoint);
+				}
+
+			} catch (final TimeoutException ex) {
+				pLogger.log(LogService.LOG_ERROR, "Export timeout: " + ex);
+
+			} catch (final ExecutionException ex) {
+				final Throwable cause = ex.getCause();
+				if (cause instanceof IllegalArgumentException) {
+					pLogger.log(LogService.LOG_WARNING,
+							"Warning : can't export service: " + cause);
+				} else {
+					pLogger.log(LogService.LOG_ERROR,
+							"Error exporting service: " + cause, cause);
+				}
+
+			} catch (final InterruptedException ex) {
+				// Stop waiting: forget about the remaining exports
+				Thread.currentThread().interrupt();
+				task.abandon();
+				while (iterator.hasNext()) {
+					iterator.next().abandon();
+				}
+			}
+		}
+
+		synchronized (this) {
+			final Collection<ExportEndpoint> endpoints = new LinkedList<ExportEndpoint>();
+			for (final Map.Entry<ExportTask, ExportEndpoint> entry : results
+					.entrySet()) {
+				final ExportTask task = entry.getKey();
+				final ExportEndpoint endpoint = entry.getValue();
+				final Collection<String> uids = pServiceUids.get(task
+						.getReference());
+				if (!pValidated || uids == null
+						|| uids != exported.get(task.getReference())) {
+					// Service unexported while waiting for the exporter
+					try {
+						task.getExporter().unexportService(endpoint);
+
+					} catch (final Exception ex) {
+						pLogger.log(LogService.LOG_WARNING,
+								"Error unexporting late endpoint " + endpoint
+										+ ": " + ex, ex);
+					}
 					continue;
 				}
 
 				// Store the endpoint
-				final String uid = endpoint.getUid();
 				endpoints.add(endpoint);
-				pEndpoints.put(uid, endpoint);
-				pUidExporter.put(uid, exporter);
-				serviceUids.add(uid);
-
-			} catch (final IllegalArgumentException ex) {
-				pLogger.log(LogService.LOG_WARNING,
-						"Warning : can't export service: " + ex);
-			} catch (final Exception ex) {
-				pLogger.log(LogService.LOG_ERROR, "Error exporting service: "
-						+ ex, ex);
+				storeEndpoint(endpoint, task.getExporter(), uids);
 			}
+
+			// Call listeners
+			notifyEndpointsAdded(endpoints);
 		}
+	}
 
-		if (endpoints.isEmpty()) {
-			pLogger.log(LogService.LOG_WARNING, "No endpoint created for "
-					+ aSvcRef);
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.cohorte.remote.IExportsDispatcher#flush()
+	 */
+	@Override
+	public void flush() {
+
+		if (!pValidated) {
 			return;
 		}
 
-		// Call listeners
-		final ExportEndpoint[] endpointsArray = endpoints
-				.toArray(new ExportEndpoint[endpoints.size()]);
-		for (final IExportEndpointListener listener : pListeners) {
-			listener.endpointsAdded(endpointsArray);
-		}
+		pExportQueue.flush();
+		pUpdateQueue.flush();
 	}
 
 	/*
@@ -325,7 +487,7 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	 * org.cohorte.remote.pelix.IExportsDispatcher#getEndpoint(java.lang.String)
 	 */
 	@Override
-	public synchronized ExportEndpoint getEndpoint(final String aUid) {
+	public ExportEndpoint getEndpoint(final String aUid) {
 
 		return pEndpoints.get(aUid);
 	}
@@ -336,9 +498,10 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 	 * @see org.cohorte.remote.pelix.IExportsDispatcher#getEndpoints()
 	 */
 	@Override
-	public synchronized ExportEndpoint[] getEndpoints() {
+	public ExportEndpoint[] getEndpoints() {
 
-		return pEndpoints.values().toArray(new ExportEndpoint[0]);
+		// Copy the published snapshot: the caller can't alter it
+		return pEndpointsSnapshot.clone();
 	}
 
 	/**
@@ -354,13 +517,46 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 
 		Collection<String> uids = pServiceUids.get(aReference);
 		if (uids == null) {
-			uids = new LinkedHashSet<String>();
+			uids = new CopyOnWriteArraySet<String>();
 			pServiceUids.put(aReference, uids);
 		}
 
 		return uids;
 	}
 
+	/**
+	 * Adds an exporter to the configurations index
+	 *
+	 * @param aExporter
+	 *            A service exporter
+	 * @param aConfigs
+	 *            The value of the
+	 *            {@link Constants#REMOTE_CONFIGS_SUPPORTED} property of the
+	 *            exporter
+	 */
+	private void indexExporter(final IServiceExporter aExporter,
+			final Object aConfigs) {
+
+		final String[] configs = computeExportedConfigs(aConfigs);
+		if (configs == null) {
+			// Unknown configurations: always ask the exporter
+			pExportersUnindexed.add(aExporter);
+			return;
+		}
+
+		for (final String config : configs) {
+			List<IServiceExporter> exporters = pExportersIndex.get(config);
+			if (exporters == null) {
+				exporters = new LinkedList<IServiceExporter>();
+				pExportersIndex.put(config, exporters);
+			}
+
+			if (!exporters.contains(aExporter)) {
+				exporters.add(aExporter);
+			}
+		}
+	}
+
 	/**
 	 * Component invalidated
 	 */
@@ -373,10 +569,96 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 		// Unregister from service events
 		pBundleContext.removeServiceListener(this);
 
+		// Stop the workers
+		pExportQueue.stop();
+		pUpdateQueue.stop();
+		pExportExecutor.shutdown();
+
 		// Clean up
 		pFrameworkUid = null;
 	}
 
+	/**
+	 * Notifies the listeners about new endpoints, in a single call. Does
+	 * nothing if the given collection is empty.
+	 *
+	 * @param aEndpoints
+	 *            The new endpoints
+	 */
+	private void notifyEndpointsAdded(
+			final Collection<ExportEndpoint> aEndpoints) {
+
+		if (aEndpoints.isEmpty()) {
+			return;
+		}
+
+		final ExportEndpoint[] endpointsArray = aEndpoints
+				.toArray(new ExportEndpoint[aEndpoints.size()]);
+		for (final IExportEndpointListener listener : pListeners) {
+			try {
+				listener.endpointsAdded(endpointsArray);
+
+			} catch (final Exception ex) {
+				pLogger.log(LogService.LOG_ERROR, "Error notifying listener "
+						+ listener + ": " + ex, ex);
+			}
+		}
+	}
+
+	/**
+	 * Removes the endpoint with the given UID from the storage and publishes
+	 * the new endpoints snapshot. Must be called while holding the dispatcher
+	 * lock.
+	 *
+	 * @param aUid
+	 *            UID of the endpoint to forget
+	 * @return The removed endpoint, or null
+	 */
+	private ExportEndpoint removeEndpoint(final String aUid) {
+
+		pUidExporter.remove(aUid);
+		final ExportEndpoint endpoint = pEndpoints.remove(aUid);
+		if (endpoint == null) {
+			// Unknown endpoint
+			return null;
+		}
+
+		// Publish a new snapshot, without the endpoint
+		final List<ExportEndpoint> snapshot = new LinkedList<ExportEndpoint>(
+				Arrays.asList(pEndpointsSnapshot));
+		snapshot.remove(endpoint);
+		pEndpointsSnapshot = snapshot.toArray(new ExportEndpoint[snapshot
+				.size()]);
+		return endpoint;
+	}
+
+	/**
+	 * Selects the exporters handling at least one of the given configurations.
+	 * Must be called while holding the dispatcher lock.
+	 *
+	 * @param aConfigs
+	 *            Export configurations
+	 * @return The matching exporters, in configurations order
+	 */
+	private Collection<IServiceExporter> selectExporters(final String[] aConfigs) {
+
+		final Collection<IServiceExporter> exporters = new LinkedHashSet<IServiceExporter>();
+		for (final String config : aConfigs) {
+			final List<IServiceExporter> indexed = pExportersIndex.get(config);
+			if (indexed != null) {
+				exporters.addAll(indexed);
+			}
+		}
+
+		for (final IServiceExporter exporter : pExportersUnindexed) {
+			if (exporter.handles(aConfigs)) {
+				exporters.add(exporter);
+			}
+		}
+
+		return exporters;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -391,24 +673,28 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 
 		switch (aEvent.getType()) {
 		case ServiceEvent.REGISTERED:
-			// New service to export
-			exportService(svcRef);
+			// New service to export: let the export worker handle it
+			pExportQueue.offer(svcRef);
 			break;
 
 		case ServiceEvent.MODIFIED:
 			if (pServiceUids.containsKey(svcRef)) {
-				// Already known service
-				updateService(svcRef);
+				// Already known service: merge with the next modifications
+				pUpdateQueue.offer(svcRef);
 
 			} else {
-				// New match
-				exportService(svcRef);
+				// New match (ignored if the service is already queued)
+				pExportQueue.offer(svcRef);
 			}
 			break;
 
 		case ServiceEvent.MODIFIED_ENDMATCH:
 		case ServiceEvent.UNREGISTERING:
-			// Service must not be exported
+			// Service must not be exported: forget it if it is still queued or
+			// in the batch being exported, else remove its endpoints before
+			// the service goes away (late endpoints are then unexported)
+			pExportQueue.cancel(svcRef);
+			pUpdateQueue.cancel(svcRef);
 			unexportService(svcRef);
 			break;
 
@@ -417,6 +703,56 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 		}
 	}
 
+	/**
+	 * Stores a new endpoint and publishes the new endpoints snapshot. Must be
+	 * called while holding the dispatcher lock.
+	 *
+	 * @param aEndpoint
+	 *            The new endpoint
+	 * @param aExporter
+	 *            The exporter which created the endpoint
+	 * @param aServiceUids
+	 *            The endpoints UIDs of the exported service
+	 */
+	private void storeEndpoint(final ExportEndpoint aEndpoint,
+			final IServiceExporter aExporter,
+			final Collection<String> aServiceUids) {
+
+		final String uid = aEndpoint.getUid();
+		pEndpoints.put(uid, aEndpoint);
+		pUidExporter.put(uid, aExporter);
+		aServiceUids.add(uid);
+
+		// Publish a new snapshot, with the endpoint at the end
+		final ExportEndpoint[] current = pEndpointsSnapshot;
+		final ExportEndpoint[] snapshot = Arrays.copyOf(current,
+				current.length + 1);
+		snapshot[current.length] = aEndpoint;
+		pEndpointsSnapshot = snapshot;
+	}
+
+	/**
+	 * A service exporter has gone away
+	 *
+	 * @param aExporter
+	 *            The service exporter
+	 */
+	@Unbind(id = ID_EXPORTERS)
+	private synchronized void unbindExporter(final IServiceExporter aExporter) {
+
+		pExportersUnindexed.remove(aExporter);
+
+		final Iterator<List<IServiceExporter>> iterator = pExportersIndex
+				.values().iterator();
+		while (iterator.hasNext()) {
+			final List<IServiceExporter> exporters = iterator.next();
+			exporters.remove(aExporter);
+			if (exporters.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+
 	/**
 	 * Removes the endpoints associated to the given service
 	 *
@@ -433,8 +769,8 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 
 		for (final String uid : uids) {
 			// Remote from storage
-			final ExportEndpoint endpoint = pEndpoints.remove(uid);
-			final IServiceExporter exporter = pUidExporter.remove(uid);
+			final IServiceExporter exporter = pUidExporter.get(uid);
+			final ExportEndpoint endpoint = removeEndpoint(uid);
 
 			// Delete endpoint
 			exporter.unexportService(endpoint);
@@ -473,8 +809,9 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 
 			// Update export
 			try {
-				// FIXME: compute/ignore old properties
-				final Map<String, Object> oldProperties = null;
+				// Update the endpoint snapshot: the previous one holds the
+				// properties from before the first modification of the burst
+				final Map<String, Object> oldProperties = endpoint.refresh();
 
 				exporter.updateExport(endpoint, newName, oldProperties);
 
@@ -489,6 +826,8 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 						"Rejected update of service properties: " + ex);
 
 				// Remove this endpoint
+				uids.remove(uid);
+				removeEndpoint(uid);
 				exporter.unexportService(endpoint);
 				for (final IExportEndpointListener listener : pListeners) {
 					listener.endpointRemoved(endpoint);
@@ -497,6 +836,31 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 		}
 	}
 
+	/**
+	 * Propagates the properties updates of a batch of exported services
+	 *
+	 * @param aSvcRefs
+	 *            References to the modified services
+	 */
+	private synchronized void updateServices(
+			final Collection<ServiceReference<?>> aSvcRefs) {
+
+		if (!pValidated) {
+			// Invalidated while the batch was waiting
+			return;
+		}
+
+		for (final ServiceReference<?> svcRef : aSvcRefs) {
+			try {
+				updateService(svcRef);
+
+			} catch (final Exception ex) {
+				pLogger.log(LogService.LOG_ERROR, "Error updating service "
+						+ svcRef + ": " + ex, ex);
+			}
+		}
+	}
+
 	/**
 	 * Component validated
 	 */
@@ -510,6 +874,56 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 		pFrameworkUid = RSUtils.setupUID(pBundleContext,
 				IRemoteServicesConstants.ISOLATE_UID);
 
+		// Prepare the exporters threads
+		final int nbThreads = Math.max(1, pExportThreads);
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads,
+				nbThreads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+					/** Threads counter */
+					private final AtomicInteger pCounter = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable aRunnable) {
+
+						final Thread thread = new Thread(aRunnable,
+								"cohorte-remote-exporter-"
+										+ pCounter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		pExportExecutor = executor;
+
+		// Start the export worker
+		pExportQueue = new CoalescingQueue<ServiceReference<?>>(
+				"cohorte-remote-export", pExportWindow,
+				new CoalescingQueue.IBatchHandler<ServiceReference<?>>() {
+
+					@Override
+					public void handleBatch(
+							final Collection<ServiceReference<?>> aSvcRefs) {
+
+						exportServices(aSvcRefs);
+					}
+				});
+		pExportQueue.start();
+
+		// Start the update worker
+		pUpdateQueue = new CoalescingQueue<ServiceReference<?>>(
+				"cohorte-remote-update", pUpdateWindow,
+				new CoalescingQueue.IBatchHandler<ServiceReference<?>>() {
+
+					@Override
+					public void handleBatch(
+							final Collection<ServiceReference<?>> aSvcRefs) {
+
+						updateServices(aSvcRefs);
+					}
+				});
+		pUpdateQueue.start();
+
 		// Prepare the LDAP filter
 		final String filter = String.format("(|(%s=*)(%s=*))",
 				Constants.SERVICE_EXPORTED_CONFIGS,
@@ -522,7 +936,7 @@ public class ExportDispatcher implements IExportsDispatcher, ServiceListener {
 					.getServiceReferences((String) null, filter);
 			if (svcRefs != null) {
 				for (final ServiceReference<?> svcRef : svcRefs) {
-					exportService(svcRef);
+					pExportQueue.offer(svcRef);
 				}
 			}
 
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.cohorte.remote.ExportEndpoint;
+import org.cohorte.remote.IServiceExporter;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Export of a service by a single exporter, run by the export executor. An
+ * endpoint created after the dispatcher gave up waiting for it is unexported
+ * immediately.
+ *
+ * @author Thomas Calmant
+ */
+class ExportTask implements Callable<ExportEndpoint> {
+
+	/** The dispatcher stopped waiting for the result */
+	private boolean pAbandoned;
+
+	/** The exporter has returned */
+	private boolean pDone;
+
+	/** The service exporter */
+	private final IServiceExporter pExporter;
+
+	/** UID of the framework */
+	private final String pFrameworkUid;
+
+	/** Result of the submission of the task */
+	private Future<ExportEndpoint> pFuture;
+
+	/** Name of the endpoint */
+	private final String pName;
+
+	/** The exported service */
+	private final ServiceReference<?> pReference;
+
+	/** The endpoint created by the exporter */
+	private ExportEndpoint pResult;
+
+	/** Time when the exporter has been called, 0 while the task is queued */
+	private long pStartTime;
+
+	/**
+	 * Sets up the task
+	 *
+	 * @param aReference
+	 *            Reference to the exported service
+	 * @param aExporter
+	 *            The service exporter to use
+	 * @param aName
+	 *            Name of the endpoint
+	 * @param aFrameworkUid
+	 *            UID of the framework
+	 */
+	ExportTask(final ServiceReference<?> aReference,
+			final IServiceExporter aExporter, final String aName,
+			final String aFrameworkUid) {
+
+		pReference = aReference;
+		pExporter = aExporter;
+		pName = aName;
+		pFrameworkUid = aFrameworkUid;
+	}
+
+	/**
+	 * Tells the task that nobody waits for its result anymore. An endpoint
+	 * already created by the exporter is unexported.
+	 */
+	void abandon() {
+
+		final ExportEndpoint result;
+		synchronized (this) {
+			pAbandoned = true;
+			result = pResult;
+			pResult = null;
+		}
+
+		if (result != null) {
+			pExporter.unexportService(result);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	@Override
+	public ExportEndpoint call() throws Exception {
+
+		synchronized (this) {
+			if (pAbandoned) {
+				// Nobody waits for this export anymore
+				return null;
+			}
+
+			pStartTime = System.currentTimeMillis();
+		}
+
+		final ExportEndpoint endpoint = pExporter.exportService(pReference,
+				pName, pFrameworkUid);
+
+		synchronized (this) {
+			pDone = true;
+			if (!pAbandoned) {
+				pResult = endpoint;
+				return endpoint;
+			}
+		}
+
+		// Too late: the dispatcher has ignored this export
+		if (endpoint != null) {
+			pExporter.unexportService(endpoint);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the service exporter
+	 */
+	IServiceExporter getExporter() {
+
+		return pExporter;
+	}
+
+	/**
+	 * @return the exported service
+	 */
+	ServiceReference<?> getReference() {
+
+		return pReference;
+	}
+
+	/**
+	 * Submits the task to the given executor
+	 *
+	 * @param aExecutor
+	 *            The export executor
+	 */
+	void submit(final ExecutorService aExecutor) {
+
+		pFuture = aExecutor.submit(this);
+	}
+
+	/**
+	 * Waits for the exporter to return. The timeout starts when the exporter
+	 * is called: the time spent in the executor queue isn't counted.
+	 *
+	 * @param aTimeout
+	 *            Maximum time given to the exporter, in milliseconds
+	 * @return The created endpoint, or null if the export has been refused
+	 * @throws ExecutionException
+	 *             The exporter has thrown an exception
+	 * @throws InterruptedException
+	 *             Interrupted while waiting
+	 * @throws TimeoutException
+	 *             The exporter didn't return in time: the task is abandoned
+	 */
+	ExportEndpoint waitResult(final long aTimeout) throws ExecutionException,
+			InterruptedException, TimeoutException {
+
+		while (true) {
+			final long wait;
+			synchronized (this) {
+				if (pStartTime == 0) {
+					// Still queued
+					wait = aTimeout;
+				} else {
+					wait = pStartTime + aTimeout - System.currentTimeMillis();
+				}
+			}
+
+			if (wait > 0) {
+				try {
+					return pFuture.get(wait, TimeUnit.MILLISECONDS);
+
+				} catch (final TimeoutException ex) {
+					// Check the start time again
+				}
+			}
+
+			synchronized (this) {
+				if (pDone) {
+					// Returned in the meantime
+					return pResult;
+				}
+
+				if (pStartTime != 0
+						&& System.currentTimeMillis() - pStartTime >= aTimeout) {
+					// Give up
+					pAbandoned = true;
+					throw new TimeoutException("Exporter " + pExporter
+							+ " took more than " + aTimeout + "ms to export "
+							+ pReference);
+				}
+			}
+		}
+	}
+}
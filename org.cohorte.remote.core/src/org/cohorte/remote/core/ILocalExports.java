@@ -0,0 +1,35 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+/**
+ * Management interface of the services exported by a framework, registered
+ * in the platform MBean server so that the other frameworks of the JVM can
+ * find them. The service objects are not part of this interface: they are
+ * looked up through the class loader of the MBean (see
+ * {@link LocalExports#getServiceLookup(String)}).
+ *
+ * @author Thomas Calmant
+ */
+public interface ILocalExports {
+
+    /**
+     * Returns the UIDs of the exported endpoints
+     *
+     * @return The UIDs of the exported endpoints
+     */
+    String[] getEndpoints();
+}
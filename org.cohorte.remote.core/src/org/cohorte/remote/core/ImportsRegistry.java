@@ -16,10 +16,16 @@
 package org.cohorte.remote.core;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
@@ -29,6 +35,7 @@ import org.apache.felix.ipojo.annotations.Provides;
 import org.apache.felix.ipojo.annotations.Requires;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.cohorte.remote.IImportEndpointListener;
+import org.cohorte.remote.IImportEndpointsListener;
 import org.cohorte.remote.IImportsRegistry;
 import org.cohorte.remote.IRemoteServicesConstants;
 import org.cohorte.remote.ImportEndpoint;
@@ -37,7 +44,15 @@ import org.osgi.framework.BundleContext;
 import org.osgi.service.log.LogService;
 
 /**
- * Implementation of the imports registry
+ * Implementation of the imports registry.
+ *
+ * The registry is split in stripes, selected by the framework UID of the
+ * endpoints: a modification only locks the stripe of the endpoint framework.
+ * Listeners are notified outside of the locks, in the order of the
+ * modifications of each stripe.
+ *
+ * Endpoints exported by another framework of the same JVM are imported
+ * directly, without notifying the transport importers.
  *
  * @author Thomas Calmant
  */
@@ -46,14 +61,76 @@ import org.osgi.service.log.LogService;
 @Instantiate(name = "cohorte-remote-registry")
 public class ImportsRegistry implements IImportsRegistry {
 
+    /**
+     * A registry stripe: a lock and the queue of the listeners notifications
+     * of the modifications made while holding it
+     */
+    private final class Stripe {
+
+        /** Flag indicating that a thread is running the notifications */
+        private final AtomicBoolean pDraining = new AtomicBoolean();
+
+        /** Pending notifications, in modification order */
+        private final Queue<Runnable> pNotifications = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * Runs the pending notifications, unless another thread is already
+         * doing it. Must be called without holding the stripe lock.
+         */
+        void drain() {
+
+            while (!pNotifications.isEmpty()
+                    && pDraining.compareAndSet(false, true)) {
+                try {
+                    Runnable notification;
+                    while ((notification = pNotifications.poll()) != null) {
+                        try {
+                            notification.run();
+
+                        } catch (final RuntimeException ex) {
+                            // Don't block the following notifications
+                            pLogger.log(LogService.LOG_ERROR,
+                                    "Error notifying import listeners: " + ex,
+                                    ex);
+                        }
+                    }
+
+                } finally {
+                    pDraining.set(false);
+                }
+            }
+        }
+
+        /**
+         * Queues a notification. Must be called while holding the stripe
+         * lock, to keep the modifications order.
+         *
+         * @param aNotification
+         *            A listeners notification
+         */
+        void enqueue(final Runnable aNotification) {
+
+            pNotifications.add(aNotification);
+        }
+    }
+
     /** iPOJO dependency ID */
     private static final String ID_LISTENERS = "listeners";
 
+    /** Number of registry stripes (power of 2) */
+    private static final int NB_STRIPES = 16;
+
     /** Bundle context */
     private final BundleContext pBundleContext;
 
-    /** Framework UID -&gt; Endpoints */
-    private final Map<String, Collection<ImportEndpoint>> pFrameworks = new LinkedHashMap<String, Collection<ImportEndpoint>>();
+    /** Importer of the endpoints exported in this JVM */
+    private volatile DirectImporter pDirectImporter;
+
+    /**
+     * Framework UID -&gt; Endpoint UID -&gt; Endpoint (guarded by the framework
+     * stripe)
+     */
+    private final ConcurrentMap<String, Map<String, ImportEndpoint>> pFrameworks = new ConcurrentHashMap<String, Map<String, ImportEndpoint>>();
 
     /** Framework UID */
     private String pFrameworkUid;
@@ -67,10 +144,13 @@ public class ImportsRegistry implements IImportsRegistry {
     private LogService pLogger;
 
     /** Endpoint UID -gt; Endpoint */
-    private final Map<String, ImportEndpoint> pRegistry = new LinkedHashMap<String, ImportEndpoint>();
+    private final ConcurrentMap<String, ImportEndpoint> pRegistry = new ConcurrentHashMap<String, ImportEndpoint>();
+
+    /** Registry stripes */
+    private final Stripe[] pStripes = new Stripe[NB_STRIPES];
 
     /** Validation flag */
-    private boolean pValidated = false;
+    private volatile boolean pValidated = false;
 
     /**
      * Component constructed
@@ -81,6 +161,9 @@ public class ImportsRegistry implements IImportsRegistry {
     public ImportsRegistry(final BundleContext aContext) {
 
         pBundleContext = aContext;
+        for (int i = 0; i < NB_STRIPES; i++) {
+            pStripes[i] = new Stripe();
+        }
     }
 
     /*
@@ -91,65 +174,129 @@ public class ImportsRegistry implements IImportsRegistry {
      * .ImportEndpoint)
      */
     @Override
-    public synchronized boolean add(final ImportEndpoint aEndpoint) {
-
-        final String uid = aEndpoint.getUid();
-        final String fwUid = aEndpoint.getFrameworkUid();
+    public boolean add(final ImportEndpoint aEndpoint) {
 
-        // Check if the endpoint has specifications: this is not the case if
-        // the service has no Java specification interface
-        if (aEndpoint.getSpecifications().length == 0) {
-            // Ignore it
+        if (!isImportable(aEndpoint)) {
             return false;
         }
 
-        if (pFrameworkUid.equals(fwUid)) {
-            // Avoid to import our own services
-            pLogger.log(LogService.LOG_DEBUG,
-                    "ImportEndpoint with same framework UID");
-            return false;
-        }
+        final Stripe stripe = getStripe(aEndpoint);
+        synchronized (stripe) {
+            if (!storeEndpoint(aEndpoint)) {
+                return false;
+            }
 
-        // Check if the endpoint already exists
-        if (pRegistry.containsKey(uid)) {
-            pLogger.log(LogService.LOG_DEBUG, "Already known endpoint: " + uid);
-            return false;
+            // Notify listeners
+            stripe.enqueue(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    final DirectImporter directImporter = pDirectImporter;
+                    if (directImporter != null
+                            && directImporter.endpointAdded(aEndpoint)) {
+                        // Imported in-process
+                        return;
+                    }
+
+                    for (final IImportEndpointListener listener : pListeners) {
+                        listener.endpointAdded(aEndpoint);
+                    }
+                }
+            });
         }
 
-        // Store the endpoint
-        pRegistry.put(uid, aEndpoint);
-        if (fwUid != null && !fwUid.isEmpty()) {
-            addToFramework(fwUid, aEndpoint);
+        stripe.drain();
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.IImportsRegistry#addAll(java.util.Collection)
+     */
+    @Override
+    public boolean addAll(final Collection<ImportEndpoint> aEndpoints) {
+
+        // Group the endpoints by stripe
+        final Map<Stripe, Collection<ImportEndpoint>> stripes = new LinkedHashMap<Stripe, Collection<ImportEndpoint>>();
+        for (final ImportEndpoint endpoint : aEndpoints) {
+            if (!isImportable(endpoint)) {
+                continue;
+            }
+
+            final Stripe stripe = getStripe(endpoint);
+            Collection<ImportEndpoint> endpoints = stripes.get(stripe);
+            if (endpoints == null) {
+                endpoints = new LinkedList<ImportEndpoint>();
+                stripes.put(stripe, endpoints);
+            }
+            endpoints.add(endpoint);
         }
 
-        // Notify listeners
-        for (final IImportEndpointListener listener : pListeners) {
-            listener.endpointAdded(aEndpoint);
+        boolean used = false;
+        for (final Map.Entry<Stripe, Collection<ImportEndpoint>> entry : stripes
+                .entrySet()) {
+            final Stripe stripe = entry.getKey();
+            synchronized (stripe) {
+                final Collection<ImportEndpoint> added = new LinkedList<ImportEndpoint>();
+                for (final ImportEndpoint endpoint : entry.getValue()) {
+                    if (storeEndpoint(endpoint)) {
+                        added.add(endpoint);
+                    }
+                }
+
+                if (!added.isEmpty()) {
+                    // Notify listeners, in a single pass
+                    used = true;
+                    final ImportEndpoint[] addedArray = added
+                            .toArray(new ImportEndpoint[added.size()]);
+                    stripe.enqueue(new Runnable() {
+
+                        @Override
+                        public void run() {
+
+                            final ImportEndpoint[] remoteArray = importDirectly(addedArray);
+                            if (remoteArray.length == 0) {
+                                // All imported in-process
+                                return;
+                            }
+
+                            for (final IImportEndpointListener listener : pListeners) {
+                                notifyAdded(listener, remoteArray);
+                            }
+                        }
+                    });
+                }
+            }
+
+            stripe.drain();
         }
 
-        return true;
+        return used;
     }
 
     /**
-     * Associates the given endpoint to a framework UID
+     * Associates the given endpoint to a framework UID. Must be called while
+     * holding the lock of the framework stripe.
      *
      * @param aFwUid
      *            A framework UID
      * @param aEndpoint
      *            An imported endpoint
      */
-    private synchronized void addToFramework(final String aFwUid,
+    private void addToFramework(final String aFwUid,
             final ImportEndpoint aEndpoint) {
 
-        Collection<ImportEndpoint> endpoints = pFrameworks.get(aFwUid);
+        Map<String, ImportEndpoint> endpoints = pFrameworks.get(aFwUid);
         if (endpoints == null) {
-            // Create the collection
-            endpoints = new LinkedList<ImportEndpoint>();
+            // Create the map
+            endpoints = new LinkedHashMap<String, ImportEndpoint>();
             pFrameworks.put(aFwUid, endpoints);
         }
 
         // Store the endpoint
-        endpoints.add(aEndpoint);
+        endpoints.put(aEndpoint.getUid(), aEndpoint);
     }
 
     /**
@@ -159,16 +306,123 @@ public class ImportsRegistry implements IImportsRegistry {
      *            An endpoint listener
      */
     @Bind(id = ID_LISTENERS)
-    private synchronized void bindListener(
-            final IImportEndpointListener aListener) {
+    private void bindListener(final IImportEndpointListener aListener) {
 
         if (pValidated) {
+            // Ignore the endpoints imported in-process
+            final DirectImporter directImporter = pDirectImporter;
+            final List<ImportEndpoint> endpoints = new LinkedList<ImportEndpoint>();
             for (final ImportEndpoint endpoint : pRegistry.values()) {
-                aListener.endpointAdded(endpoint);
+                if (directImporter == null
+                        || !directImporter.isImported(endpoint.getUid())) {
+                    endpoints.add(endpoint);
+                }
+            }
+
+            if (!endpoints.isEmpty()) {
+                notifyAdded(aListener,
+                        endpoints.toArray(new ImportEndpoint[endpoints.size()]));
             }
         }
     }
 
+    /**
+     * Queues the notification of the removal of the given endpoints. Must be
+     * called while holding the stripe lock.
+     *
+     * @param aStripe
+     *            The stripe of the endpoints
+     * @param aEndpoints
+     *            The removed endpoints
+     */
+    private void enqueueRemoved(final Stripe aStripe,
+            final Collection<ImportEndpoint> aEndpoints) {
+
+        aStripe.enqueue(new Runnable() {
+
+            @Override
+            public void run() {
+
+                final DirectImporter directImporter = pDirectImporter;
+                for (final ImportEndpoint endpoint : aEndpoints) {
+                    if (directImporter != null
+                            && directImporter.endpointRemoved(endpoint)) {
+                        // Was imported in-process
+                        continue;
+                    }
+
+                    for (final IImportEndpointListener listener : pListeners) {
+                        listener.endpointRemoved(endpoint);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Retrieves the stripe associated to the given framework UID
+     *
+     * @param aKey
+     *            A framework UID, or an endpoint UID if the endpoint has no
+     *            framework
+     * @return The stripe of the key
+     */
+    private Stripe getStripe(final String aKey) {
+
+        // Spread the hash code bits, as HashMap does
+        int hash = aKey.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return pStripes[hash & (NB_STRIPES - 1)];
+    }
+
+    /**
+     * Retrieves the stripe associated to the framework of the given endpoint
+     *
+     * @param aEndpoint
+     *            An import endpoint
+     * @return The stripe of the endpoint
+     */
+    private Stripe getStripe(final ImportEndpoint aEndpoint) {
+
+        final String fwUid = aEndpoint.getFrameworkUid();
+        if (fwUid == null || fwUid.isEmpty()) {
+            // No framework: use the endpoint UID
+            return getStripe(aEndpoint.getUid());
+        }
+
+        return getStripe(fwUid);
+    }
+
+    /**
+     * Imports directly the endpoints exported by another framework of this
+     * JVM
+     *
+     * @param aEndpoints
+     *            New endpoints
+     * @return The endpoints to import with the transport importers
+     */
+    private ImportEndpoint[] importDirectly(final ImportEndpoint[] aEndpoints) {
+
+        final DirectImporter directImporter = pDirectImporter;
+        if (directImporter == null) {
+            return aEndpoints;
+        }
+
+        final List<ImportEndpoint> remoteEndpoints = new LinkedList<ImportEndpoint>();
+        for (final ImportEndpoint endpoint : aEndpoints) {
+            if (!directImporter.endpointAdded(endpoint)) {
+                remoteEndpoints.add(endpoint);
+            }
+        }
+
+        if (remoteEndpoints.size() == aEndpoints.length) {
+            return aEndpoints;
+        }
+        return remoteEndpoints.toArray(new ImportEndpoint[remoteEndpoints
+                .size()]);
+    }
+
     /**
      * Component invalidated
      */
@@ -178,10 +432,41 @@ public class ImportsRegistry implements IImportsRegistry {
         // Update validation flag
         pValidated = false;
 
+        // Unregister the services imported in-process
+        final DirectImporter directImporter = pDirectImporter;
+        pDirectImporter = null;
+        directImporter.close();
+
         // Clean up
         pFrameworkUid = null;
     }
 
+    /**
+     * Checks if the given endpoint can be imported
+     *
+     * @param aEndpoint
+     *            A discovered endpoint
+     * @return True if the endpoint can be registered
+     */
+    private boolean isImportable(final ImportEndpoint aEndpoint) {
+
+        // Check if the endpoint has specifications: this is not the case if
+        // the service has no Java specification interface
+        if (aEndpoint.getSpecifications().length == 0) {
+            // Ignore it
+            return false;
+        }
+
+        if (pFrameworkUid.equals(aEndpoint.getFrameworkUid())) {
+            // Avoid to import our own services
+            pLogger.log(LogService.LOG_DEBUG,
+                    "ImportEndpoint with same framework UID");
+            return false;
+        }
+
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -189,24 +474,49 @@ public class ImportsRegistry implements IImportsRegistry {
      * org.cohorte.remote.pelix.IImportsRegistry#lostFramework(java.lang.String)
      */
     @Override
-    public synchronized void lostFramework(final String aFrameworkUid) {
+    public void lostFramework(final String aFrameworkUid) {
+
+        final Stripe stripe = getStripe(aFrameworkUid);
+        synchronized (stripe) {
+            // Pop the endpoints associated to the framework
+            final Map<String, ImportEndpoint> endpoints = pFrameworks
+                    .remove(aFrameworkUid);
+            if (endpoints == null) {
+                // Nothing to do
+                return;
+            }
 
-        // Pop the endpoints associated to the framework
-        final Collection<ImportEndpoint> endpoints = pFrameworks
-                .remove(aFrameworkUid);
-        if (endpoints == null) {
-            // Nothing to do
-            return;
+            for (final String uid : endpoints.keySet()) {
+                // Remove the endpoint
+                pRegistry.remove(uid);
+            }
+
+            // Notify listeners
+            enqueueRemoved(stripe, endpoints.values());
         }
 
-        for (final ImportEndpoint endpoint : endpoints) {
-            // Remove the endpoint
-            pRegistry.remove(endpoint.getUid());
+        stripe.drain();
+    }
 
-            // Notify listeners
-            for (final IImportEndpointListener listener : pListeners) {
-                listener.endpointRemoved(endpoint);
-            }
+    /**
+     * Notifies a listener about new endpoints, in a single call if it
+     * supports it
+     *
+     * @param aListener
+     *            An endpoint listener
+     * @param aEndpoints
+     *            The new endpoints
+     */
+    private void notifyAdded(final IImportEndpointListener aListener,
+            final ImportEndpoint[] aEndpoints) {
+
+        if (aListener instanceof IImportEndpointsListener) {
+            ((IImportEndpointsListener) aListener).endpointsAdded(aEndpoints);
+            return;
+        }
+
+        for (final ImportEndpoint endpoint : aEndpoints) {
+            aListener.endpointAdded(endpoint);
         }
     }
 
@@ -216,9 +526,9 @@ public class ImportsRegistry implements IImportsRegistry {
      * @see org.cohorte.remote.pelix.IImportsRegistry#remove(java.lang.String)
      */
     @Override
-    public synchronized void remove(final String aUid) {
+    public void remove(final String aUid) {
 
-        final ImportEndpoint endpoint = pRegistry.remove(aUid);
+        final ImportEndpoint endpoint = pRegistry.get(aUid);
         if (endpoint == null) {
             // Unknown endpoint
             pLogger.log(LogService.LOG_WARNING, "Unknown import endpoint UID: "
@@ -226,22 +536,128 @@ public class ImportsRegistry implements IImportsRegistry {
             return;
         }
 
+        final Stripe stripe = getStripe(endpoint);
+        synchronized (stripe) {
+            if (!removeEndpoint(endpoint)) {
+                // Removed in the meantime
+                return;
+            }
+
+            // Notify listeners
+            enqueueRemoved(stripe, Collections.singletonList(endpoint));
+        }
+
+        stripe.drain();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.IImportsRegistry#removeAll(java.util.Collection)
+     */
+    @Override
+    public void removeAll(final Collection<String> aUids) {
+
+        // Group the endpoints by stripe
+        final Map<Stripe, Collection<ImportEndpoint>> stripes = new LinkedHashMap<Stripe, Collection<ImportEndpoint>>();
+        for (final String uid : aUids) {
+            final ImportEndpoint endpoint = pRegistry.get(uid);
+            if (endpoint == null) {
+                // Unknown endpoint
+                pLogger.log(LogService.LOG_WARNING,
+                        "Unknown import endpoint UID: " + uid);
+                continue;
+            }
+
+            final Stripe stripe = getStripe(endpoint);
+            Collection<ImportEndpoint> endpoints = stripes.get(stripe);
+            if (endpoints == null) {
+                endpoints = new LinkedList<ImportEndpoint>();
+                stripes.put(stripe, endpoints);
+            }
+            endpoints.add(endpoint);
+        }
+
+        for (final Map.Entry<Stripe, Collection<ImportEndpoint>> entry : stripes
+                .entrySet()) {
+            final Stripe stripe = entry.getKey();
+            synchronized (stripe) {
+                final Collection<ImportEndpoint> removed = new LinkedList<ImportEndpoint>();
+                for (final ImportEndpoint endpoint : entry.getValue()) {
+                    if (removeEndpoint(endpoint)) {
+                        removed.add(endpoint);
+                    }
+                }
+
+                // Notify listeners, in a single pass
+                if (!removed.isEmpty()) {
+                    enqueueRemoved(stripe, removed);
+                }
+            }
+
+            stripe.drain();
+        }
+    }
+
+    /**
+     * Removes the given endpoint from the registry and from its framework.
+     * Must be called while holding the lock of the endpoint stripe.
+     *
+     * @param aEndpoint
+     *            An imported endpoint
+     * @return True if the endpoint was still in the registry
+     */
+    private boolean removeEndpoint(final ImportEndpoint aEndpoint) {
+
+        if (!pRegistry.remove(aEndpoint.getUid(), aEndpoint)) {
+            return false;
+        }
+
         // Remove it from its framework
-        final Collection<ImportEndpoint> frameworkEndpoints = pFrameworks
-                .get(endpoint.getFrameworkUid());
+        final String fwUid = aEndpoint.getFrameworkUid();
+        if (fwUid == null || fwUid.isEmpty()) {
+            return true;
+        }
+
+        final Map<String, ImportEndpoint> frameworkEndpoints = pFrameworks
+                .get(fwUid);
         if (frameworkEndpoints != null) {
-            frameworkEndpoints.remove(endpoint);
+            frameworkEndpoints.remove(aEndpoint.getUid());
 
             if (frameworkEndpoints.isEmpty()) {
                 // Remove framework entry if there is no more endpoint from it
-                pFrameworks.remove(endpoint.getFrameworkUid());
+                pFrameworks.remove(fwUid);
             }
         }
 
-        // Notify listeners
-        for (final IImportEndpointListener listener : pListeners) {
-            listener.endpointRemoved(endpoint);
+        return true;
+    }
+
+    /**
+     * Stores the given endpoint in the registry and in its framework. Must be
+     * called while holding the lock of the endpoint stripe.
+     *
+     * @param aEndpoint
+     *            A discovered endpoint
+     * @return True if the endpoint has been stored, False if its UID was
+     *         already known
+     */
+    private boolean storeEndpoint(final ImportEndpoint aEndpoint) {
+
+        // Check if the endpoint already exists
+        final String uid = aEndpoint.getUid();
+        if (pRegistry.putIfAbsent(uid, aEndpoint) != null) {
+            pLogger.log(LogService.LOG_DEBUG, "Already known endpoint: " + uid);
+            return false;
+        }
+
+        // Store the endpoint
+        final String fwUid = aEndpoint.getFrameworkUid();
+        if (fwUid != null && !fwUid.isEmpty()) {
+            addToFramework(fwUid, aEndpoint);
         }
+
+        return true;
     }
 
     /*
@@ -251,23 +667,47 @@ public class ImportsRegistry implements IImportsRegistry {
      * java.util.Map)
      */
     @Override
-    public synchronized void update(final String aUid,
+    public void update(final String aUid,
             final Map<String, Object> aNewProperties) {
 
-        final ImportEndpoint endpoint = pRegistry.remove(aUid);
+        final ImportEndpoint endpoint = pRegistry.get(aUid);
         if (endpoint == null) {
             // Unknown endpoint, ignore it
             return;
         }
 
-        // Replace the stored properties
-        final Map<String, Object> oldProperties = endpoint.getProperties();
-        endpoint.setProperties(aNewProperties);
+        final Stripe stripe = getStripe(endpoint);
+        synchronized (stripe) {
+            if (pRegistry.get(aUid) != endpoint) {
+                // Removed in the meantime
+                return;
+            }
+
+            // Replace the stored properties
+            final Map<String, Object> oldProperties = endpoint.getProperties();
+            endpoint.setProperties(aNewProperties);
 
-        // Notify listeners
-        for (final IImportEndpointListener listener : pListeners) {
-            listener.endpointUpdated(endpoint, oldProperties);
+            // Notify listeners
+            stripe.enqueue(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    final DirectImporter directImporter = pDirectImporter;
+                    if (directImporter != null
+                            && directImporter.endpointUpdated(endpoint)) {
+                        // Imported in-process
+                        return;
+                    }
+
+                    for (final IImportEndpointListener listener : pListeners) {
+                        listener.endpointUpdated(endpoint, oldProperties);
+                    }
+                }
+            });
         }
+
+        stripe.drain();
     }
 
     /**
@@ -282,5 +722,8 @@ public class ImportsRegistry implements IImportsRegistry {
         // Setup the isolate UID
         pFrameworkUid = RSUtils.setupUID(pBundleContext,
                 IRemoteServicesConstants.ISOLATE_UID);
+
+        // Import directly the services exported in this JVM
+        pDirectImporter = new DirectImporter(pBundleContext, pLogger);
     }
 }
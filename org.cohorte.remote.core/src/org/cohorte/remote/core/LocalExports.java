@@ -0,0 +1,317 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.cohorte.remote.ExportEndpoint;
+import org.cohorte.remote.IExportEndpointListener;
+import org.cohorte.remote.IRemoteServicesConstants;
+import org.cohorte.remote.utilities.RSUtils;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * JVM-wide directory of the exported services. Each framework registers the
+ * services it exports in the platform MBean server, which is shared by all
+ * the frameworks of the JVM; the imports registry of another framework of the
+ * same JVM looks its endpoints up there to call them directly.
+ *
+ * The service objects are not exposed as an MBean operation: another
+ * framework loads this class with the class loader of the MBean and calls
+ * {@link #getService(String, String)} by reflection, at each call.
+ *
+ * @author Thomas Calmant
+ */
+@Component(name = "cohorte-remote-local-exports-factory")
+@Provides(specifications = IExportEndpointListener.class)
+@Instantiate(name = "cohorte-remote-local-exports")
+public class LocalExports implements IExportEndpointListener, ILocalExports {
+
+    /** Domain of the directory MBeans */
+    private static final String DOMAIN = "org.cohorte.remote";
+
+    /** Framework UID -&gt; Local exports (of the frameworks using this class) */
+    private static final ConcurrentMap<String, LocalExports> sExports = new ConcurrentHashMap<String, LocalExports>();
+
+    /** The bundle context */
+    private final BundleContext pBundleContext;
+
+    /** Endpoint UID -&gt; Exported endpoint */
+    private final ConcurrentMap<String, ExportEndpoint> pEndpoints = new ConcurrentHashMap<String, ExportEndpoint>();
+
+    /** Framework UID */
+    private String pFrameworkUid;
+
+    /** The log service */
+    @Requires
+    private LogService pLogger;
+
+    /** The name of the MBean of this framework */
+    private ObjectName pObjectName;
+
+    /** Endpoint UID -&gt; Service object */
+    private final ConcurrentMap<String, Object> pServices = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Component constructed
+     *
+     * @param aContext
+     *            the bundle context
+     */
+    public LocalExports(final BundleContext aContext) {
+
+        pBundleContext = aContext;
+    }
+
+    /**
+     * Computes the name of the MBean of a framework
+     *
+     * @param aFrameworkUid
+     *            A framework UID
+     * @return The name of the MBean of the framework
+     * @throws JMException
+     *             Invalid name
+     */
+    private static ObjectName getObjectName(final String aFrameworkUid)
+            throws JMException {
+
+        return new ObjectName(DOMAIN + ":type=LocalExports,framework="
+                + ObjectName.quote(aFrameworkUid));
+    }
+
+    /**
+     * Returns the service object of an endpoint exported by a framework
+     * using this class. Called by reflection from the other frameworks, with
+     * the method returned by {@link #getServiceLookup(String)}.
+     *
+     * @param aFrameworkUid
+     *            UID of the exporting framework
+     * @param aEndpointUid
+     *            UID of the export endpoint
+     * @return The service object, or null if the endpoint isn't exported
+     *         anymore
+     */
+    static Object getService(final String aFrameworkUid,
+            final String aEndpointUid) {
+
+        final LocalExports exports = sExports.get(aFrameworkUid);
+        if (exports == null) {
+            return null;
+        }
+
+        return exports.pServices.get(aEndpointUid);
+    }
+
+    /**
+     * Finds the {@link #getService(String, String)} method of the given
+     * framework, through the class loader of its MBean
+     *
+     * @param aFrameworkUid
+     *            UID of the exporting framework
+     * @return The lookup method, or null if the framework isn't in this JVM
+     */
+    static Method getServiceLookup(final String aFrameworkUid) {
+
+        if (aFrameworkUid == null || aFrameworkUid.isEmpty()) {
+            return null;
+        }
+
+        try {
+            final ClassLoader classLoader = ManagementFactory
+                    .getPlatformMBeanServer().getClassLoaderFor(
+                            getObjectName(aFrameworkUid));
+            if (classLoader == null) {
+                // Not one of our MBeans
+                return null;
+            }
+
+            final Method method = classLoader.loadClass(
+                    LocalExports.class.getName()).getDeclaredMethod(
+                    "getService", String.class, String.class);
+            method.setAccessible(true);
+            return method;
+
+        } catch (final Exception ex) {
+            // Framework in another process or gone in the meantime
+            return null;
+        }
+    }
+
+    /**
+     * Looks for a service exported by a framework of this JVM
+     *
+     * @param aLookup
+     *            The lookup method of the exporting framework
+     * @param aFrameworkUid
+     *            UID of the exporting framework
+     * @param aEndpointUid
+     *            UID of the export endpoint
+     * @return The service object, or null if the endpoint isn't exported
+     *         anymore
+     */
+    static Object lookup(final Method aLookup, final String aFrameworkUid,
+            final String aEndpointUid) {
+
+        try {
+            return aLookup.invoke(null, aFrameworkUid, aEndpointUid);
+
+        } catch (final Exception ex) {
+            // Exporting framework stopped
+            return null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointRemoved(org.cohorte
+     * .remote.ExportEndpoint)
+     */
+    @Override
+    public void endpointRemoved(final ExportEndpoint aEndpoint) {
+
+        final String uid = aEndpoint.getUid();
+        if (pServices.remove(uid) != null) {
+            pBundleContext.ungetService(pEndpoints.remove(uid).getReference());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointsAdded(org.cohorte
+     * .remote.ExportEndpoint[])
+     */
+    @Override
+    public void endpointsAdded(final ExportEndpoint[] aEndpoints) {
+
+        for (final ExportEndpoint endpoint : aEndpoints) {
+            final Object service = pBundleContext.getService(endpoint
+                    .getReference());
+            if (service == null) {
+                // Service gone
+                continue;
+            }
+
+            pEndpoints.put(endpoint.getUid(), endpoint);
+            if (pServices.putIfAbsent(endpoint.getUid(), service) != null) {
+                // Already known
+                pBundleContext.ungetService(endpoint.getReference());
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.cohorte.remote.IExportEndpointListener#endpointUpdated(org.cohorte
+     * .remote.ExportEndpoint, java.util.Map)
+     */
+    @Override
+    public void endpointUpdated(final ExportEndpoint aEndpoint,
+            final Map<String, Object> aOldProperties) {
+
+        // The service object doesn't change
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.cohorte.remote.core.ILocalExports#getEndpoints()
+     */
+    @Override
+    public String[] getEndpoints() {
+
+        return pServices.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Component invalidated
+     */
+    @Invalidate
+    public void invalidate() {
+
+        // Leave the directory
+        sExports.remove(pFrameworkUid, this);
+        if (pObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        pObjectName);
+
+            } catch (final JMException ex) {
+                pLogger.log(LogService.LOG_WARNING,
+                        "Error unregistering the local exports MBean: " + ex);
+            }
+            pObjectName = null;
+        }
+
+        // Release the services
+        for (final String uid : pServices.keySet()) {
+            if (pServices.remove(uid) != null) {
+                pBundleContext.ungetService(pEndpoints.remove(uid)
+                        .getReference());
+            }
+        }
+
+        pFrameworkUid = null;
+    }
+
+    /**
+     * Component validated
+     */
+    @Validate
+    public void validate() {
+
+        // Setup the isolate UID
+        pFrameworkUid = RSUtils.setupUID(pBundleContext,
+                IRemoteServicesConstants.ISOLATE_UID);
+
+        // Join the directory: the MBean class must come from this bundle, for
+        // its class loader to give access to this class
+        sExports.put(pFrameworkUid, this);
+        try {
+            final ObjectName name = getObjectName(pFrameworkUid);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, ILocalExports.class) {
+                        // Loaded by the bundle class loader
+                    }, name);
+            pObjectName = name;
+
+        } catch (final JMException ex) {
+            pLogger.log(LogService.LOG_WARNING,
+                    "Error registering the local exports MBean, services "
+                            + "won't be called directly: " + ex);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.core;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Copies objects to the classes of another class loader, for the calls
+ * between frameworks of the same JVM.
+ *
+ * Objects whose class is shared with the target class loader (JDK classes,
+ * classes of a common parent) are passed as is. Arrays, collections and maps
+ * are copied with their content. Other objects are copied field by field into
+ * a new instance of the class of the same name in the target class loader,
+ * which must have a constructor without argument.
+ *
+ * @author Thomas Calmant
+ */
+class ObjectCopier {
+
+    /** Source class -&gt; target class */
+    private final ConcurrentMap<Class<?>, Class<?>> pClasses = new ConcurrentHashMap<Class<?>, Class<?>>();
+
+    /** Source class -&gt; copied fields pairs (source field, target field) */
+    private final ConcurrentMap<Class<?>, Field[][]> pFields = new ConcurrentHashMap<Class<?>, Field[][]>();
+
+    /** The target class loader */
+    private final ClassLoader pLoader;
+
+    /**
+     * Sets up the copier
+     *
+     * @param aLoader
+     *            The target class loader
+     */
+    ObjectCopier(final ClassLoader aLoader) {
+
+        pLoader = aLoader;
+    }
+
+    /**
+     * Returns the serialized fields of a class: its non-static, non-transient
+     * fields and those of its parents
+     *
+     * @param aClass
+     *            A class
+     * @return The fields of the class, by name
+     */
+    private static Map<String, Field> getFields(final Class<?> aClass) {
+
+        final Map<String, Field> fields = new LinkedHashMap<String, Field>();
+        for (Class<?> clazz = aClass; clazz != null && clazz != Object.class; clazz = clazz
+                .getSuperclass()) {
+            for (final Field field : clazz.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers)
+                        && !Modifier.isTransient(modifiers)
+                        && !fields.containsKey(field.getName())) {
+                    field.setAccessible(true);
+                    fields.put(field.getName(), field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Copies a value to the classes of the target class loader
+     *
+     * @param aValue
+     *            A value
+     * @return The value or its copy
+     * @throws IllegalArgumentException
+     *             The value can't be copied
+     */
+    Object copy(final Object aValue) {
+
+        return copy(aValue, new IdentityHashMap<Object, Object>());
+    }
+
+    /**
+     * Copies a value to the classes of the target class loader
+     *
+     * @param aValue
+     *            A value
+     * @param aCopies
+     *            The objects already copied
+     * @return The value or its copy
+     * @throws IllegalArgumentException
+     *             The value can't be copied
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Object copy(final Object aValue, final Map<Object, Object> aCopies) {
+
+        if (aValue == null) {
+            return null;
+        }
+
+        final Object known = aCopies.get(aValue);
+        if (known != null) {
+            return known;
+        }
+
+        final Class<?> clazz = aValue.getClass();
+        try {
+            if (clazz.isArray()) {
+                final Class<?> componentType = clazz.getComponentType();
+                if (componentType.isPrimitive()) {
+                    return aValue;
+                }
+
+                final int length = Array.getLength(aValue);
+                final Object array = Array.newInstance(
+                        translate(componentType), length);
+                aCopies.put(aValue, array);
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, copy(Array.get(aValue, i), aCopies));
+                }
+                return array;
+
+            } else if (aValue instanceof Map) {
+                final Map copy = (Map) newContainer(clazz,
+                        LinkedHashMap.class);
+                aCopies.put(aValue, copy);
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) aValue)
+                        .entrySet()) {
+                    copy.put(copy(entry.getKey(), aCopies),
+                            copy(entry.getValue(), aCopies));
+                }
+                return copy;
+
+            } else if (aValue instanceof Collection) {
+                final Collection copy = (Collection) newContainer(clazz,
+                        aValue instanceof Set ? LinkedHashSet.class
+                                : ArrayList.class);
+                aCopies.put(aValue, copy);
+                for (final Object item : (Collection<?>) aValue) {
+                    copy.add(copy(item, aCopies));
+                }
+                return copy;
+            }
+
+            final Class<?> target = translate(clazz);
+            if (target == clazz) {
+                // Shared class
+                return aValue;
+
+            } else if (clazz.isEnum()) {
+                return Enum.valueOf((Class<Enum>) target,
+                        ((Enum<?>) aValue).name());
+            }
+
+            // Copy the fields
+            final Constructor<?> constructor = target.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            final Object copy = constructor.newInstance();
+            aCopies.put(aValue, copy);
+            for (final Field[] fields : getFieldsPairs(clazz, target)) {
+                fields[1].set(copy, copy(fields[0].get(aValue), aCopies));
+            }
+            return copy;
+
+        } catch (final IllegalArgumentException ex) {
+            throw ex;
+
+        } catch (final Exception ex) {
+            throw new IllegalArgumentException("Can't copy an instance of "
+                    + clazz.getName() + ": " + ex, ex);
+        }
+    }
+
+    /**
+     * Returns the pairs of fields to copy from the source class to the target
+     * class
+     *
+     * @param aSource
+     *            The source class
+     * @param aTarget
+     *            The target class
+     * @return The pairs of fields (source field, target field)
+     */
+    private Field[][] getFieldsPairs(final Class<?> aSource,
+            final Class<?> aTarget) {
+
+        Field[][] pairs = pFields.get(aSource);
+        if (pairs == null) {
+            final Map<String, Field> targetFields = getFields(aTarget);
+            final List<Field[]> pairsList = new ArrayList<Field[]>();
+            for (final Field field : getFields(aSource).values()) {
+                final Field targetField = targetFields.get(field.getName());
+                if (targetField != null) {
+                    pairsList.add(new Field[] { field, targetField });
+                }
+            }
+
+            pairs = pairsList.toArray(new Field[pairsList.size()][]);
+            pFields.put(aSource, pairs);
+        }
+        return pairs;
+    }
+
+    /**
+     * Creates an empty container of the same class as the copied one if it
+     * is a JDK class, else of the default class
+     *
+     * @param aClass
+     *            Class of the copied container
+     * @param aDefault
+     *            Default container class
+     * @return An empty container
+     * @throws Exception
+     *             Error creating the container
+     */
+    private Object newContainer(final Class<?> aClass, final Class<?> aDefault)
+            throws Exception {
+
+        if (aClass.getClassLoader() == null
+                && Modifier.isPublic(aClass.getModifiers())) {
+            try {
+                return aClass.getConstructor().newInstance();
+
+            } catch (final NoSuchMethodException ex) {
+                // Immutable or specific container: use the default one
+            }
+        }
+
+        return aDefault.newInstance();
+    }
+
+    /**
+     * Returns the class of the target class loader with the same name as the
+     * given one
+     *
+     * @param aClass
+     *            A class
+     * @return The class of the target class loader
+     * @throws ClassNotFoundException
+     *             Class not visible from the target class loader
+     */
+    Class<?> translate(final Class<?> aClass) throws ClassNotFoundException {
+
+        if (aClass.isPrimitive() || aClass.getClassLoader() == null) {
+            // JDK class
+            return aClass;
+        }
+
+        Class<?> target = pClasses.get(aClass);
+        if (target == null) {
+            if (aClass.isArray()) {
+                target = Array.newInstance(
+                        translate(aClass.getComponentType()), 0).getClass();
+
+            } else {
+                target = Class.forName(aClass.getName(), false, pLoader);
+            }
+            pClasses.put(aClass, target);
+        }
+        return target;
+    }
+}
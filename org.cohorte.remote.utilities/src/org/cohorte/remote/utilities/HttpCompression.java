@@ -0,0 +1,184 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Utility methods to negotiate, encode and decode the compression of HTTP
+ * response bodies (gzip and deflate content codings)
+ *
+ * @author Thomas Calmant
+ */
+public final class HttpCompression {
+
+    /** Value of the Accept-Encoding header sent by the clients */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    /**
+     * Default minimum size of a response body to be compressed, in bytes:
+     * smaller bodies don't compress enough to be worth it
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /** The deflate content coding (zlib format) */
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    /** The gzip content coding */
+    public static final String ENCODING_GZIP = "gzip";
+
+    /** Request header listing the content codings accepted by the client */
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    /** Response header giving the content coding of the body */
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    /** Response header telling caches the body depends on request headers */
+    public static final String HEADER_VARY = "Vary";
+
+    /**
+     * Hidden constructor
+     */
+    private HttpCompression() {
+
+        // Static utility class
+    }
+
+    /**
+     * Compresses the given content with the given coding
+     *
+     * @param aContent
+     *            Content to compress
+     * @param aLength
+     *            Number of bytes to read from the content
+     * @param aEncoding
+     *            A content coding returned by {@link #negotiate(String)}
+     * @return The compressed content
+     * @throws IOException
+     *             Error compressing the content
+     */
+    public static byte[] encode(final byte[] aContent, final int aLength,
+            final String aEncoding) throws IOException {
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(
+                Math.max(64, aLength / 4));
+        final DeflaterOutputStream encoder;
+        if (ENCODING_GZIP.equals(aEncoding)) {
+            encoder = new GZIPOutputStream(output);
+        } else {
+            encoder = new DeflaterOutputStream(output);
+        }
+
+        try {
+            encoder.write(aContent, 0, aLength);
+            encoder.finish();
+
+        } finally {
+            encoder.close();
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the body of the response of the given connection, decoded
+     * according to its Content-Encoding header
+     *
+     * @param aConnection
+     *            A HTTP connection which received a response
+     * @return The decoded response body
+     * @throws IOException
+     *             Error reading the response or unknown content coding
+     */
+    public static InputStream getInputStream(
+            final HttpURLConnection aConnection) throws IOException {
+
+        final InputStream input = aConnection.getInputStream();
+        final String encoding = aConnection
+                .getHeaderField(HEADER_CONTENT_ENCODING);
+        if (encoding == null || encoding.trim().isEmpty()
+                || encoding.trim().equalsIgnoreCase("identity")) {
+            // Not compressed
+            return input;
+
+        } else if (encoding.trim().equalsIgnoreCase(ENCODING_GZIP)) {
+            return new GZIPInputStream(input);
+
+        } else if (encoding.trim().equalsIgnoreCase(ENCODING_DEFLATE)) {
+            return new InflaterInputStream(input);
+        }
+
+        throw new IOException("Unsupported content encoding: " + encoding);
+    }
+
+    /**
+     * Selects the content coding to use for a response, according to the
+     * Accept-Encoding header of the request. Codings with a zero quality value
+     * are considered refused.
+     *
+     * @param aAcceptEncoding
+     *            Value of the Accept-Encoding request header (can be null)
+     * @return {@link #ENCODING_GZIP}, {@link #ENCODING_DEFLATE} or null if the
+     *         response must not be compressed
+     */
+    public static String negotiate(final String aAcceptEncoding) {
+
+        if (aAcceptEncoding == null) {
+            return null;
+        }
+
+        boolean deflate = false;
+        for (final String token : aAcceptEncoding.split(",")) {
+            final String[] parts = token.split(";");
+            final String coding = parts[0].trim();
+
+            // Look for a "q=0" parameter
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Float.parseFloat(param.substring(2)) <= 0;
+
+                    } catch (final NumberFormatException ex) {
+                        refused = true;
+                    }
+                }
+            }
+
+            if (refused) {
+                continue;
+            }
+
+            if (coding.equalsIgnoreCase(ENCODING_GZIP)) {
+                // Preferred coding
+                return ENCODING_GZIP;
+
+            } else if (coding.equalsIgnoreCase(ENCODING_DEFLATE)) {
+                deflate = true;
+            }
+        }
+
+        return deflate ? ENCODING_DEFLATE : null;
+    }
+}
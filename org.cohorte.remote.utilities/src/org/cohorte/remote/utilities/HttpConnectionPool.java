@@ -0,0 +1,293 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of keep-alive HTTP connections, shared by all the outbound HTTP
+ * requests of the remote services.
+ *
+ * The sockets are kept alive by the JDK HTTP client, which reuses a socket
+ * only if the response has been completely read and the connection hasn't
+ * been disconnected. The pool ensures that: connections must be given back
+ * with {@link #release(HttpURLConnection)}, which drains the response, or with
+ * {@link #discard(HttpURLConnection)} after an error. It also limits the
+ * number of concurrent connections per route (scheme, host and port) to the
+ * number of sockets the JDK keeps alive per destination (the
+ * <code>http.maxConnections</code> system property, 5 by default).
+ *
+ * @author Thomas Calmant
+ */
+public final class HttpConnectionPool {
+
+    /**
+     * A destination of HTTP connections
+     */
+    private static final class Route {
+
+        /** Time of the last use of the route */
+        private volatile long pLastUse = System.currentTimeMillis();
+
+        /** Connection permits */
+        private final Semaphore pPermits;
+
+        /**
+         * Sets up the route
+         *
+         * @param aMaxConnections
+         *            Maximum number of concurrent connections
+         */
+        private Route(final int aMaxConnections) {
+
+            pPermits = new Semaphore(aMaxConnections, true);
+        }
+    }
+
+    /** Maximum time to wait for a connection permit, in milliseconds */
+    private static final long ACQUIRE_TIMEOUT = 30000;
+
+    /** Time after which an unused route is forgotten, in milliseconds */
+    private static final long IDLE_TIMEOUT = 60000;
+
+    /** The shared pool */
+    private static final HttpConnectionPool sInstance = new HttpConnectionPool(
+            Integer.getInteger("http.maxConnections", 5));
+
+    /** Time of the last eviction of idle routes */
+    private volatile long pLastEviction = System.currentTimeMillis();
+
+    /** Leased connection -&gt; Route (connections use identity equality) */
+    private final ConcurrentMap<HttpURLConnection, Route> pLeases = new ConcurrentHashMap<HttpURLConnection, Route>();
+
+    /** Maximum number of concurrent connections per route */
+    private final int pMaxConnections;
+
+    /** Route key -&gt; Route */
+    private final ConcurrentMap<String, Route> pRoutes = new ConcurrentHashMap<String, Route>();
+
+    /**
+     * Sets up the pool
+     *
+     * @param aMaxConnections
+     *            Maximum number of concurrent connections per route
+     */
+    private HttpConnectionPool(final int aMaxConnections) {
+
+        pMaxConnections = Math.max(1, aMaxConnections);
+    }
+
+    /**
+     * Returns the pool shared by all the remote services bundles
+     *
+     * @return The shared pool
+     */
+    public static HttpConnectionPool get() {
+
+        return sInstance;
+    }
+
+    /**
+     * Reads the given stream until its end, then closes it
+     *
+     * @param aStream
+     *            A response stream (can be null)
+     * @throws IOException
+     *             Error reading the stream
+     */
+    private static void drain(final InputStream aStream) throws IOException {
+
+        if (aStream == null) {
+            return;
+        }
+
+        try {
+            final byte[] buffer = new byte[1024];
+            while (aStream.read(buffer) != -1) {
+                // Skip the content
+            }
+
+        } finally {
+            aStream.close();
+        }
+    }
+
+    /**
+     * Gives back a connection which can't be reused, after an error. Closes its
+     * socket.
+     *
+     * @param aConnection
+     *            A connection returned by {@link #open(URL)} (can be null)
+     */
+    public void discard(final HttpURLConnection aConnection) {
+
+        if (aConnection == null) {
+            return;
+        }
+
+        try {
+            aConnection.disconnect();
+
+        } finally {
+            unlease(aConnection);
+        }
+    }
+
+    /**
+     * Forgets the routes which haven't been used for a while
+     */
+    private void evictIdleRoutes() {
+
+        final long now = System.currentTimeMillis();
+        if (now - pLastEviction < IDLE_TIMEOUT) {
+            return;
+        }
+        pLastEviction = now;
+
+        final Iterator<Route> iterator = pRoutes.values().iterator();
+        while (iterator.hasNext()) {
+            final Route route = iterator.next();
+            if (now - route.pLastUse > IDLE_TIMEOUT
+                    && route.pPermits.availablePermits() == pMaxConnections) {
+                // No connection leased: a new route will be created if needed
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the given HTTP URL, waiting for a free connection
+     * if the maximum number of connections to its route has been reached. The
+     * connection must be given back to the pool with
+     * {@link #release(HttpURLConnection)} or
+     * {@link #discard(HttpURLConnection)}.
+     *
+     * @param aUrl
+     *            A HTTP URL
+     * @return A connection to the URL (not yet connected)
+     * @throws IOException
+     *             Not a HTTP URL, no free connection in time or error opening
+     *             the connection
+     */
+    public HttpURLConnection open(final URL aUrl) throws IOException {
+
+        evictIdleRoutes();
+
+        // Get the route
+        final String key = aUrl.getProtocol() + "://" + aUrl.getHost() + ":"
+                + (aUrl.getPort() != -1 ? aUrl.getPort() : aUrl
+                        .getDefaultPort());
+        Route route = pRoutes.get(key);
+        if (route == null) {
+            final Route newRoute = new Route(pMaxConnections);
+            route = pRoutes.putIfAbsent(key, newRoute);
+            if (route == null) {
+                route = newRoute;
+            }
+        }
+        route.pLastUse = System.currentTimeMillis();
+
+        // Wait for a permit
+        try {
+            if (!route.pPermits.tryAcquire(ACQUIRE_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                throw new IOException("No free HTTP connection to " + key
+                        + " after " + ACQUIRE_TIMEOUT + "ms");
+            }
+
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a connection to " + key);
+        }
+
+        // Open the connection
+        boolean opened = false;
+        try {
+            final URLConnection connection = aUrl.openConnection();
+            if (!(connection instanceof HttpURLConnection)) {
+                throw new IOException("Not a HTTP URL: " + aUrl);
+            }
+
+            final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            pLeases.put(httpConnection, route);
+            opened = true;
+            return httpConnection;
+
+        } finally {
+            if (!opened) {
+                route.pPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Gives back a connection after a complete exchange. The rest of the
+     * response is read, so that the JDK can reuse the socket for the next
+     * request to the same route.
+     *
+     * @param aConnection
+     *            A connection returned by {@link #open(URL)} (can be null)
+     */
+    public void release(final HttpURLConnection aConnection) {
+
+        if (aConnection == null) {
+            return;
+        }
+
+        try {
+            try {
+                drain(aConnection.getInputStream());
+
+            } catch (final IOException ex) {
+                // Error status or stream already closed by the caller
+                drain(aConnection.getErrorStream());
+            }
+
+        } catch (final IOException ex) {
+            // Can't reuse the socket
+            aConnection.disconnect();
+
+        } finally {
+            unlease(aConnection);
+        }
+    }
+
+    /**
+     * Releases the permit associated to the given connection
+     *
+     * @param aConnection
+     *            A leased connection
+     */
+    private void unlease(final HttpURLConnection aConnection) {
+
+        final Route route = pLeases.remove(aConnection);
+        if (route != null) {
+            route.pLastUse = System.currentTimeMillis();
+            route.pPermits.release();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 isandlaTech
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cohorte.remote.utilities;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A byte buffer reused by all the requests sent by a thread, to avoid
+ * allocating a new array for each serialized request.
+ *
+ * The buffer returned by {@link #acquire()} belongs to the current thread until
+ * it is given back with {@link #release()}. Buffers which grew too much are
+ * dropped on release, to avoid keeping large arrays alive.
+ *
+ * @author Thomas Calmant
+ */
+public final class ThreadByteBuffer extends ByteArrayOutputStream {
+
+    /** Initial size of a buffer */
+    private static final int INITIAL_SIZE = 4096;
+
+    /** Maximum size of a buffer kept between two requests */
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /** The buffer of each thread */
+    private static final ThreadLocal<ThreadByteBuffer> sBuffers = new ThreadLocal<ThreadByteBuffer>();
+
+    /** The buffer is currently used */
+    private boolean pInUse;
+
+    /**
+     * Sets up the buffer
+     */
+    private ThreadByteBuffer() {
+
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * Returns the empty buffer of the current thread. If it is already in use
+     * (re-entrant call), a new buffer is returned.
+     *
+     * @return An empty buffer
+     */
+    public static ThreadByteBuffer acquire() {
+
+        ThreadByteBuffer buffer = sBuffers.get();
+        if (buffer == null || buffer.pInUse) {
+            // First call or re-entrant call
+            buffer = new ThreadByteBuffer();
+            if (sBuffers.get() == null) {
+                sBuffers.set(buffer);
+            }
+        }
+
+        buffer.reset();
+        buffer.pInUse = true;
+        return buffer;
+    }
+
+    /**
+     * Returns the internal array of the buffer, valid up to {@link #size()}.
+     * The array must not be kept after {@link #release()}.
+     *
+     * @return The internal array of the buffer
+     */
+    public byte[] getBuffer() {
+
+        return buf;
+    }
+
+    /**
+     * Gives back the buffer to the current thread
+     */
+    public void release() {
+
+        pInUse = false;
+        if (buf.length > MAX_RETAINED_SIZE && sBuffers.get() == this) {
+            // Too large to be kept
+            sBuffers.remove();
+        }
+    }
+}